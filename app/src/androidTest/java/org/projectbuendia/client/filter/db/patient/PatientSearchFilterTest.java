@@ -0,0 +1,139 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.db.patient;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.sync.Database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link PatientSearchFilter}, against the index that {@link Database} maintains. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PatientSearchFilterTest {
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        Database helper = new Database(getInstrumentation().getTargetContext());
+        helper.onCreate(mDb);
+        helper.onOpen(mDb);
+        insertPatient("p1", "KH.123", "John", "Doe", "7");
+        insertPatient("p2", "KH.45", "Jean-Paul", null, null);
+        insertPatient("p3", "MSF.9", "-", "—", null);
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    /** Tests that a query with no words selects all patients. */
+    @Test public void testEmptyQueryMatchesEverything() {
+        assertTrue(new PatientSearchFilter(" ").isEmpty());
+        assertEquals("", new PatientSearchFilter(null).getSelectionString());
+    }
+
+    /** Tests that every word of the query must start a word of the name, in any order. */
+    @Test public void testMatchesPrefixesOfNames() {
+        assertEquals(Arrays.asList("p1"), search("jo D"));
+        assertEquals(Arrays.asList("p1"), search("doe john"));
+        assertEquals(Arrays.asList("p2"), search("paul"));
+        assertEquals(Arrays.asList("p1", "p2"), search("j"));
+        assertEquals(Arrays.asList(), search("john jim"));
+    }
+
+    /** Tests that the words of the ID and bed number are searched too. */
+    @Test public void testMatchesIdAndBedNumber() {
+        assertEquals(Arrays.asList("p1"), search("KH.12"));
+        assertEquals(Arrays.asList("p1", "p2"), search("kh"));
+        assertEquals(Arrays.asList("p1"), search("john 7"));
+    }
+
+    /** Tests that a word matches any part of the ID, not only the start of one of its words. */
+    @Test public void testMatchesPartOfId() {
+        insertPatient("p4", "KH.0023", "Mary", "Roe", null);
+        assertEquals(Arrays.asList("p1", "p4"), search("23"));
+        assertEquals(Arrays.asList("p4"), search("mary 002"));
+        assertEquals(Arrays.asList("p1", "p2", "p4"), search("h"));
+    }
+
+    /** Tests that the uuid stored with each entry isn't searched. */
+    @Test public void testDoesNotMatchUuid() {
+        assertEquals(Arrays.asList(), search("p1"));
+    }
+
+    /** Tests that any kind of dash matches an unknown given or family name. */
+    @Test public void testDashMatchesUnknownName() {
+        assertEquals(Arrays.asList("p2", "p3"), search("-"));
+        assertEquals(Arrays.asList("p2", "p3"), search("⸗"));
+        assertEquals(Arrays.asList("p3"), search("- msf"));
+        assertEquals(Arrays.asList("p2"), search("jean -"));
+        assertEquals(Arrays.asList(), search("john -"));
+    }
+
+    /** Tests that the index follows patients that are replaced, updated, and deleted. */
+    @Test public void testIndexFollowsChangesToPatients() {
+        insertPatient("p1", "KH.123", "Jim", "Doe", "7");
+        assertEquals(Arrays.asList(), search("john"));
+        assertEquals(Arrays.asList("p1"), search("jim"));
+
+        ContentValues values = new ContentValues();
+        values.put(Patients.BED_NUMBER, "B5");
+        mDb.update("patients", values, "uuid = ?", new String[] {"p2"});
+        assertEquals(Arrays.asList("p2"), search("b5"));
+
+        mDb.delete("patients", "uuid = ?", new String[] {"p3"});
+        assertEquals(Arrays.asList("p2"), search("-"));
+    }
+
+    private void insertPatient(String uuid, String id, String givenName, String familyName,
+        String bedNumber) {
+        ContentValues values = new ContentValues();
+        values.put(Patients.UUID, uuid);
+        values.put(Patients.ID, id);
+        values.put(Patients.GIVEN_NAME, givenName);
+        values.put(Patients.FAMILY_NAME, familyName);
+        values.put(Patients.BED_NUMBER, bedNumber);
+        // Sync writes patients with INSERT OR REPLACE too.
+        mDb.replaceOrThrow("patients", null, values);
+    }
+
+    /** Returns the UUIDs of the patients that the filter selects, in order. */
+    private List<String> search(String query) {
+        PatientSearchFilter filter = new PatientSearchFilter(query);
+        List<String> uuids = new ArrayList<>();
+        try (Cursor c = mDb.query("patients", new String[] {Patients.UUID},
+            filter.getSelectionString(), filter.getSelectionArgs(query), null, null, Patients.UUID)) {
+            while (c.moveToNext()) {
+                uuids.add(c.getString(0));
+            }
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.json;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactObsCodecTest {
+    private static final String PATIENT = "0a9f1f2e-9d2b-4bd2-8a8d-5b3e5c1c7a11";
+    private static final String PROVIDER = "6c1d8b9e-7a42-4a5f-9d6e-2f0b8e1c3d22";
+
+    @Test public void testRoundTripsEveryType() throws Throwable {
+        List<CompactObsCodec.Record> records = Arrays.asList(
+            record("o1", Datatype.NUMERIC, 1546300800000L, "37.5"),
+            record("o2", Datatype.CODED, 1546300800000L, "1065AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"),
+            record("o3", Datatype.TEXT, 1546300860000L, "Feels better \u00e9"),
+            record("o4", Datatype.DATE, 1546300800000L, "1969-12-25"),
+            record("o5", Datatype.DATETIME, 1546300700000L, "1546300799999"),
+            record("o6", Datatype.NONE, 1546300900000L, null),
+            record("o7", null, 0L, null));
+        records.get(6).voided = true;
+
+        byte[] page = new CompactObsCodec.Encoder().encode("2019-01-01T00:00:00.000Z", true, records);
+        assertTrue(CompactObsCodec.isCompact(page));
+        CompactObsCodec.Decoder decoder = new CompactObsCodec.Decoder(page);
+        assertEquals("2019-01-01T00:00:00.000Z", decoder.bookmark);
+        assertTrue(decoder.more);
+
+        List<CompactObsCodec.Record> decoded = new ArrayList<>();
+        assertEquals(7, decoder.readRecords(record -> decoded.add(copy(record))));
+        for (int i = 0; i < records.size(); i++) {
+            CompactObsCodec.Record expected = records.get(i);
+            CompactObsCodec.Record actual = decoded.get(i);
+            assertEquals(expected.uuid, actual.uuid);
+            assertEquals(expected.encounterUuid, actual.encounterUuid);
+            assertEquals(expected.patientUuid, actual.patientUuid);
+            assertEquals(expected.providerUuid, actual.providerUuid);
+            assertEquals(expected.conceptUuid, actual.conceptUuid);
+            assertEquals(expected.type, actual.type);
+            assertEquals(expected.millis, actual.millis);
+            assertEquals(expected.orderUuid, actual.orderUuid);
+            assertEquals(expected.value, actual.value);
+            assertEquals(expected.voided, actual.voided);
+        }
+    }
+
+    @Test public void testRepeatedUuidsAreSentOnce() {
+        List<CompactObsCodec.Record> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            CompactObsCodec.Record record =
+                record("o" + i, Datatype.NUMERIC, 1546300800000L + i * 1000, "" + i);
+            record.encounterUuid = "3f6e1d2c-8b7a-4c5d-9e0f-1a2b3c4d5e6f";
+            records.add(record);
+        }
+        byte[] page = new CompactObsCodec.Encoder().encode(null, false, records);
+        // Each record needs a few bytes for its own UUID, references, time, and value,
+        // but the shared 36-character UUIDs must not be repeated.
+        assertTrue("page is " + page.length + " bytes", page.length < 100 * 20 + 4 * 40);
+    }
+
+    @Test public void testEmptyPage() throws Throwable {
+        byte[] page = new CompactObsCodec.Encoder().encode(null, false, new ArrayList<>());
+        CompactObsCodec.Decoder decoder = new CompactObsCodec.Decoder(page);
+        assertNull(decoder.bookmark);
+        assertFalse(decoder.more);
+        assertEquals(0, decoder.readRecords(record -> { throw new AssertionError(); }));
+    }
+
+    @Test public void testJsonIsNotCompact() {
+        assertFalse(CompactObsCodec.isCompact("{\"results\": []}".getBytes(Charsets.UTF_8)));
+        assertFalse(CompactObsCodec.isCompact(new byte[0]));
+    }
+
+    private static CompactObsCodec.Record record(
+        String uuid, Datatype type, long millis, String value) {
+        CompactObsCodec.Record record = new CompactObsCodec.Record();
+        record.uuid = uuid;
+        record.encounterUuid = "enc-" + millis;
+        record.patientUuid = PATIENT;
+        record.providerUuid = PROVIDER;
+        record.conceptUuid = "5088AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+        record.type = type;
+        record.millis = millis;
+        record.value = value;
+        return record;
+    }
+
+    private static CompactObsCodec.Record copy(CompactObsCodec.Record record) {
+        CompactObsCodec.Record copy = new CompactObsCodec.Record();
+        copy.uuid = record.uuid;
+        copy.encounterUuid = record.encounterUuid;
+        copy.patientUuid = record.patientUuid;
+        copy.providerUuid = record.providerUuid;
+        copy.conceptUuid = record.conceptUuid;
+        copy.type = record.type;
+        copy.millis = record.millis;
+        copy.orderUuid = record.orderUuid;
+        copy.value = record.value;
+        copy.voided = record.voided;
+        return copy;
+    }
+}
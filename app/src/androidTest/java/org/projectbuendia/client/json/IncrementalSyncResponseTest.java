@@ -0,0 +1,67 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.json;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalSyncResponseTest {
+    private static final String PAGE = "{\"results\": ["
+        + "{\"uuid\": \"a\", \"instructions\": \"one\", \"voided\": false},"
+        + "{\"uuid\": \"b\", \"instructions\": \"two\", \"voided\": true}"
+        + "], \"bookmark\": \"2019-01-01T00:00:00.000Z\", \"more\": true}";
+
+    @Test public void testParseReadsEnvelopeOnly() throws Exception {
+        IncrementalSyncResponse<JsonOrder> response = IncrementalSyncResponse.parse(bytes(PAGE));
+        assertEquals("2019-01-01T00:00:00.000Z", response.bookmark);
+        assertTrue(response.more);
+    }
+
+    @Test public void testParseWithoutBookmark() throws Exception {
+        IncrementalSyncResponse<JsonOrder> response =
+            IncrementalSyncResponse.parse(bytes("{\"more\": false, \"bookmark\": null, \"results\": []}"));
+        assertNull(response.bookmark);
+        assertFalse(response.more);
+    }
+
+    @Test public void testReadResultsStreamsEachItem() throws Throwable {
+        GsonBuilder builder = new GsonBuilder();
+        Serializers.registerTo(builder);
+        Gson gson = builder.create();
+        final List<JsonOrder> orders = new ArrayList<>();
+
+        IncrementalSyncResponse<JsonOrder> response = IncrementalSyncResponse.parse(bytes(PAGE));
+        response.readResults(gson, JsonOrder.class, orders::add);
+
+        assertEquals(2, orders.size());
+        assertEquals("a", orders.get(0).uuid);
+        assertEquals("one", orders.get(0).instructions);
+        assertFalse(orders.get(0).voided);
+        assertEquals("b", orders.get(1).uuid);
+        assertTrue(orders.get(1).voided);
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(Charsets.UTF_8);
+    }
+}
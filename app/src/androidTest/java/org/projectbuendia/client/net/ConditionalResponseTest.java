@@ -0,0 +1,65 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the validator handling in {@link ConditionalResponse}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConditionalResponseTest {
+    @Test public void testEtagIsPreferredToLastModified() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("last-modified", "Tue, 01 Sep 2015 10:00:00 GMT");
+        headers.put("etag", "\"abc123\"");
+        assertEquals("If-None-Match: \"abc123\"", ConditionalResponse.getValidator(headers));
+    }
+
+    @Test public void testLastModifiedIsUsedWithoutEtag() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Last-Modified", "Tue, 01 Sep 2015 10:00:00 GMT");
+        assertEquals("If-Modified-Since: Tue, 01 Sep 2015 10:00:00 GMT",
+            ConditionalResponse.getValidator(headers));
+    }
+
+    @Test public void testNoValidator() {
+        assertNull(ConditionalResponse.getValidator(new HashMap<>()));
+    }
+
+    @Test public void testValidatorRoundTrip() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("ETag", "W/\"v: 2\"");
+        Map<String, String> requestHeaders = new HashMap<>();
+        ConditionalResponse.addValidatorHeader(
+            requestHeaders, ConditionalResponse.getValidator(headers));
+        assertEquals("W/\"v: 2\"", requestHeaders.get("If-None-Match"));
+        assertEquals(1, requestHeaders.size());
+    }
+
+    @Test public void testNotModified() {
+        ConditionalResponse<String> response = ConditionalResponse.notModified("If-None-Match: x");
+        assertTrue(response.isNotModified());
+        assertNull(response.value);
+    }
+}
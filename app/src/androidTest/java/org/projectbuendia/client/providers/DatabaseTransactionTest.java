@@ -0,0 +1,134 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DatabaseTransaction} on a database in write-ahead-log mode. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseTransactionTest {
+    private static final long WRITER_HOLD_SECONDS = 5;
+
+    private File mFile;
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mFile = new File(getInstrumentation().getTargetContext().getCacheDir(), "transaction-test.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        mDb.enableWriteAheadLogging();
+        mDb.execSQL("CREATE TABLE t (x INTEGER)");
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test public void testRollbackDiscardsWrites() {
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "OUTER")) {
+            mDb.execSQL("INSERT INTO t VALUES (1)");
+            try (DatabaseTransaction inner = new DatabaseTransaction(mDb, "INNER")) {
+                mDb.execSQL("INSERT INTO t VALUES (2)");
+                // Reads on the writing thread see the writes in progress.
+                assertEquals(2, DatabaseUtils.queryNumEntries(mDb, "t"));
+                inner.rollback();
+            }
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "t"));
+    }
+
+    @Test public void testRunAfterCommitWaitsForOutermostTransaction() {
+        List<String> done = new ArrayList<>();
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "OUTER")) {
+            try (DatabaseTransaction inner = new DatabaseTransaction(mDb, "INNER")) {
+                DatabaseTransaction.runAfterCommit(() -> done.add("first"));
+            }
+            DatabaseTransaction.runAfterCommit(() -> done.add("second"));
+            assertTrue(done.isEmpty());
+        }
+        assertEquals(2, done.size());
+        DatabaseTransaction.runAfterCommit(() -> done.add("third"));
+        assertEquals(3, done.size());
+    }
+
+    @Test public void testRollbackDiscardsTasksAddedSinceTheTransactionStarted() {
+        List<String> done = new ArrayList<>();
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "OUTER")) {
+            DatabaseTransaction.runAfterCommit(() -> done.add("outer"));
+            try (DatabaseTransaction inner = new DatabaseTransaction(mDb, "INNER")) {
+                DatabaseTransaction.runAfterCommit(() -> done.add("inner"));
+                inner.rollback();
+            }
+        }
+        assertEquals(Arrays.asList("outer"), done);
+
+        done.clear();
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "OUTER")) {
+            DatabaseTransaction.runAfterCommit(() -> done.add("rolled back"));
+            tx.rollback();
+        }
+        assertTrue(done.isEmpty());
+        // Nothing is left over to run after the next transaction either.
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "NEXT")) { }
+        assertTrue(done.isEmpty());
+    }
+
+    @Test public void testReadsDoNotWaitForAnOpenTransaction() throws Exception {
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try (DatabaseTransaction tx = new DatabaseTransaction(mDb, "WRITER")) {
+                mDb.execSQL("INSERT INTO t VALUES (1)");
+                written.countDown();
+                done.await(WRITER_HOLD_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        written.await();
+
+        long start = SystemClock.elapsedRealtime();
+        long count = DatabaseUtils.queryNumEntries(mDb, "t");
+        long millis = SystemClock.elapsedRealtime() - start;
+        done.countDown();
+        writer.join();
+
+        // With a rollback journal, the read would wait until the writer gave up.
+        assertTrue("Read took " + millis + " ms", millis < WRITER_HOLD_SECONDS * 1000 / 2);
+        assertEquals(0, count);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "t"));
+    }
+}
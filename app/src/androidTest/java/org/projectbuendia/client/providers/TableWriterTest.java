@@ -0,0 +1,86 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Forms;
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+
+/** Tests for {@link TableWriter}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TableWriterTest {
+    private SQLiteDatabase mDb;
+    private TableChangeBus mChangeBus;
+
+    @Before public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE forms (uuid TEXT PRIMARY KEY NOT NULL, name TEXT)");
+        mDb.execSQL("INSERT INTO forms VALUES ('f1', 'Old form')");
+        mChangeBus = new TableChangeBus(getInstrumentation().getTargetContext().getContentResolver());
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    @Test public void testMarkSuccessfulCommits() {
+        try (TableWriter writer = openWriter()) {
+            writer.deleteAll();
+            writer.upsert(form("f2"));
+            writer.markSuccessful();
+        }
+        assertEquals("f2", DatabaseUtils.stringForQuery(mDb, "SELECT uuid FROM forms", null));
+    }
+
+    @Test public void testExceptionMidwayKeepsNothing() {
+        try (TableWriter writer = openWriter()) {
+            writer.deleteAll();
+            writer.upsert(form("f2"));
+            throw new IllegalStateException("sync failed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("f1", DatabaseUtils.stringForQuery(mDb, "SELECT uuid FROM forms", null));
+    }
+
+    @Test public void testCloseWithoutMarkSuccessfulRollsBack() {
+        try (TableWriter writer = openWriter()) {
+            writer.upsert(form("f2"));
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "forms"));
+    }
+
+    private TableWriter openWriter() {
+        return new TableWriter(mDb, mChangeBus, Forms.URI, Table.FORMS, Forms.UUID);
+    }
+
+    private static ContentValues form(String uuid) {
+        ContentValues values = new ContentValues();
+        values.put(Forms.UUID, uuid);
+        values.put(Forms.NAME, "Form " + uuid);
+        return values;
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Patients;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DatabaseMaintenance}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseMaintenanceTest {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        Database helper = new Database(getInstrumentation().getTargetContext());
+        helper.onCreate(mDb);
+        helper.onOpen(mDb);
+        ContentValues patient = new ContentValues();
+        patient.put(Patients.UUID, "p1");
+        patient.put(Patients.GIVEN_NAME, "Mary");
+        mDb.insertOrThrow("patients", null, patient);
+
+        long now = System.currentTimeMillis();
+        insertObservation("recent", null, "p1", now);
+        insertObservation("stale", null, "p1", now - 8 * DAY_MILLIS);
+        insertObservation("no patient", null, "p2", now);
+        insertObservation("synced", "o1", "p1", now - 8 * DAY_MILLIS);
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    /** Tests that only old temporary observations and those of missing patients are pruned. */
+    @Test public void testPrunesOrphanedTemporaryObservations() {
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), DatabaseMaintenance.run(mDb));
+
+        List<String> values = new ArrayList<>();
+        try (Cursor c = mDb.query("observations", new String[] {Observations.VALUE},
+            null, null, null, null, Observations.VALUE)) {
+            while (c.moveToNext()) {
+                values.add(c.getString(0));
+            }
+        }
+        assertEquals(Arrays.asList("recent", "synced"), values);
+    }
+
+    /** Tests that a run turns on incremental vacuum, keeps the search index, and is recorded. */
+    @Test public void testRunIsRecordedAndNotDueAgain() {
+        assertTrue(DatabaseMaintenance.isDue(mDb));
+
+        DatabaseMaintenance.run(mDb);
+
+        assertFalse(DatabaseMaintenance.isDue(mDb));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "patient_search",
+            "patient_search MATCH ?", new String[] {"mary"}));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+            "SELECT pruned_observations FROM maintenance_runs", null));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+            "SELECT observations FROM maintenance_runs", null));
+    }
+
+    /** Tests that a new database gets incremental vacuum without waiting for a maintenance run. */
+    @Test public void testNewDatabaseUsesIncrementalVacuum() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new Database(getInstrumentation().getTargetContext()).onConfigure(db);
+            assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    private void insertObservation(String value, String uuid, String patientUuid, long millis) {
+        ContentValues values = new ContentValues();
+        values.put(Observations.UUID, uuid);
+        values.put(Observations.PATIENT_UUID, patientUuid);
+        values.put(Observations.CONCEPT_UUID, "c1");
+        values.put(Observations.MILLIS, millis);
+        values.put(Observations.VALUE, value);
+        mDb.insertOrThrow("observations", null, values);
+    }
+}
@@ -0,0 +1,155 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+
+/** Tests for the schema migrations in {@link Database}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseMigrationTest {
+    /** The schema at version 38, the oldest version that can be migrated. */
+    private static final String[] VERSION_38_SCHEMA = {
+        "CREATE TABLE bookmarks (table_name TEXT PRIMARY KEY NOT NULL, bookmark TEXT NOT NULL)",
+        "CREATE TABLE chart_items (rowid INTEGER PRIMARY KEY NOT NULL, chart_uuid TEXT,"
+            + " weight INTEGER, section_type TEXT, parent_rowid INTEGER, label TEXT, type TEXT,"
+            + " required INTEGER, concept_uuids TEXT, format TEXT, caption_format TEXT,"
+            + " css_class TEXT, css_style TEXT, script TEXT)",
+        "CREATE TABLE concepts (uuid TEXT PRIMARY KEY NOT NULL, xform_id INTEGER UNIQUE NOT NULL,"
+            + " type TEXT, name TEXT)",
+        "CREATE TABLE forms (uuid TEXT PRIMARY KEY NOT NULL, name TEXT, version TEXT)",
+        "CREATE TABLE locations (uuid TEXT PRIMARY KEY NOT NULL, name TEXT, parent_uuid TEXT)",
+        "CREATE TABLE misc (full_sync_start_millis INTEGER, full_sync_end_millis INTEGER)",
+        "CREATE TABLE observations (uuid TEXT PRIMARY KEY, encounter_uuid TEXT,"
+            + " patient_uuid TEXT, provider_uuid TEXT, concept_uuid TEXT, type STRING,"
+            + " millis INTEGER, order_uuid STRING, value STRING, voided INTEGER,"
+            + " UNIQUE (patient_uuid, encounter_uuid, concept_uuid))",
+        "CREATE TABLE orders (uuid TEXT PRIMARY KEY NOT NULL, patient_uuid TEXT,"
+            + " provider_uuid TEXT, instructions TEXT, start_millis INTEGER, stop_millis INTEGER)",
+        "CREATE TABLE patients (uuid TEXT PRIMARY KEY NOT NULL, id TEXT, given_name TEXT,"
+            + " family_name TEXT, birthdate TEXT, sex TEXT, pregnancy INTEGER,"
+            + " location_uuid TEXT, bed_number TEXT)",
+        "CREATE TABLE users (uuid TEXT PRIMARY KEY NOT NULL, full_name TEXT)"
+    };
+
+    private Database mHelper;
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mHelper = new Database(getInstrumentation().getTargetContext());
+        mDb = SQLiteDatabase.create(null);
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    @Test public void testMigrationKeepsDataAndMatchesNewSchema() {
+        for (String sql : VERSION_38_SCHEMA) mDb.execSQL(sql);
+        mDb.execSQL("INSERT INTO bookmarks VALUES ('observations', '2019-01-01T00:00:00.000Z')");
+        mDb.execSQL("INSERT INTO observations (uuid, patient_uuid, concept_uuid, type, millis, value)"
+            + " VALUES ('o1', 'p1', 'c1', 'NUMERIC', 1000, '37.5')");
+        mDb.execSQL("INSERT INTO patients (uuid, id, given_name, location_uuid)"
+            + " VALUES ('p1', 'KH.1', 'Mary', 'l1')");
+
+        mHelper.onUpgrade(mDb, 38, Database.DATABASE_VERSION);
+
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "bookmarks"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "observations"));
+        assertEquals("37.5", DatabaseUtils.stringForQuery(mDb,
+            "SELECT value_numeric FROM observations", null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "latest_observations"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "patient_search",
+            "patient_search MATCH ?", new String[] {"mar* " + Database.UNKNOWN_NAME_TOKEN}));
+        assertEquals("p1", DatabaseUtils.stringForQuery(mDb, "SELECT uuid FROM patient_search", null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+            "SELECT patient_count FROM patient_counts WHERE location_uuid = 'l1'", null));
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            mHelper.onCreate(fresh);
+            assertEquals(describeSchema(fresh), describeSchema(mDb));
+        } finally {
+            fresh.close();
+        }
+    }
+
+    @Test public void testMigrationDropsReplacedTriggers() {
+        for (String sql : VERSION_38_SCHEMA) mDb.execSQL(sql);
+        mHelper.onUpgrade(mDb, 38, 44);
+        // The trigger that version 44 created, before recursive_triggers replaced it
+        mDb.execSQL("CREATE TRIGGER patients_insert_search_before BEFORE INSERT ON patients"
+            + " BEGIN DELETE FROM patient_search WHERE docid ="
+            + " (SELECT rowid FROM patients WHERE uuid = NEW.uuid); END");
+
+        mHelper.onUpgrade(mDb, 44, Database.DATABASE_VERSION);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sqlite_master",
+            "type = 'trigger' AND name = ?", new String[] {"patients_insert_search_before"}));
+    }
+
+    @Test public void testUpgradeWithoutMigrationStartsOver() {
+        for (String sql : VERSION_38_SCHEMA) mDb.execSQL(sql);
+        mDb.execSQL("INSERT INTO bookmarks VALUES ('observations', '2019-01-01T00:00:00.000Z')");
+
+        mHelper.onUpgrade(mDb, 37, Database.DATABASE_VERSION);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "bookmarks"));
+    }
+
+    /** Lists every table's columns, every index's columns, and every trigger, in a stable order. */
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> lines = new ArrayList<>();
+        for (Table table : Table.values()) {
+            try (Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+                while (c.moveToNext()) {
+                    lines.add(table + "." + c.getString(c.getColumnIndex("name"))
+                        + " " + c.getString(c.getColumnIndex("type")));
+                }
+            }
+        }
+        try (Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'"
+            + " AND name NOT LIKE 'sqlite_%' ORDER BY name", null)) {
+            while (c.moveToNext()) {
+                String index = c.getString(0);
+                try (Cursor info = db.rawQuery("PRAGMA index_info(" + index + ")", null)) {
+                    while (info.moveToNext()) {
+                        lines.add(index + "." + info.getString(info.getColumnIndex("name")));
+                    }
+                }
+            }
+        }
+        try (Cursor c = db.rawQuery(
+            "SELECT name, sql FROM sqlite_master WHERE type = 'trigger' ORDER BY name", null)) {
+            while (c.moveToNext()) {
+                lines.add(c.getString(0) + ": " + c.getString(1));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,245 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.FakeForestFactory;
+import org.projectbuendia.client.filter.db.SimpleSelectionFilter;
+import org.projectbuendia.client.filter.db.SimpleSelectionFilterGroup;
+import org.projectbuendia.client.filter.db.patient.LocationUuidFilter;
+import org.projectbuendia.client.filter.db.patient.PatientDbFilters;
+import org.projectbuendia.client.filter.db.patient.PatientSearchFilter;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.PatientCounts;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.models.LocationForest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the app's queries on the observations, latest_observations,
+ * orders, patients, patient_counts, and patient_search tables read only the
+ * rows they need with the indexes in {@link Database#INDEXES}.  The queries
+ * made by ChartDataHelper, the patient list filters, and the provider's
+ * delegates are captured as they run against an empty database, so the SQL
+ * checked is the SQL the app runs.  Every SCAN in a plan fails the check,
+ * even one that walks an index, unless the query is expected to visit every
+ * row of that table.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseQueryPlanTest {
+    /** Matches a plan step that visits every row of a table or an index. */
+    private static final Pattern SCAN = Pattern.compile("^SCAN (TABLE )?(\\w+)(.*)");
+    /** Matches the rest of a step on the full-text index that looks up terms or docids; index 0 reads every row. */
+    private static final Pattern FULL_TEXT_LOOKUP = Pattern.compile(" VIRTUAL TABLE INDEX [1-9][0-9]*:.*");
+
+    private final List<String> mQueries = new ArrayList<>();
+    private SQLiteDatabase mDb;
+    private BuendiaProvider mProvider;
+    private ChartDataHelper mChartDataHelper;
+
+    @Before public void setUp() {
+        // Every query the app makes through mDb is recorded as its cursor is created.
+        mDb = SQLiteDatabase.create((db, driver, editTable, query) -> {
+            mQueries.add(query.toString().replaceFirst("^SQLiteQuery: ", ""));
+            return new SQLiteCursor(driver, editTable, query);
+        });
+        Context context = getInstrumentation().getTargetContext();
+        Database database = new Database(context) {
+            @Override public SQLiteDatabase getReadableDatabase() {
+                return mDb;
+            }
+
+            @Override public SQLiteDatabase getWritableDatabase() {
+                return mDb;
+            }
+        };
+        database.onCreate(mDb);
+        mProvider = new BuendiaProvider() {
+            @Override protected Database createDatabaseHelper() {
+                return database;
+            }
+        };
+        mProvider.attachInfo(context, null);
+        mChartDataHelper = new ChartDataHelper(context.getContentResolver()) {
+            @Override protected Cursor query(Uri uri, String[] projection,
+                String selection, String[] selectionArgs, String sortOrder) {
+                return mProvider.query(uri, projection, selection, selectionArgs, sortOrder);
+            }
+        };
+        mQueries.clear();
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    @Test public void testChartDataHelperQueries() {
+        mChartDataHelper.getOrders("p");
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getObservations("p");
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getPatientObservations("p", new String[] {"c1", "c2"}, 0L, 1L);
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getPatientObservations("p", null, null, null);
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getObsAggregates("p", "c", Observations.VALUE_NUMERIC, 0L, 1L);
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getLatestObservations("p");
+        assertRecordedQueriesScanOnly();
+        mChartDataHelper.getLatestObservationsForConcept("c");
+        assertRecordedQueriesScanOnly();
+    }
+
+    @Test public void testPatientListQueries() {
+        // The patient list with each filter alone, as AppModel.loadPatients runs it
+        LocationForest forest = FakeForestFactory.build();
+        SimpleSelectionFilter<?> rootFilter =
+            new LocationUuidFilter(forest, forest.get(FakeForestFactory.ROOT_UUID));
+        for (SimpleSelectionFilter<?> filter : PatientDbFilters.getFiltersForDisplay(forest)) {
+            if (filter == null) continue;  // a section break
+            queryPatients(filter);
+            assertRecordedQueriesScanOnly();
+            // Within the root location and with a search query, as PatientSearchController runs it
+            queryPatients(new SimpleSelectionFilterGroup(
+                new SimpleSelectionFilterGroup(rootFilter, filter), new PatientSearchFilter("kh 23")));
+            assertRecordedQueriesScanOnly();
+        }
+        // The default filter lists every patient, so it has to visit every row.
+        queryPatients(PatientDbFilters.getDefaultFilter());
+        assertRecordedQueriesScanOnly(Table.PATIENTS.name);
+    }
+
+    @Test public void testProviderQueries() {
+        // ItemProviderDelegate, by key
+        mProvider.query(Patients.URI.buildUpon().appendPath("p").build(), null, null, null, null);
+        assertRecordedQueriesScanOnly();
+        // PatientCountsDelegate, as LocationForestProvider runs it; there is one row per location.
+        mProvider.query(PatientCounts.URI, null, null, null, null);
+        assertRecordedQueriesScanOnly(Table.PATIENT_COUNTS.name);
+    }
+
+    @Test public void testDenormalizationQueries() {
+        // PatientDenormalizer and DenormalizeObsTask.getLatestValue
+        assertScansOnly("SELECT value FROM observations"
+            + " WHERE patient_uuid = ? AND concept_uuid = ? AND voided IS NOT 1"
+            + " ORDER BY millis DESC LIMIT 1");
+        assertScansOnly("UPDATE patients SET location_uuid = ?, bed_number = ? WHERE uuid = ?");
+    }
+
+    @Test public void testSyncQueries() {
+        // TableWriter, by key
+        assertScansOnly("DELETE FROM observations WHERE uuid = ?");
+        // Lookups by patient ID (FetchPatientTask, GoToPatientDialogFragment)
+        assertScansOnly("SELECT * FROM patients WHERE id = ?");
+        // ObservationsSyncWorker's removal of temporary observations
+        assertScansOnly("DELETE FROM observations WHERE uuid IS NULL");
+        assertScansOnly("DELETE FROM observations WHERE uuid IS NULL AND patient_uuid = ?");
+        // DatabaseMaintenance's pruning of orphaned temporary observations, which
+        // has to list every patient to find the orphans
+        assertScansOnly("DELETE FROM observations WHERE uuid IS NULL AND (millis < ?"
+            + " OR patient_uuid NOT IN (SELECT uuid FROM patients))", "patients");
+        // EncounterUuidFilter
+        assertScansOnly("SELECT * FROM observations WHERE encounter_uuid = ?");
+    }
+
+    @Test public void testLatestObservationTriggers() {
+        // The statements run by Database.TRIGGERS for every write to observations
+        assertScansOnly("DELETE FROM latest_observations WHERE patient_uuid = ? AND concept_uuid = ?");
+        assertScansOnly("SELECT * FROM observations WHERE patient_uuid = ? AND concept_uuid = ?"
+            + " AND voided IS NOT 1 ORDER BY millis DESC LIMIT 1");
+    }
+
+    @Test public void testPatientCountTriggers() {
+        // The statements run by Database.TRIGGERS when a patient is added, moved, or removed
+        assertScansOnly("INSERT INTO patient_counts (location_uuid, patient_count)"
+            + " SELECT ?, 0 WHERE ? IS NOT NULL"
+            + " AND NOT EXISTS (SELECT 1 FROM patient_counts WHERE location_uuid = ?)");
+        assertScansOnly("UPDATE patient_counts SET patient_count = patient_count + 1"
+            + " WHERE location_uuid = ?");
+        assertScansOnly("DELETE FROM patient_counts WHERE location_uuid = ? AND patient_count <= 0");
+    }
+
+    @Test public void testPatientSearchTriggers() {
+        // The statements run by Database.TRIGGERS when a patient is changed or
+        // removed; the uuid column isn't indexed, so they read every entry.
+        assertScansOnly("DELETE FROM patient_search WHERE uuid = ?", Table.PATIENT_SEARCH.name);
+        assertScansOnly("UPDATE patient_search SET uuid = ?, terms = ? WHERE uuid = ?",
+            Table.PATIENT_SEARCH.name);
+    }
+
+    private void queryPatients(SimpleSelectionFilter<?> filter) {
+        mProvider.query(Patients.URI, null,
+            filter.getSelectionString(), filter.getSelectionArgs(""), null);
+    }
+
+    /** Checks the plans of the queries recorded since the last check. */
+    private void assertRecordedQueriesScanOnly(String... expectedTables) {
+        List<String> queries = new ArrayList<>(mQueries);
+        assertFalse("No queries were recorded", queries.isEmpty());
+        for (String sql : queries) assertScansOnly(sql, expectedTables);
+        mQueries.clear();
+    }
+
+    /**
+     * Fails if the plan for the statement scans anything other than the given
+     * tables.  Constant rows and term lookups in the full-text index are not scans.
+     */
+    private void assertScansOnly(String sql, String... expectedTables) {
+        String[] args = new String[sql.length() - sql.replace("?", "").length()];
+        Arrays.fill(args, "x");
+        List<String> expected = Arrays.asList(expectedTables);
+        StringBuilder plan = new StringBuilder();
+        List<String> unexpected = new ArrayList<>();
+        try (Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            while (c.moveToNext()) {
+                // The last column is the description of the step in every SQLite version.
+                String detail = c.getString(c.getColumnCount() - 1);
+                plan.append("\n  ").append(detail);
+                Matcher scan = SCAN.matcher(detail);
+                if (!scan.matches()) continue;
+                String table = scan.group(2);
+                if (table.equals("CONSTANT") || expected.contains(table)) continue;
+                if (table.equals(Table.PATIENT_SEARCH.name)
+                    && FULL_TEXT_LOOKUP.matcher(scan.group(3)).matches()) continue;
+                unexpected.add(detail);
+            }
+        }
+        mQueries.clear();  // the EXPLAIN itself was recorded
+        if (!unexpected.isEmpty()) {
+            fail("Unexpected " + unexpected + " in the plan for " + sql + plan);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for {@link DatabaseSnapshot#verifyDatabase}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseSnapshotTest {
+    private File mFile;
+
+    @Before public void setUp() {
+        mFile = new File(getInstrumentation().getTargetContext().getCacheDir(), "snapshot-test.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @After public void tearDown() {
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test public void testAcceptsCurrentDatabase() throws IOException {
+        // Given a database created with the current schema
+        createDatabase(Database.DATABASE_VERSION, null);
+
+        // When it is verified, then nothing is thrown
+        DatabaseSnapshot.verifyDatabase(mFile);
+    }
+
+    @Test public void testRejectsFileThatIsNotADatabase() throws IOException {
+        // Given a file that is not a SQLite database
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write("<html>502 Bad Gateway</html>".getBytes("UTF-8"));
+        }
+
+        // When it is verified, then it is rejected
+        assertRejected("not a SQLite database");
+    }
+
+    @Test public void testRejectsOtherSchemaVersion() throws IOException {
+        // Given a database with an older schema version
+        createDatabase(Database.DATABASE_VERSION - 1, null);
+
+        // When it is verified, then it is rejected
+        assertRejected("schema version");
+    }
+
+    @Test public void testRejectsMissingTable() throws IOException {
+        // Given a database that lacks one of the app's tables
+        createDatabase(Database.DATABASE_VERSION, "DROP TABLE users");
+
+        // When it is verified, then it is rejected
+        assertRejected("users table");
+    }
+
+    @Test public void testRejectsMissingTrigger() throws IOException {
+        // Given a database that lacks one of the triggers that maintain derived tables
+        createDatabase(Database.DATABASE_VERSION, "DROP TRIGGER observations_insert_latest");
+
+        // When it is verified, then it is rejected
+        assertRejected("observations_insert_latest trigger");
+    }
+
+    /** Creates the current schema in the file, runs an optional statement, and sets the version. */
+    private void createDatabase(int version, String sql) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        try {
+            new Database(getInstrumentation().getTargetContext()).onCreate(db);
+            if (sql != null) db.execSQL(sql);
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertRejected(String expectedMessagePart) {
+        try {
+            DatabaseSnapshot.verifyDatabase(mFile);
+            fail("Expected the snapshot to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expectedMessagePart));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Observations;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests for the triggers in {@link Database#TRIGGERS} that maintain latest_observations. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DatabaseTriggersTest {
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        Database helper = new Database(getInstrumentation().getTargetContext());
+        helper.onCreate(mDb);
+        helper.onOpen(mDb);  // turns on recursive_triggers
+    }
+
+    @After public void tearDown() {
+        mDb.close();
+    }
+
+    @Test public void testOlderObservationArrivingLaterDoesNotReplaceLatest() {
+        // Given the newer observation is stored first
+        insertObservation("new", "e2", "c1", 2000, "38.5");
+
+        // When an older observation of the same concept arrives
+        insertObservation("old", "e1", "c1", 1000, "37.5");
+
+        // Then the newer one is still the latest
+        assertEquals("38.5", getLatestValue("c1"));
+    }
+
+    @Test public void testVoidingLatestFallsBackToPrevious() {
+        // Given two observations of a concept
+        insertObservation("old", "e1", "c1", 1000, "37.5");
+        insertObservation("new", "e2", "c1", 2000, "38.5");
+
+        // When the latest one is voided
+        ContentValues values = new ContentValues();
+        values.put(Observations.VOIDED, 1);
+        mDb.update("observations", values, "uuid = ?", new String[] {"new"});
+
+        // Then the previous one becomes the latest
+        assertEquals("37.5", getLatestValue("c1"));
+    }
+
+    @Test public void testDeletingTemporaryObservationsFallsBackToSynced() {
+        // Given a synced observation and a newer temporary one, as cached from a form
+        insertObservation("synced", "e1", "c1", 1000, "37.5");
+        insertObservation(null, "e2", "c1", 2000, "38.5");
+        insertObservation(null, "e2", "c2", 2000, "yes");
+        assertEquals("38.5", getLatestValue("c1"));
+
+        // When the temporary observations are removed, as a sync does
+        mDb.execSQL("DELETE FROM observations WHERE uuid IS NULL");
+
+        // Then the synced one is the latest again, and a concept with none left has no latest
+        assertEquals("37.5", getLatestValue("c1"));
+        assertNull(getLatestValue("c2"));
+    }
+
+    @Test public void testReplacingObservationRefreshesBothConcepts() {
+        // Given an observation of one concept
+        insertObservation("o1", "e1", "c1", 1000, "37.5");
+
+        // When INSERT OR REPLACE stores the same UUID under another concept, as a sync does
+        ContentValues values = observation("o1", "e1", "c2", 1000, "120");
+        mDb.insertWithOnConflict("observations", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        // Then the deleted row's delete trigger ran too, so the old concept has no latest
+        assertNull(getLatestValue("c1"));
+        assertEquals("120", getLatestValue("c2"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "latest_observations"));
+    }
+
+    private void insertObservation(
+        String uuid, String encounterUuid, String conceptUuid, long millis, String value) {
+        mDb.insertOrThrow("observations", null,
+            observation(uuid, encounterUuid, conceptUuid, millis, value));
+    }
+
+    private static ContentValues observation(
+        String uuid, String encounterUuid, String conceptUuid, long millis, String value) {
+        ContentValues values = new ContentValues();
+        values.put(Observations.UUID, uuid);
+        values.put(Observations.ENCOUNTER_UUID, encounterUuid);
+        values.put(Observations.PATIENT_UUID, "p1");
+        values.put(Observations.CONCEPT_UUID, conceptUuid);
+        values.put(Observations.MILLIS, millis);
+        values.put(Observations.VALUE, value);
+        values.put(Observations.VOIDED, 0);
+        return values;
+    }
+
+    private String getLatestValue(String conceptUuid) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT max(value)"
+            + " FROM latest_observations WHERE patient_uuid = 'p1' AND concept_uuid = ?",
+            new String[] {conceptUuid});
+    }
+}
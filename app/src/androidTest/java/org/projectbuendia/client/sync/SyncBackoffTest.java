@@ -0,0 +1,68 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncBackoffTest {
+    /** A Random that always returns the same value from nextDouble(). */
+    private static class FixedRandom extends Random {
+        final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override public double nextDouble() {
+            return value;
+        }
+    }
+
+    @Test public void testNoDelayBeforeFailures() {
+        SyncBackoff backoff = new SyncBackoff(new FixedRandom(0));
+        assertEquals(0, backoff.getDelayMillis(1000));
+    }
+
+    @Test public void testDelayDoublesUpToMaximum() {
+        SyncBackoff backoff = new SyncBackoff(new FixedRandom(0));
+        backoff.onFailure(0);
+        assertEquals(SyncBackoff.BASE_DELAY_MILLIS, backoff.getDelayMillis(0));
+        backoff.onFailure(0);
+        assertEquals(2 * SyncBackoff.BASE_DELAY_MILLIS, backoff.getDelayMillis(0));
+        for (int i = 0; i < 40; i++) backoff.onFailure(0);
+        assertEquals(SyncBackoff.MAX_DELAY_MILLIS, backoff.getDelayMillis(0));
+    }
+
+    @Test public void testJitterShortensDelayByAtMostHalf() {
+        SyncBackoff backoff = new SyncBackoff(new FixedRandom(0.999));
+        backoff.onFailure(0);
+        long delay = backoff.getDelayMillis(0);
+        assertTrue("delay " + delay, delay > SyncBackoff.BASE_DELAY_MILLIS / 2);
+        assertTrue("delay " + delay, delay < SyncBackoff.BASE_DELAY_MILLIS);
+    }
+
+    @Test public void testDelayCountsDownAndSuccessEndsBackoff() {
+        SyncBackoff backoff = new SyncBackoff(new FixedRandom(0));
+        backoff.onFailure(1000);
+        assertEquals(SyncBackoff.BASE_DELAY_MILLIS - 2000, backoff.getDelayMillis(3000));
+        assertEquals(0, backoff.getDelayMillis(1000 + SyncBackoff.BASE_DELAY_MILLIS));
+        backoff.onFailure(0);
+        backoff.onSuccess();
+        assertEquals(0, backoff.getFailures());
+        assertEquals(0, backoff.getDelayMillis(0));
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncTelemetryTest {
+    private static final List<Long> TEN = ImmutableList.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L);
+
+    @Test public void testPercentileNearestRank() {
+        assertEquals(5, SyncTelemetry.percentile(TEN, 50));
+        assertEquals(9, SyncTelemetry.percentile(TEN, 90));
+        assertEquals(10, SyncTelemetry.percentile(TEN, 99));
+        assertEquals(10, SyncTelemetry.percentile(TEN, 100));
+    }
+
+    @Test public void testPercentileOfOneValue() {
+        List<Long> one = ImmutableList.of(42L);
+        assertEquals(42, SyncTelemetry.percentile(one, 0));
+        assertEquals(42, SyncTelemetry.percentile(one, 50));
+        assertEquals(42, SyncTelemetry.percentile(one, 99));
+    }
+}
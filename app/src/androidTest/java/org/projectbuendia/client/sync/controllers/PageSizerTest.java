@@ -0,0 +1,98 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync.controllers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageSizerTest {
+    /**
+     * A stand-in for the server: each page takes a fixed round trip plus a
+     * fixed time per item, and times out after OpenMrsServer.TIMEOUT_SECONDS.
+     */
+    private static class FakeServer {
+        final long roundTripMillis;
+        final double millisPerItem;
+        final int bytesPerItem;
+        final int itemsAvailable;
+
+        FakeServer(long roundTripMillis, double millisPerItem, int bytesPerItem, int itemsAvailable) {
+            this.roundTripMillis = roundTripMillis;
+            this.millisPerItem = millisPerItem;
+            this.bytesPerItem = bytesPerItem;
+            this.itemsAvailable = itemsAvailable;
+        }
+
+        /** Fetches one page, reporting the outcome to the sizer; returns the latency. */
+        long fetch(PageSizer sizer) {
+            int limit = sizer.getSize();
+            int count = Math.min(limit, itemsAvailable);
+            long latency = roundTripMillis + (long) (count * millisPerItem);
+            if (latency > 10000) {
+                sizer.onTimeout(limit);
+            } else {
+                sizer.onSuccess(limit, count, (long) count * bytesPerItem, latency);
+            }
+            return latency;
+        }
+    }
+
+    @Test public void testGrowsOnFastNetwork() {
+        PageSizer sizer = new PageSizer(0);
+        assertEquals(PageSizer.DEFAULT_SIZE, sizer.getSize());
+        FakeServer server = new FakeServer(50, 0.01, 200, Integer.MAX_VALUE);
+        for (int i = 0; i < 10; i++) server.fetch(sizer);
+        assertEquals(PageSizer.MAX_SIZE, sizer.getSize());
+    }
+
+    @Test public void testConvergesToTargetLatencyOnSlowNetwork() {
+        PageSizer sizer = new PageSizer(PageSizer.MAX_SIZE);
+        FakeServer server = new FakeServer(300, 5, 200, Integer.MAX_VALUE);
+        long latency = 0;
+        for (int i = 0; i < 20; i++) latency = server.fetch(sizer);
+        assertTrue("latency " + latency, latency <= PageSizer.TARGET_LATENCY_MILLIS);
+        assertTrue("size " + sizer.getSize(), sizer.getSize() >= 200);
+    }
+
+    @Test public void testBacksOffOnTimeout() {
+        PageSizer sizer = new PageSizer(4000);
+        sizer.onTimeout(4000);
+        assertEquals(2000, sizer.getSize());
+        sizer.onTimeout(60);
+        assertEquals(PageSizer.MIN_SIZE, sizer.getSize());
+    }
+
+    @Test public void testRecoversAfterTimeouts() {
+        PageSizer sizer = new PageSizer(PageSizer.MAX_SIZE);
+        FakeServer server = new FakeServer(1000, 3, 200, Integer.MAX_VALUE);
+        server.fetch(sizer);  // 5000 items take 16 s, so this times out
+        assertEquals(PageSizer.MAX_SIZE / 2, sizer.getSize());
+        for (int i = 0; i < 20; i++) server.fetch(sizer);
+        assertTrue(server.fetch(sizer) <= PageSizer.TARGET_LATENCY_MILLIS);
+    }
+
+    @Test public void testLimitsPayloadSize() {
+        PageSizer sizer = new PageSizer(PageSizer.MAX_SIZE);
+        FakeServer server = new FakeServer(10, 0.01, 20 * 1024, Integer.MAX_VALUE);
+        server.fetch(sizer);
+        assertEquals(PageSizer.MAX_PAGE_BYTES / (20 * 1024), sizer.getSize());
+    }
+
+    @Test public void testShortPagesDoNotGrowSize() {
+        PageSizer sizer = new PageSizer(500);
+        FakeServer server = new FakeServer(50, 0.01, 200, 20);
+        for (int i = 0; i < 5; i++) server.fetch(sizer);
+        assertEquals(500, sizer.getSize());
+    }
+}
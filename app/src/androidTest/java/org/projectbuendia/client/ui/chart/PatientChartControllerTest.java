@@ -30,6 +30,7 @@ import org.projectbuendia.client.events.FetchXformSucceededEvent;
 import org.projectbuendia.client.events.SubmitXformFailedEvent;
 import org.projectbuendia.client.events.SubmitXformSucceededEvent;
 import org.projectbuendia.client.events.data.ItemLoadedEvent;
+import org.projectbuendia.client.events.sync.PatientSyncSucceededEvent;
 import org.projectbuendia.client.json.Datatype;
 import org.projectbuendia.models.AppModel;
 import org.projectbuendia.models.Chart;
@@ -51,6 +52,7 @@ import java.util.Map;
 import androidx.test.filters.SmallTest;
 
 import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -255,6 +257,24 @@ public final class PatientChartControllerTest {
         verify(mMockUi).showFormSubmissionDialog(false);
     }
 
+    /** Tests that a patient sync refreshes the chart only if it was for the open patient. */
+    @Test
+    @UiThreadTest
+    public void testPatientSyncSucceeded_UpdatesObservationsOfOpenPatient() {
+        // GIVEN controller is initialized
+        mController.init();
+        // WHEN another patient's data is synced
+        mFakeGlobalEventBus.post(new PatientSyncSucceededEvent("other-patient-uuid"));
+        // THEN the chart is not updated
+        verify(mMockUi, never()).updateTilesAndGrid(
+            mFakeChart, ImmutableMap.of(), ImmutableList.of(), ImmutableList.of());
+        // WHEN the open patient's data is synced
+        mFakeGlobalEventBus.post(new PatientSyncSucceededEvent(PATIENT_UUID_1));
+        // THEN the chart is updated
+        verify(mMockUi).updateTilesAndGrid(
+            mFakeChart, ImmutableMap.of(), ImmutableList.of(), ImmutableList.of());
+    }
+
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
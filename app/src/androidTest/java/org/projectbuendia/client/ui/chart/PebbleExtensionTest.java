@@ -24,7 +24,9 @@ import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.projectbuendia.models.ObsValue;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -53,6 +55,17 @@ public class PebbleExtensionTest   {
         assertThat(result, is(equalTo("12:00")));
     }
 
+    @Test
+    @UiThreadTest
+    public void testAvgFilter_mustAverageNumericValuesOfCollection() throws Exception {
+        Filter filter = new PebbleExtension.AvgFilter();
+
+        Object result = filter.apply(Arrays.asList(
+            ObsValue.newNumber(60), ObsValue.newNumber(90), ObsValue.newText("n/a")), mArgs);
+
+        assertThat(result, is(equalTo((Object) 75.0)));
+    }
+
     @Before
     public void setup() {
 
@@ -17,6 +17,7 @@ import android.support.test.runner.AndroidJUnit4;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.projectbuendia.client.FakeForestFactory;
@@ -39,8 +40,10 @@ import androidx.test.filters.SmallTest;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -67,7 +70,7 @@ public class PatientSearchControllerTest {
         mFakeGlobalEventBus.post(new SyncSucceededEvent());
         // THEN results should be reloaded
         verify(mMockAppModel).loadPatients(
-            any(CrudEventBus.class), any(SimpleSelectionFilter.class), anyString());
+            any(CrudEventBus.class), any(SimpleSelectionFilter.class), anyString(), anyInt());
     }
 
     /** Tests that results are reloaded when a sync event occurs. */
@@ -90,13 +93,52 @@ public class PatientSearchControllerTest {
         initController(false);
         mController.loadSearchResults();
         // WHEN patients are retrieved
-        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // THEN patients are passed to fragment UI's
         verify(mFragmentMockUi).setPatients(any(TypedCursor.class), FakeForestFactory.build());
     }
 
+    /** Tests that a load that never finishes doesn't hide the results of later loads. */
+    @Test
+    @UiThreadTest
+    public void testFilterSubscriber_showsNewestResultsAfterLostLoad() {
+        // GIVEN initialized PatientSearchController whose first load never finishes
+        initController(false);
+        mController.loadSearchResults();
+        // WHEN a second load finishes
+        mController.loadSearchResults();
+        mFakeCrudEventBus.post(createLoadedEvent());
+        // THEN its patients are shown
+        verify(mMockUi).setPatients(any(TypedCursor.class));
+    }
+
+    /** Tests that the results of an older load are closed instead of shown. */
+    @Test
+    @UiThreadTest
+    public void testFilterSubscriber_dropsStaleResults() {
+        // GIVEN initialized PatientSearchController with two loads started
+        initController(false);
+        mController.loadSearchResults();
+        mController.loadSearchResults();
+        // WHEN the first load finishes
+        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
+            Patient.class, getFakeAppPatientCursor(), 1);
+        mFakeCrudEventBus.post(event);
+        // THEN its patients are not shown, and its cursor is closed
+        verify(mMockUi, times(0)).setPatients(any(TypedCursor.class));
+        assertTrue(((FakeTypedCursor<Patient>) event.cursor).isClosed());
+    }
+
+    /** Creates the event for the newest load that the controller started. */
+    private TypedCursorLoadedEvent createLoadedEvent() {
+        ArgumentCaptor<Integer> sequence = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockAppModel, atLeastOnce()).loadPatients(
+            any(CrudEventBus.class), any(SimpleSelectionFilter.class), anyString(), sequence.capture());
+        return TypedCursorLoadedEventFactory.createEvent(
+            Patient.class, getFakeAppPatientCursor(), sequence.getValue());
+    }
+
     private TypedCursor<Patient> getFakeAppPatientCursor() {
         Patient patient = new Patient("", "", "Given", "Family", Sex.OTHER, null, false, "", "");
         return new FakeTypedCursor<>(new Patient[] {patient});
@@ -110,8 +152,7 @@ public class PatientSearchControllerTest {
         initController(false);
         mController.loadSearchResults();
         // WHEN patients are retrieved
-        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // THEN patients are passed to activity UI
         verify(mMockUi).setPatients(any(TypedCursor.class));
@@ -124,13 +165,11 @@ public class PatientSearchControllerTest {
         // GIVEN initialized PatientSearchController with existing results
         initController(false);
         mController.loadSearchResults();
-        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // WHEN new results are retrieved
         mController.loadSearchResults();
-        TypedCursorLoadedEvent reloadEvent = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent reloadEvent = createLoadedEvent();
         mFakeCrudEventBus.post(reloadEvent);
         // THEN old patients cursor is closed
         assertTrue(((FakeTypedCursor<Patient>) event.cursor).isClosed());
@@ -143,8 +182,7 @@ public class PatientSearchControllerTest {
         // GIVEN initialized PatientSearchController with existing results
         initController(false);
         mController.loadSearchResults();
-        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // WHEN controller is suspended
         mController.suspend();
@@ -170,16 +208,14 @@ public class PatientSearchControllerTest {
         // GIVEN initialized PatientSearchController with existing results
         initController(false);
         mController.loadSearchResults();
-        TypedCursorLoadedEvent event = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // WHEN a suspend()/init() cycle occurs
         mController.suspend();
         mController.init();
         // THEN search results can be loaded successfully
         mController.loadSearchResults();
-        TypedCursorLoadedEvent reloadEvent = TypedCursorLoadedEventFactory.createEvent(
-            Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent reloadEvent = createLoadedEvent();
         mFakeCrudEventBus.post(reloadEvent);
         verify(mFragmentMockUi, times(2)).setPatients(any(TypedCursor.class), FakeForestFactory.build());
     }
@@ -201,7 +237,8 @@ public class PatientSearchControllerTest {
             any(CrudEventBus.class),
             argThat(new SimpleSelectionFilterMatchers.IsFilterGroupWithLocationFilter(
                 FakeForestFactory.TRIAGE_ZONE_UUID)),
-            anyString());
+            anyString(),
+            anyInt());
     }
 
     /** Tests that the spinner is shown when loadSearchResults() is called. */
@@ -236,9 +273,7 @@ public class PatientSearchControllerTest {
         initController(false);
         mController.loadSearchResults();
         // WHEN patients are retrieved
-        TypedCursorLoadedEvent event =
-            TypedCursorLoadedEventFactory.createEvent(
-                Patient.class, getFakeAppPatientCursor());
+        TypedCursorLoadedEvent event = createLoadedEvent();
         mFakeCrudEventBus.post(event);
         // THEN patients are passed to fragment UI's
         verify(mFragmentMockUi).showSpinner(false);
@@ -254,7 +289,7 @@ public class PatientSearchControllerTest {
         mController.onQuerySubmitted("foo");
         // THEN results are requested with that search term
         verify(mMockAppModel).loadPatients(
-            mFakeCrudEventBus, PatientDbFilters.getDefaultFilter(), "foo");
+            mFakeCrudEventBus, PatientDbFilters.getDefaultFilter(), "foo", 1);
     }
 
     @Before
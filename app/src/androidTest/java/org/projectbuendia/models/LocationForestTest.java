@@ -0,0 +1,64 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.models;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.FakeForestFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.projectbuendia.client.FakeForestFactory.ROOT_UUID;
+import static org.projectbuendia.client.FakeForestFactory.SUSPECT_1_UUID;
+import static org.projectbuendia.client.FakeForestFactory.SUSPECT_2_UUID;
+import static org.projectbuendia.client.FakeForestFactory.SUSPECT_ZONE_UUID;
+import static org.projectbuendia.client.FakeForestFactory.TRIAGE_ZONE_UUID;
+
+/** Tests for the patient counts kept by {@link LocationForest}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LocationForestTest {
+    /** Tests that new counts reach every ancestor, including when a location empties. */
+    @Test public void testUpdatePatientCounts() {
+        LocationForest forest = FakeForestFactory.build();
+
+        forest.updatePatientCounts(ImmutableMap.of(SUSPECT_1_UUID, 3, TRIAGE_ZONE_UUID, 2));
+        assertEquals(3, forest.countPatientsIn(forest.get(SUSPECT_ZONE_UUID)));
+        assertEquals(5, forest.countPatientsIn(forest.get(ROOT_UUID)));
+        assertEquals(5, forest.countAllPatients());
+
+        forest.updatePatientCounts(ImmutableMap.of(SUSPECT_1_UUID, 3, SUSPECT_2_UUID, 1));
+        assertEquals(0, forest.countPatientsAt(forest.get(TRIAGE_ZONE_UUID)));
+        assertEquals(4, forest.countPatientsIn(forest.get(SUSPECT_ZONE_UUID)));
+        assertEquals(4, forest.countPatientsIn(forest.get(ROOT_UUID)));
+        assertEquals(4, forest.countAllPatients());
+    }
+
+    /** Tests that the listener hears only about updates that change a count. */
+    @Test public void testListenerRunsOnlyWhenCountsChange() {
+        LocationForest forest = FakeForestFactory.build();
+        int[] runs = {0};
+        forest.setOnPatientCountsUpdatedListener(() -> runs[0]++);
+
+        forest.updatePatientCounts(ImmutableMap.of());
+        assertEquals(0, runs[0]);
+        forest.updatePatientCounts(ImmutableMap.of(SUSPECT_1_UUID, 1));
+        assertEquals(1, runs[0]);
+        forest.updatePatientCounts(ImmutableMap.of(SUSPECT_1_UUID, 1));
+        assertEquals(1, runs[0]);
+    }
+}
@@ -160,6 +160,31 @@ public class AppSettings {
             resources.getString(R.string.starting_patient_id_default)).trim();
     }
 
+    /**
+     * Returns true if each sync page should be committed along with its bookmark.
+     * If false, a sync is one transaction, and other writes wait until it ends.
+     */
+    public boolean getSyncResumable() {
+        return prefs.getBoolean("sync_resumable",
+            resources.getBoolean(R.bool.sync_resumable_default));
+    }
+
+    /** Returns true if a tablet with no data should start from a snapshot of the server's database. */
+    public boolean getSyncSnapshotBootstrap() {
+        return prefs.getBoolean("sync_snapshot_bootstrap",
+            resources.getBoolean(R.bool.sync_snapshot_bootstrap_default));
+    }
+
+    /** Gets the page size last chosen for syncing the given resource type, or 0 if none. */
+    public int getSyncPageSize(String resourceType) {
+        return prefs.getInt("sync_page_size_" + resourceType, 0);
+    }
+
+    /** Remembers the page size chosen for syncing the given resource type. */
+    public void setSyncPageSize(String resourceType, int size) {
+        prefs.edit().putInt("sync_page_size_" + resourceType, size).apply();
+    }
+
     /** Returns true if periodic sync has been disabled in the settings. */
     public boolean getPeriodicSyncDisabled() {
         return prefs.getBoolean("periodic_sync_disabled",
@@ -241,6 +266,15 @@ public class AppSettings {
             resources.getInteger(R.integer.large_sync_interval_default));
     }
 
+    /**
+     * Gets the number of incremental sync pages to request ahead of the page
+     * currently being written to the database; zero disables prefetching.
+     */
+    public int getSyncPagesInFlight() {
+        return Math.max(0, prefs.getInt("sync_pages_in_flight",
+            resources.getInteger(R.integer.sync_pages_in_flight_default)));
+    }
+
     /** Gets the setting for whether to fabricate responses when the server fails. */
     public boolean getServerResponsesFabricated() {
         return prefs.getBoolean("server_responses_fabricated", false);
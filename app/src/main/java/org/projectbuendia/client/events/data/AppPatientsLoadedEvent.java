@@ -22,8 +22,12 @@ import org.projectbuendia.models.TypedCursor;
  */
 public class AppPatientsLoadedEvent extends TypedCursorLoadedEvent<Patient> {
 
-    AppPatientsLoadedEvent(TypedCursor<Patient> cursor) {
+    /** The sequence number that was passed to the load that produced this event. */
+    public final int sequence;
+
+    AppPatientsLoadedEvent(TypedCursor<Patient> cursor, int sequence) {
         super(cursor);
+        this.sequence = sequence;
     }
 }
 
@@ -18,15 +18,17 @@ import org.projectbuendia.models.TypedCursor;
 public class TypedCursorLoadedEventFactory {
 
     /**
-     * Creates a {@link TypedCursorLoadedEvent} for the specified data type and cursor.
+     * Creates a {@link TypedCursorLoadedEvent} for the specified data type and cursor,
+     * with the sequence number of the load that produced it.
      * @throws IllegalArgumentException if {@code clazz} is unknown
      */
     @SuppressWarnings("unchecked") // Types checked by code.
     public static <T> TypedCursorLoadedEvent<?> createEvent(
         Class<T> clazz,
-        TypedCursor<T> cursor) {
+        TypedCursor<T> cursor,
+        int sequence) {
         if (clazz.equals(Patient.class)) {
-            return new AppPatientsLoadedEvent((TypedCursor<Patient>) cursor);
+            return new AppPatientsLoadedEvent((TypedCursor<Patient>) cursor, sequence);
         } else {
             throw new IllegalArgumentException(
                 "Unable to create an event for unknown type " + clazz.getName());
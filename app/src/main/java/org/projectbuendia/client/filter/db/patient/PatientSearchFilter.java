@@ -0,0 +1,83 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.db.patient;
+
+import com.google.common.base.Joiner;
+
+import org.projectbuendia.client.filter.db.SimpleSelectionFilter;
+import org.projectbuendia.client.providers.Contracts.PatientSearch;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.utils.Utils;
+import org.projectbuendia.models.Patient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Matches patients for whom each of the words in a search query is the start of
+ * a word in the given name, family name, or bed number, or is part of the ID,
+ * in any order.  A
+ * word of only dashes matches an unknown given or family name, which the UI
+ * shows as a dash.  A query with no words matches all patients.
+ * <p>
+ * The lookup uses the full-text index in patient_search, so it doesn't have to
+ * load and examine every patient.
+ */
+public final class PatientSearchFilter extends SimpleSelectionFilter<Patient> {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern DASHES = Pattern.compile("^\\p{Pd}+$");
+    // The index's tokenizer splits words at every ASCII character other than a letter or digit.
+    private static final Pattern SEPARATORS = Pattern.compile("[\\p{ASCII}&&[^a-z0-9]]+");
+
+    private final String mMatchQuery;
+
+    public PatientSearchFilter(String query) {
+        mMatchQuery = toMatchQuery(query);
+    }
+
+    /** Returns true if the query has no words, so that this filter matches everything. */
+    public boolean isEmpty() {
+        return mMatchQuery.isEmpty();
+    }
+
+    @Override public String getSelectionString() {
+        if (isEmpty()) return "";
+        return "uuid IN (SELECT " + PatientSearch.UUID + " FROM " + Table.PATIENT_SEARCH
+            + " WHERE " + Table.PATIENT_SEARCH + " MATCH ?)";
+    }
+
+    @Override public String[] getSelectionArgs(CharSequence constraint) {
+        return isEmpty() ? new String[0] : new String[] {mMatchQuery};
+    }
+
+    /**
+     * Converts a search query to a full-text query with a prefix term for each
+     * word.  The terms are limited to the terms column, so that they never
+     * match a uuid where SQLite is too old to leave the uuid column unindexed.
+     */
+    private static String toMatchQuery(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String word : WHITESPACE.split(Utils.toNonnull(query).toLowerCase(Locale.ROOT))) {
+            if (DASHES.matcher(word).matches()) {
+                terms.add(PatientSearch.TERMS + ":" + Database.UNKNOWN_NAME_TOKEN);
+                continue;
+            }
+            for (String token : SEPARATORS.split(word)) {
+                if (!token.isEmpty()) terms.add(PatientSearch.TERMS + ":" + token + "*");
+            }
+        }
+        return Joiner.on(' ').join(terms);
+    }
+}
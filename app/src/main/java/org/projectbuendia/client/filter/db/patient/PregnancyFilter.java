@@ -20,7 +20,8 @@ import org.projectbuendia.client.providers.Contracts;
 /** Matches only patients below a specified age in years. */
 final class PregnancyFilter extends SimpleSelectionFilter<Patient> {
     @Override public String getSelectionString() {
-        return Contracts.Patients.PREGNANCY;
+        // Written as a comparison so that SQLite can use the patients_pregnancy index.
+        return Contracts.Patients.PREGNANCY + " = 1";
     }
 
     @Override public String[] getSelectionArgs(CharSequence constraint) {
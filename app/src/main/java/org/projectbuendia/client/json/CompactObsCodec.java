@@ -0,0 +1,279 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.json;
+
+import com.google.common.base.Charsets;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A compact binary encoding of a page of observations, which the server may send
+ * instead of JSON when the client's Accept header offers {@link #MEDIA_TYPE}.
+ * <p>
+ * A page is the magic bytes "BOC1", then the bookmark (a string), a "more" byte,
+ * and a varint count of records.  Each record holds a varint of flags (the value's
+ * type, whether the record is voided, and whether it has a value), the
+ * observation's UUID, references to the encounter, patient, provider, and concept
+ * UUIDs, the time as a zigzag varint of milliseconds since the previous record's
+ * time, a reference to the order UUID, and a value whose encoding depends on its
+ * type: a varint day number for dates, varint milliseconds for datetimes, an
+ * 8-byte double for numbers, a reference for coded values, and a string otherwise.
+ * <p>
+ * A string is a varint of its UTF-8 length plus one (zero means null), then its
+ * bytes.  A reference is dictionary-coded: zero means null, n means the nth
+ * string already seen in the page, and one more than the number of strings seen
+ * so far means that a new string follows, which joins the dictionary.  The UUIDs
+ * that recur in almost every record are thus sent once per page.
+ * <p>
+ * This class uses nothing from the Android framework, so it can be tested on
+ * a plain JVM.  The {@link Encoder} is a stand-in for the server's encoder.
+ */
+public final class CompactObsCodec {
+    public static final String MEDIA_TYPE = "application/x-buendia-obs-compact";
+
+    private static final byte[] MAGIC = {'B', 'O', 'C', '1'};
+    private static final LocalDate EPOCH_DATE = new LocalDate(1970, 1, 1);
+
+    // The order of this array fixes the type codes in the encoding; only append to it.
+    private static final Datatype[] TYPES = {
+        Datatype.NUMERIC, Datatype.BOOLEAN, Datatype.CODED, Datatype.TEXT,
+        Datatype.DATE, Datatype.DATETIME, Datatype.NONE
+    };
+    private static final int TYPE_MASK = 0x7;  // the type code is the low 3 bits; 7 is null
+    private static final int FLAG_VOIDED = 0x8;
+    private static final int FLAG_HAS_VALUE = 0x10;
+
+    private CompactObsCodec() { }
+
+    /**
+     * One observation, with its value in the form stored in the observations
+     * table (see {@link JsonObservation#getValueAsString}).
+     */
+    public static class Record {
+        public String uuid;
+        public String encounterUuid;
+        public String patientUuid;
+        public String providerUuid;
+        public String conceptUuid;
+        public @Nullable Datatype type;
+        public long millis;
+        public String orderUuid;
+        public @Nullable String value;
+        public boolean voided;
+    }
+
+    /** Receives the records in a page, one at a time. */
+    public interface RecordHandler {
+        /** The record is reused for the next one, so its fields must be copied to be kept. */
+        void handle(Record record) throws Throwable;
+    }
+
+    /**
+     * Returns true if a response body is in this encoding.  The body is checked
+     * rather than the Content-Type header, which OkHttp doesn't always pass on.
+     */
+    public static boolean isCompact(@Nullable byte[] data) {
+        if (data == null || data.length < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /** Reads the bookmark and "more" flag of a page, and positions itself at the records. */
+    public static class Decoder {
+        public final @Nullable String bookmark;
+        public final boolean more;
+        public final int count;
+
+        private final byte[] data;
+        private final List<String> dictionary = new ArrayList<>();
+        private int pos = 0;
+
+        public Decoder(byte[] data) {
+            this.data = data;
+            for (byte b : MAGIC) {
+                if (data.length <= pos || data[pos++] != b) {
+                    throw new IllegalArgumentException("Not a compact observation page");
+                }
+            }
+            bookmark = readString();
+            more = data[pos++] != 0;
+            count = (int) readVarint();
+        }
+
+        /** Decodes all the records, passing each one to the handler; returns the count. */
+        public int readRecords(RecordHandler handler) throws Throwable {
+            Record record = new Record();
+            long millis = 0;
+            for (int i = 0; i < count; i++) {
+                int flags = (int) readVarint();
+                int typeCode = flags & TYPE_MASK;
+                record.type = typeCode < TYPES.length ? TYPES[typeCode] : null;
+                record.voided = (flags & FLAG_VOIDED) != 0;
+                record.uuid = readString();
+                record.encounterUuid = readRef();
+                record.patientUuid = readRef();
+                record.providerUuid = readRef();
+                record.conceptUuid = readRef();
+                millis += unzigzag(readVarint());
+                record.millis = millis;
+                record.orderUuid = readRef();
+                record.value = (flags & FLAG_HAS_VALUE) != 0 ? readValue(record.type) : null;
+                handler.handle(record);
+            }
+            return count;
+        }
+
+        private String readValue(@Nullable Datatype type) {
+            if (type == Datatype.NUMERIC) {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) bits = (bits << 8) | (data[pos++] & 0xff);
+                return "" + Double.longBitsToDouble(bits);
+            }
+            if (type == Datatype.CODED) return readRef();
+            if (type == Datatype.DATE) return EPOCH_DATE.plusDays((int) unzigzag(readVarint())).toString();
+            if (type == Datatype.DATETIME) return "" + unzigzag(readVarint());
+            return readString();
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        private @Nullable String readString() {
+            int length = (int) readVarint() - 1;
+            if (length < 0) return null;
+            String s = new String(data, pos, length, Charsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        private @Nullable String readRef() {
+            int ref = (int) readVarint();
+            if (ref == 0) return null;
+            if (ref <= dictionary.size()) return dictionary.get(ref - 1);
+            String s = readString();
+            dictionary.add(s);
+            return s;
+        }
+    }
+
+    /** Encodes a page of records; this stands in for the server's encoder. */
+    public static class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        public byte[] encode(@Nullable String bookmark, boolean more, List<Record> records) {
+            out.reset();
+            dictionary.clear();
+            out.write(MAGIC, 0, MAGIC.length);
+            writeString(bookmark);
+            out.write(more ? 1 : 0);
+            writeVarint(records.size());
+            long millis = 0;
+            for (Record record : records) {
+                int typeCode = record.type != null ? indexOf(record.type) : TYPE_MASK;
+                writeVarint(typeCode
+                    | (record.voided ? FLAG_VOIDED : 0)
+                    | (record.value != null ? FLAG_HAS_VALUE : 0));
+                writeString(record.uuid);
+                writeRef(record.encounterUuid);
+                writeRef(record.patientUuid);
+                writeRef(record.providerUuid);
+                writeRef(record.conceptUuid);
+                writeVarint(zigzag(record.millis - millis));
+                millis = record.millis;
+                writeRef(record.orderUuid);
+                if (record.value != null) writeValue(record.type, record.value);
+            }
+            return out.toByteArray();
+        }
+
+        private void writeValue(@Nullable Datatype type, String value) {
+            if (type == Datatype.NUMERIC) {
+                long bits = Double.doubleToLongBits(Double.parseDouble(value));
+                for (int i = 56; i >= 0; i -= 8) out.write((int) (bits >>> i));
+            } else if (type == Datatype.CODED) {
+                writeRef(value);
+            } else if (type == Datatype.DATE) {
+                writeVarint(zigzag(Days.daysBetween(EPOCH_DATE, LocalDate.parse(value)).getDays()));
+            } else if (type == Datatype.DATETIME) {
+                writeVarint(zigzag(Long.parseLong(value)));
+            } else {
+                writeString(value);
+            }
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private void writeString(@Nullable String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(Charsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private void writeRef(@Nullable String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer ref = dictionary.get(s);
+            if (ref != null) {
+                writeVarint(ref);
+            } else {
+                dictionary.put(s, dictionary.size() + 1);
+                writeVarint(dictionary.size());
+                writeString(s);
+            }
+        }
+
+        private static int indexOf(Datatype type) {
+            for (int i = 0; i < TYPES.length; i++) {
+                if (TYPES[i] == type) return i;
+            }
+            throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -13,18 +13,118 @@
 
 package org.projectbuendia.client.json;
 
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+
 /**
- * An incremental sync response containing items of type T.  This object is
- * deserialized from JSON, so T should be a type that can be deserialized
- * from the JSON response.
+ * An incremental sync response containing items of type T.  Only the bookmark
+ * and the "more" flag are parsed when the response arrives; the items in the
+ * "results" array are left in the raw body and deserialized one at a time by
+ * {@link #readResults}, so that a page never has to be held in memory as a
+ * String or as an array of objects.  T should be a type that can be
+ * deserialized from one element of the "results" array.
+ * <p>
+ * The body itself is still held as a byte array, because Volley reads every
+ * response body fully into memory before handing it to the request; and the
+ * bookmark is needed as soon as the page arrives (to request the next page),
+ * but the server sends it after the results, so the JSON is tokenized twice:
+ * once by {@link #parse} and once by {@link #readResults}.  The first pass
+ * allocates nothing per item, so memory for a page is bounded by the size of
+ * its body, which {@code PageSizer} keeps under its byte limit, plus one item.
  */
 public class IncrementalSyncResponse<T> {
-    /** A list of objects returned by the incremental sync operation. */
-    public T[] results;
+    /**
+     * The raw response body, which contains the "results" array, or, if compact is
+     * true, the records in the encoding of {@link CompactObsCodec}.
+     */
+    public byte[] body;
+
+    /** True if the body is in the compact encoding rather than JSON. */
+    public boolean compact;
 
     /** Can be sent with the next request to cause only new data to be returned. */
     public String bookmark;
 
     /** True if there is more data available to be fetched. */
     public boolean more;
+
+    /** Receives the items in a response, one at a time. */
+    public interface ItemHandler<T> {
+        void handle(T item) throws Throwable;
+    }
+
+    /**
+     * Parses the envelope of a response body, leaving the results unparsed.
+     * The results are skipped over without allocating objects for them.
+     */
+    public static <T> IncrementalSyncResponse<T> parse(byte[] body) throws Exception {
+        IncrementalSyncResponse<T> response = new IncrementalSyncResponse<>();
+        response.body = body;
+        try (JsonReader reader = newReader(body)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("bookmark") && reader.peek() == JsonToken.STRING) {
+                    response.bookmark = reader.nextString();
+                } else if (name.equals("more") && reader.peek() == JsonToken.BOOLEAN) {
+                    response.more = reader.nextBoolean();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return response;
+    }
+
+    /** Reads the envelope of a response body in the compact encoding, leaving the records unread. */
+    public static <T> IncrementalSyncResponse<T> parseCompact(byte[] body) {
+        CompactObsCodec.Decoder decoder = new CompactObsCodec.Decoder(body);
+        IncrementalSyncResponse<T> response = new IncrementalSyncResponse<>();
+        response.body = body;
+        response.compact = true;
+        response.bookmark = decoder.bookmark;
+        response.more = decoder.more;
+        return response;
+    }
+
+    /** Decodes the records in a compact body one at a time; returns the number of records. */
+    public int readCompactRecords(CompactObsCodec.RecordHandler handler) throws Throwable {
+        return new CompactObsCodec.Decoder(body).readRecords(handler);
+    }
+
+    /**
+     * Deserializes the items in the body one at a time, passing each one to the
+     * handler.  Returns the number of items read.
+     */
+    public int readResults(Gson gson, Type itemType, ItemHandler<T> handler) throws Throwable {
+        int count = 0;
+        try (JsonReader reader = newReader(body)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("results") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        T item = gson.fromJson(reader, itemType);
+                        handler.handle(item);
+                        count++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+        return count;
+    }
+
+    private static JsonReader newReader(byte[] body) {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), Charsets.UTF_8));
+    }
 }
@@ -73,7 +73,9 @@ public class JsonObservation {
         cvs.put(Observations.TYPE, type != null ? type.name() : Datatype.NONE.name());
         cvs.put(Observations.MILLIS, time.getMillis());
         cvs.put(Observations.ORDER_UUID, order_uuid);
-        cvs.put(Observations.VALUE, getValueAsString());
+        String value = getValueAsString();
+        cvs.put(Observations.VALUE, value);
+        Obs.putTypedValues(cvs, type, value);
         return cvs;
     }
 }
@@ -0,0 +1,98 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.support.annotation.Nullable;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.google.common.base.Charsets;
+
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A GET request for a JSON resource that sends the validator (ETag or
+ * Last-Modified time) from a previous response, so that the server can reply
+ * with 304 Not Modified instead of sending the whole resource again.
+ * <p>
+ * Volley's own cache is turned off for these requests: it would answer a 304
+ * by delivering the cached body again, whereas the caller wants to know that
+ * nothing has changed so it can skip its work entirely.
+ */
+public class ConditionalRequest<T> extends Request<ConditionalResponse<T>> {
+    private static final Logger LOG = Logger.create();
+
+    /** Parses the body of a successful response. */
+    public interface Parser<T> {
+        T parse(String json) throws Exception;
+    }
+
+    private final Map<String, String> mHeaders;
+    private final @Nullable String mValidator;
+    private final Parser<T> mParser;
+    private final Response.Listener<ConditionalResponse<T>> mListener;
+
+    /**
+     * @param url           the URL to request
+     * @param headers       headers to send (e.g. for authentication)
+     * @param validator     a validator from a previous {@link ConditionalResponse}, or null
+     *                      to request the resource unconditionally
+     * @param parser        parses the JSON body of a 200 response
+     * @param listener      a {@link Response.Listener} that handles successful requests
+     * @param errorListener a {@link Response.ErrorListener} that handles failed requests
+     */
+    public ConditionalRequest(String url, Map<String, String> headers, @Nullable String validator,
+                              Parser<T> parser,
+                              Response.Listener<ConditionalResponse<T>> listener,
+                              Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mHeaders = headers;
+        mValidator = validator;
+        mParser = parser;
+        mListener = listener;
+        setShouldCache(false);
+    }
+
+    @Override public Map<String, String> getHeaders() {
+        Map<String, String> headers = new HashMap<>(mHeaders);
+        ConditionalResponse.addValidatorHeader(headers, mValidator);
+        return headers;
+    }
+
+    @Override protected void deliverResponse(ConditionalResponse<T> response) {
+        mListener.onResponse(response);
+    }
+
+    @Override protected Response<ConditionalResponse<T>> parseNetworkResponse(
+        NetworkResponse response) {
+        LOG.finish("HTTP." + getSequence(), "Response to %s -> %d, %s",
+            Utils.repr(this), response.statusCode, Utils.repr(response.data, 500));
+        if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return Response.success(ConditionalResponse.notModified(mValidator), null);
+        }
+        try {
+            String json = response.data.length > 0
+                ? new String(response.data, Charsets.UTF_8) : "{}";
+            return Response.success(ConditionalResponse.modified(
+                mParser.parse(json), ConditionalResponse.getValidator(response.headers)), null);
+        } catch (Exception e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * The result of a {@link ConditionalRequest}: either a newly parsed value,
+ * together with the validator to send with the next request for the same
+ * resource, or an indication that the resource has not been modified since
+ * the response that the sent validator came from.
+ * <p>
+ * A validator is stored as the request header line that should be sent with
+ * the next request, e.g. {@code If-None-Match: "abc123"}, so it can be kept
+ * in a single string column (such as a bookmark) and used without knowing
+ * which kind of validator the server provided.
+ */
+public class ConditionalResponse<T> {
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /** The parsed response, or null if the resource was not modified. */
+    public final @Nullable T value;
+    /** The validator to send next time, or null if the server gave none. */
+    public final @Nullable String validator;
+    private final boolean notModified;
+
+    private ConditionalResponse(@Nullable T value, @Nullable String validator, boolean notModified) {
+        this.value = value;
+        this.validator = validator;
+        this.notModified = notModified;
+    }
+
+    public static <T> ConditionalResponse<T> modified(T value, @Nullable String validator) {
+        return new ConditionalResponse<>(value, validator, false);
+    }
+
+    public static <T> ConditionalResponse<T> notModified(@Nullable String validator) {
+        return new ConditionalResponse<>(null, validator, true);
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Gets a validator from the headers of a response, preferring the ETag to
+     * the Last-Modified time; returns null if the response has neither.
+     */
+    static @Nullable String getValidator(Map<String, String> headers) {
+        String etag = getHeader(headers, "ETag");
+        if (etag != null) return IF_NONE_MATCH + ": " + etag;
+        String lastModified = getHeader(headers, "Last-Modified");
+        if (lastModified != null) return IF_MODIFIED_SINCE + ": " + lastModified;
+        return null;
+    }
+
+    /** Adds the header for a validator from getValidator() to a map of request headers. */
+    static void addValidatorHeader(Map<String, String> headers, @Nullable String validator) {
+        if (validator == null) return;
+        int colon = validator.indexOf(": ");
+        if (colon > 0) {
+            headers.put(validator.substring(0, colon), validator.substring(colon + 2));
+        }
+    }
+
+    private static @Nullable String getHeader(Map<String, String> headers, String name) {
+        // HTTP headers are case-insensitive but NetworkResponse stores them in a
+        // case-sensitive Map.
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) return entry.getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.projectbuendia.client.json.CompactObsCodec;
+import org.projectbuendia.client.json.IncrementalSyncResponse;
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+
+import java.util.Map;
+
+/**
+ * A request for one page of an incremental sync.  Unlike a {@link GsonRequest},
+ * this does not deserialize the results; it only reads the bookmark and the
+ * "more" flag, and leaves the results to be streamed out of the response body
+ * with {@link IncrementalSyncResponse#readResults}.  A response in the encoding of
+ * {@link CompactObsCodec} is recognized by its first bytes, and is accepted only
+ * if the request offered that encoding; otherwise it fails with a ParseError.
+ */
+public class IncrementalSyncRequest<T> extends GsonRequest<IncrementalSyncResponse<T>> {
+    private static Logger LOG = Logger.create();
+
+    private final boolean acceptsCompact;
+
+    public IncrementalSyncRequest(String url, Map<String, String> headers, boolean acceptsCompact,
+                                  Response.Listener<IncrementalSyncResponse<T>> listener,
+                                  Response.ErrorListener errorListener) {
+        super(url, IncrementalSyncResponse.class, headers, listener, errorListener);
+        this.acceptsCompact = acceptsCompact;
+    }
+
+    @Override protected Response<IncrementalSyncResponse<T>> parseNetworkResponse(
+        NetworkResponse response) {
+        LOG.finish("HTTP." + getSequence(), "Response to %s -> %d bytes: %s",
+            Utils.repr(this), response.data.length, Utils.repr(response.data, 500));
+        boolean compact = CompactObsCodec.isCompact(response.data);
+        if (compact && !acceptsCompact) {
+            return Response.error(new ParseError(
+                new IllegalStateException("Compact response to a request that didn't offer it")));
+        }
+        try {
+            return Response.success(compact
+                    ? IncrementalSyncResponse.parseCompact(response.data)
+                    : IncrementalSyncResponse.parse(response.data),
+                HttpHeaderParser.parseCacheHeaders(response));
+        } catch (Exception e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
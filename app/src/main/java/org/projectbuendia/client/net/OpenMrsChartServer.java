@@ -11,8 +11,11 @@
 
 package org.projectbuendia.client.net;
 
+import android.support.annotation.Nullable;
+
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Response;
+import com.google.gson.Gson;
 
 import org.projectbuendia.client.json.JsonChartsResponse;
 import org.projectbuendia.client.json.JsonConceptsResponse;
@@ -43,33 +46,40 @@ public class OpenMrsChartServer {
 
     /**
      * Retrieves all concepts from the server that are present in at least one chart.
+     * @param validator       a validator from a previous response, so that the server can
+     *                        reply "not modified" if the concepts haven't changed; or null
+     * @param tag             a tag for the request, so that it can be cancelled; or null
      * @param successListener a {@link Response.Listener} that handles successful concept retrieval
      * @param errorListener   a {@link Response.ErrorListener} that handles failed concept retrieval
      */
-    public void getConcepts(Response.Listener<JsonConceptsResponse> successListener,
+    public void getConcepts(@Nullable String validator, @Nullable Object tag,
+                            Response.Listener<ConditionalResponse<JsonConceptsResponse>> successListener,
                             Response.ErrorListener errorListener) {
-        GsonRequest<JsonConceptsResponse> request = new GsonRequest<>(
+        ConditionalRequest<JsonConceptsResponse> request = new ConditionalRequest<>(
             mConnectionDetails.getBuendiaApiUrl() + "/concepts?locale=buendia",
-            JsonConceptsResponse.class,
             mConnectionDetails.addAuthHeader(new HashMap<>()),
+            validator, json -> new Gson().fromJson(json, JsonConceptsResponse.class),
             successListener, errorListener);
+        request.setTag(tag);
         request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_LONG, 1, 1f));
         mConnectionDetails.getVolley().addToRequestQueue(request);
     }
 
     /**
      * Retrieves the structure of a given chart (groupings, orderings) from the server.
-     * @param uuid            the UUID of the chart
+     * @param tag             a tag for the request, so that it can be cancelled; or null
      * @param successListener a {@link Response.Listener} that handles successful structure retrieval
      * @param errorListener   a {@link Response.ErrorListener} that handles failed structure retrieval
      */
-    public void getChartStructures(Response.Listener<JsonChartsResponse> successListener,
+    public void getChartStructures(@Nullable Object tag,
+                                   Response.Listener<JsonChartsResponse> successListener,
                                    Response.ErrorListener errorListener) {
         GsonRequest<JsonChartsResponse> request = new GsonRequest<>(
             mConnectionDetails.getBuendiaApiUrl() + "/charts/?v=full",
             JsonChartsResponse.class,
             mConnectionDetails.addAuthHeader(new HashMap<>()),
             successListener, errorListener);
+        request.setTag(tag);
         request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_LONG, 1, 1f));
         mConnectionDetails.getVolley().addToRequestQueue(request);
     }
@@ -43,6 +43,7 @@ import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.projectbuendia.client.utils.Utils.eq;
@@ -373,26 +374,23 @@ public class OpenMrsServer implements Server {
     @Override public void listUsers(@Nullable OpenMrsConnectionDetails connection,
                           final Response.Listener<List<JsonUser>> successListener,
                           Response.ErrorListener errorListener) {
-        OpenMrsJsonRequest request = mRequestFactory.newOpenMrsJsonRequest(
-            connection != null ? connection : mConnectionDetails,
-            "/providers",
-            null,
-            response -> {
-                ArrayList<JsonUser> users = new ArrayList<>();
-                try {
-                    JSONArray results = response.getJSONArray("results");
-                    for (int i = 0; i < results.length(); i++) {
-                        users.add(userFromJson(results.getJSONObject(i)));
-                    }
-                } catch (JSONException e) {
-                    LOG.e(e, "Failed to parse response");
+        listUsers(connection, null, null, response -> successListener.onResponse(response.value),
+            errorListener);
+    }
+
+    @Override public void listUsers(@Nullable OpenMrsConnectionDetails connection,
+                          @Nullable String validator, @Nullable Object tag,
+                          Response.Listener<ConditionalResponse<List<JsonUser>>> successListener,
+                          Response.ErrorListener errorListener) {
+        addConditionalRequest(connection != null ? connection : mConnectionDetails,
+            "/providers", validator, tag, json -> {
+                List<JsonUser> users = new ArrayList<>();
+                JSONArray results = new JSONObject(json).getJSONArray("results");
+                for (int i = 0; i < results.length(); i++) {
+                    users.add(userFromJson(results.getJSONObject(i)));
                 }
-                successListener.onResponse(users);
-            },
-            wrapErrorListener(errorListener)
-        );
-        request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
-        mConnectionDetails.getVolley().addToRequestQueue(request);
+                return users;
+            }, successListener, errorListener);
     }
 
     @Override public void addLocation(JsonLocation location,
@@ -475,55 +473,47 @@ public class OpenMrsServer implements Server {
         mConnectionDetails.getVolley().addToRequestQueue(request);
     }
 
-    @Override public void listLocations(final Response.Listener<List<JsonLocation>> successListener,
+    @Override public void listLocations(@Nullable String validator, @Nullable Object tag,
+                              Response.Listener<ConditionalResponse<List<JsonLocation>>> successListener,
                               Response.ErrorListener errorListener) {
-        OpenMrsJsonRequest request = mRequestFactory.newOpenMrsJsonRequest(
-            mConnectionDetails, "/locations",
-            null,
-            response -> {
-                ArrayList<JsonLocation> result = new ArrayList<>();
-                try {
-                    JSONArray results = response.getJSONArray("results");
-                    for (int i = 0; i < results.length(); i++) {
-                        JsonLocation location =
-                            parseLocationJson(results.getJSONObject(i));
-                        if (location.names != null && !location.names.isEmpty()) {
-                            location.name = location.names.values().iterator().next();
-                        }
-                        result.add(location);
-                    }
-                } catch (JSONException e) {
-                    LOG.e(e, "Failed to parse response");
+        addConditionalRequest(mConnectionDetails, "/locations", validator, tag, json -> {
+            List<JsonLocation> locations = new ArrayList<>();
+            JSONArray results = new JSONObject(json).getJSONArray("results");
+            for (int i = 0; i < results.length(); i++) {
+                JsonLocation location = parseLocationJson(results.getJSONObject(i));
+                if (location.names != null && !location.names.isEmpty()) {
+                    location.name = location.names.values().iterator().next();
                 }
-                successListener.onResponse(result);
-            },
-            wrapErrorListener(errorListener)
-        );
-        request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
-        mConnectionDetails.getVolley().addToRequestQueue(request);
+                locations.add(location);
+            }
+            return locations;
+        }, successListener, errorListener);
     }
 
-    @Override public void listForms(final Response.Listener<List<JsonForm>> successListener,
+    @Override public void listForms(@Nullable String validator, @Nullable Object tag,
+                          Response.Listener<ConditionalResponse<List<JsonForm>>> successListener,
                           Response.ErrorListener errorListener) {
-        OpenMrsJsonRequest request = mRequestFactory.newOpenMrsJsonRequest(
-            mConnectionDetails,
-            "/xforms",
-            null,
-            response -> {
-                ArrayList<JsonForm> forms = new ArrayList<>();
-                try {
-                    JSONArray results = response.getJSONArray("results");
-                    for (int i = 0; i < results.length(); i++) {
-                        JSONObject result = results.getJSONObject(i);
-                        forms.add(mGson.fromJson(result.toString(), JsonForm.class));
-                    }
-                } catch (JSONException e) {
-                    LOG.e(e, "Failed to parse response");
-                }
-                successListener.onResponse(forms);
-            },
-            wrapErrorListener(errorListener)
-        );
+        addConditionalRequest(mConnectionDetails, "/xforms", validator, tag, json -> {
+            List<JsonForm> forms = new ArrayList<>();
+            JSONArray results = new JSONObject(json).getJSONArray("results");
+            for (int i = 0; i < results.length(); i++) {
+                forms.add(mGson.fromJson(results.getJSONObject(i).toString(), JsonForm.class));
+            }
+            return forms;
+        }, successListener, errorListener);
+    }
+
+    /** Sends a {@link ConditionalRequest} for a list that is fetched in full by each sync. */
+    private <T> void addConditionalRequest(
+        OpenMrsConnectionDetails connection, String urlSuffix, @Nullable String validator,
+        @Nullable Object tag, ConditionalRequest.Parser<T> parser,
+        Response.Listener<ConditionalResponse<T>> successListener,
+        Response.ErrorListener errorListener) {
+        ConditionalRequest<T> request = new ConditionalRequest<>(
+            connection.getBuendiaApiUrl() + urlSuffix,
+            connection.addAuthHeader(new HashMap<>()),
+            validator, parser, successListener, wrapErrorListener(errorListener));
+        request.setTag(tag);
         request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
         mConnectionDetails.getVolley().addToRequestQueue(request);
     }
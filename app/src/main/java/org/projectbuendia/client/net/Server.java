@@ -93,8 +93,22 @@ public interface Server {
                           Response.Listener<List<JsonUser>> successListener,
                           Response.ErrorListener errorListener);
 
-    /** Lists all published forms. */
-    void listForms(Response.Listener<List<JsonForm>> successListener,
+    /**
+     * Lists all existing users, unless they have not changed since the response
+     * that the given validator came from.  The request is given the tag, if any,
+     * so that whoever supplied the tag can cancel it.
+     */
+    public void listUsers(@Nullable OpenMrsConnectionDetails connection,
+                          @Nullable String validator, @Nullable Object tag,
+                          Response.Listener<ConditionalResponse<List<JsonUser>>> successListener,
+                          Response.ErrorListener errorListener);
+
+    /**
+     * Lists all published forms, unless they have not changed since the response
+     * that the given validator came from.  The request is given the tag, if any.
+     */
+    void listForms(@Nullable String validator, @Nullable Object tag,
+                   Response.Listener<ConditionalResponse<List<JsonForm>>> successListener,
                    Response.ErrorListener errorListener);
 
     /**
@@ -126,8 +140,12 @@ public interface Server {
     public void deleteLocation(String locationUuid,
                                final Response.ErrorListener errorListener);
 
-    /** Lists all locations. */
-    public void listLocations(Response.Listener<List<JsonLocation>> successListener,
+    /**
+     * Lists all locations, unless they have not changed since the response that
+     * the given validator came from.  The request is given the tag, if any.
+     */
+    public void listLocations(@Nullable String validator, @Nullable Object tag,
+                              Response.Listener<ConditionalResponse<List<JsonLocation>>> successListener,
                               Response.ErrorListener errorListener);
 
     /** Adds or updates an order. */
@@ -54,6 +54,11 @@ public class VolleySingleton {
         LOG.start("HTTP." + req.getSequence(), "Queued %s", Utils.repr(req));
     }
 
+    /** Cancels all requests with the given tag, so that their responses are never delivered. */
+    public void cancelAll(Object tag) {
+        getRequestQueue().cancelAll(tag);
+    }
+
     private RequestQueue getRequestQueue() {
         return mRequestQueue;
     }
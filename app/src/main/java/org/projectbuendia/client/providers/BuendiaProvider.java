@@ -11,25 +11,179 @@
 
 package org.projectbuendia.client.providers;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
 import org.projectbuendia.client.providers.Contracts.Bookmarks;
 import org.projectbuendia.client.providers.Contracts.ChartItems;
 import org.projectbuendia.client.providers.Contracts.Concepts;
 import org.projectbuendia.client.providers.Contracts.Forms;
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
 import org.projectbuendia.client.providers.Contracts.Locations;
+import org.projectbuendia.client.providers.Contracts.MaintenanceRuns;
 import org.projectbuendia.client.providers.Contracts.Misc;
 import org.projectbuendia.client.providers.Contracts.Observations;
 import org.projectbuendia.client.providers.Contracts.Orders;
 import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.SyncMetrics;
 import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.providers.Contracts.Users;
 import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.DatabaseMaintenance;
+import org.projectbuendia.client.sync.SyncTelemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 /** A {@link DelegatingProvider} for MSF record info such as patients and locations. */
 public class BuendiaProvider extends DelegatingProvider<Database> {
+    private static final String DENORMALIZE_SAVEPOINT = "DENORMALIZE_PATIENTS";
+
+    private volatile SyncTelemetry mSyncTelemetry = null;
+    private final Set<Thread> mSyncThreads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Sets the telemetry of the running sync, to which the latency of every query
+     * made meanwhile is reported, or null when no sync is running.
+     */
+    public void setSyncTelemetry(@Nullable SyncTelemetry telemetry) {
+        mSyncTelemetry = telemetry;
+    }
+
+    /**
+     * Marks the current thread as running a sync, or as no longer running one.
+     * Queries from sync threads are not timed or run early for the telemetry,
+     * which is about the latency that the UI sees.
+     */
+    public void setSyncThread(boolean syncing) {
+        if (syncing) {
+            mSyncThreads.add(Thread.currentThread());
+        } else {
+            mSyncThreads.remove(Thread.currentThread());
+        }
+    }
+
+    @Override public Cursor query(
+        Uri uri, String[] projection, String selection, String[] selectionArgs,
+        String sortOrder) {
+        SyncTelemetry telemetry = mSyncTelemetry;
+        if (telemetry == null || mSyncThreads.contains(Thread.currentThread())) {
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = super.query(uri, projection, selection, selectionArgs, sortOrder);
+        // Queries run lazily; ContentResolver calls getCount() to run them, so do it here.
+        if (cursor != null) cursor.getCount();
+        telemetry.recordQuery(SystemClock.elapsedRealtime() - start);
+        return cursor;
+    }
+
+    /** Gets the bus that tells observers which tables have changed. */
+    public TableChangeBus getChangeBus() {
+        return mChangeBus;
+    }
 
     /** Starts a transaction with the given savepoint name. */
     public DatabaseTransaction startTransaction(String name) {
-        return new DatabaseTransaction(mDatabaseHelper, name);
+        return startLockedTransaction(name);
+    }
+
+    /**
+     * Opens a writer for applying many upserts and deletes to the given table
+     * (whose rows are identified by keyColumn) in one transaction.  This is much
+     * faster than applyBatch(), which goes through a delegate's insert() and
+     * delete() for every row; the writer notifies observers of the given URI
+     * just once, when it is closed.
+     */
+    public TableWriter openTableWriter(Uri uri, Table table, String keyColumn) {
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            return new TableWriter(mDatabaseHelper.getWritableDatabase(), lock,
+                mChangeBus, uri, table, keyColumn);
+        } finally {
+            lock.unlock();  // the writer holds it again until it is closed
+        }
+    }
+
+    /**
+     * Recomputes the denormalized columns (pregnancy, location, bed number) of
+     * the given patients from their latest observations, in one transaction,
+     * and then sends a single change notification for the patients table.
+     */
+    public void denormalizePatients(Collection<String> patientUuids) {
+        if (patientUuids.isEmpty()) return;
+        try (DatabaseTransaction tx = startTransaction(DENORMALIZE_SAVEPOINT)) {
+            PatientDenormalizer.denormalize(mDatabaseHelper.getWritableDatabase(), patientUuids);
+        }
+        mChangeBus.notifyChange(Patients.URI);
+    }
+
+    /**
+     * Runs the periodic maintenance of the database (see {@link DatabaseMaintenance})
+     * if its last run was long enough ago, recomputes the denormalized columns of
+     * the patients whose observations it pruned, and notifies observers.  Returns
+     * true if it ran.  This must not be called within a transaction.
+     */
+    public synchronized boolean maintainDatabase() {
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+            if (!DatabaseMaintenance.isDue(db)) return false;
+            Set<String> patientUuids = DatabaseMaintenance.run(db);
+            denormalizePatients(patientUuids);
+        } finally {
+            lock.unlock();
+        }
+        // Pruning changes observations, and the patients denormalized from them.
+        mChangeBus.notifyChange(Observations.URI);
+        mChangeBus.notifyChange(Patients.URI);
+        mChangeBus.notifyChange(MaintenanceRuns.URI);
+        return true;
+    }
+
+    /**
+     * Replaces the whole database with a verified snapshot (see {@link
+     * org.projectbuendia.client.sync.DatabaseSnapshot}), which must be in the
+     * database directory.  The database is closed and the snapshot is renamed
+     * over it, which is atomic, so if the app is killed midway the database is
+     * either the old one or the snapshot; it is reopened on the next access.
+     * The write lock of {@link #mDatabaseLock} is held meanwhile, so this waits
+     * for all queries, writes, and transactions in progress to finish, and any
+     * that start meanwhile wait for it.  Cursors still open on the old database
+     * become invalid, so this is meant only for a tablet that has no data yet.
+     * This must not be called within a transaction.
+     */
+    public synchronized void replaceDatabase(File snapshot) throws IOException {
+        if (mDatabaseLock.getReadHoldCount() > 0) {
+            // Waiting for the write lock while holding the read lock would never end.
+            throw new IllegalStateException("replaceDatabase() called within a transaction");
+        }
+        File dbFile = getContext().getDatabasePath(Database.DATABASE_FILENAME);
+        Lock lock = mDatabaseLock.writeLock();
+        lock.lock();
+        try {
+            mDatabaseHelper.close();
+            // A leftover journal would be applied to the snapshot as if it belonged to it.
+            for (String suffix : new String[] {"-journal", "-wal", "-shm"}) {
+                new File(dbFile.getPath() + suffix).delete();
+            }
+            if (!snapshot.renameTo(dbFile)) {
+                throw new IOException("Could not rename " + snapshot + " to " + dbFile);
+            }
+        } finally {
+            lock.unlock();
+        }
+        mChangeBus.notifyChange(Contracts.BASE_CONTENT_URI);
     }
 
     @Override protected Database createDatabaseHelper() {
@@ -46,14 +200,20 @@ public class BuendiaProvider extends DelegatingProvider<Database> {
             new GroupProviderDelegate(Concepts.GROUP_TYPE, Table.CONCEPTS));
         registry.registerDelegate(Forms.URI.getPath(),
             new GroupProviderDelegate(Forms.GROUP_TYPE, Table.FORMS));
+        registry.registerDelegate(LatestObservations.URI.getPath(),
+            new GroupProviderDelegate(LatestObservations.GROUP_TYPE, Table.LATEST_OBSERVATIONS));
         registry.registerDelegate(Locations.URI.getPath(),
             new GroupProviderDelegate(Locations.GROUP_TYPE, Table.LOCATIONS));
+        registry.registerDelegate(MaintenanceRuns.URI.getPath(),
+            new GroupProviderDelegate(MaintenanceRuns.GROUP_TYPE, Table.MAINTENANCE_RUNS));
         registry.registerDelegate(Observations.URI.getPath(),
             new GroupProviderDelegate(Observations.GROUP_TYPE, Table.OBSERVATIONS));
         registry.registerDelegate(Orders.URI.getPath(),
             new GroupProviderDelegate(Orders.GROUP_TYPE, Table.ORDERS));
         registry.registerDelegate(Patients.URI.getPath(),
             new GroupProviderDelegate(Patients.GROUP_TYPE, Table.PATIENTS));
+        registry.registerDelegate(SyncMetrics.URI.getPath(),
+            new GroupProviderDelegate(SyncMetrics.GROUP_TYPE, Table.SYNC_METRICS));
         registry.registerDelegate(Users.URI.getPath(),
             new GroupProviderDelegate(Users.GROUP_TYPE, Table.USERS));
 
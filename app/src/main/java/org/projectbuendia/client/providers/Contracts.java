@@ -29,11 +29,16 @@ public interface Contracts {
         CHART_ITEMS("chart_items"),
         CONCEPTS("concepts"),
         FORMS("forms"),
+        LATEST_OBSERVATIONS("latest_observations"),
         LOCATIONS("locations"),
+        MAINTENANCE_RUNS("maintenance_runs"),
         MISC("misc"),
         OBSERVATIONS("observations"),
         ORDERS("orders"),
         PATIENTS("patients"),
+        PATIENT_COUNTS("patient_counts"),
+        PATIENT_SEARCH("patient_search"),
+        SYNC_METRICS("sync_metrics"),
         USERS("users");
 
         public String name;
@@ -114,14 +119,31 @@ public interface Contracts {
         String PARENT_UUID = "parent_uuid"; // parent location or null
     }
 
+    interface MaintenanceRuns {
+        Uri URI = buildContentUri("maintenance-runs");
+        String GROUP_TYPE = buildGroupType("maintenance-run");
+
+        // Each run of DatabaseMaintenance stores one row.  Sizes are in bytes and are
+        // measured at the end of the run, not counting the write-ahead log.
+        String START_MILLIS = "start_millis";
+        String WALL_MILLIS = "wall_millis";
+        String PRUNED_OBSERVATIONS = "pruned_observations";  // temporary observations deleted
+        String OBSERVATIONS = "observations";  // rows left in the observations table
+        String FILE_BYTES = "file_bytes";
+        String RECLAIMED_BYTES = "reclaimed_bytes";  // by which the run shrank the file
+    }
+
     interface Misc {
         Uri URI = BASE_CONTENT_URI.buildUpon().appendPath("misc").appendPath("0").build();
         String ITEM_TYPE = buildItemType("misc");
 
         /**
          * The start time of the last full sync operation, according to the
-         * local (client's) clock.  Since sync operations are transactional,
-         * this should only be set if this sync was completed successfully.
+         * local (client's) clock.  When syncs are transactional, this is only
+         * kept if the sync was completed successfully.  When syncs are
+         * resumable, this is committed immediately; if it is later than
+         * FULL_SYNC_END_MILLIS, a full sync was interrupted and is still to
+         * be resumed, and is not changed by the full sync that resumes it.
          * <p/>
          * <p>Updated at the very beginning of full sync operations.
          */
@@ -159,6 +181,22 @@ public interface Contracts {
         String ORDER_UUID = "order_uuid";
         String VALUE = "value";  // concept value or order UUID
         String VOIDED = "voided";
+
+        // The value again in typed form, for comparing and aggregating in SQL;
+        // each is null unless it applies to the type (see Obs.putTypedValues).
+        String VALUE_NUMERIC = "value_numeric";  // NUMERIC
+        String VALUE_MILLIS = "value_millis";  // DATETIME, or DATE as of midnight UTC
+        String VALUE_CODED = "value_coded";  // CODED or BOOLEAN, a concept UUID
+    }
+
+    /**
+     * The latest non-voided observation of each concept for each patient, with
+     * the same columns as Observations.  The database keeps this table up to
+     * date with triggers on the observations table, so it is read-only.
+     */
+    interface LatestObservations {
+        Uri URI = buildContentUri("latest-observations");
+        String GROUP_TYPE = buildGroupType("latest-observation");
     }
 
     interface Orders {
@@ -190,6 +228,43 @@ public interface Contracts {
         String BED_NUMBER = "bed_number";  // denormalized observation
     }
 
+    /**
+     * A full-text index of the names, ID, and bed number of each patient, with
+     * the patient's uuid in an unindexed column.  The database keeps it up to
+     * date with triggers on the patients table; it is read only through
+     * PatientSearchFilter and has no URI.
+     */
+    interface PatientSearch {
+        String TERMS = "terms";
+        String UUID = "uuid";
+    }
+
+    interface SyncMetrics {
+        Uri URI = buildContentUri("sync-metrics");
+        String GROUP_TYPE = buildGroupType("sync-metric");
+
+        // Each sync stores one row per step (a page of a phase, or the finalization of a
+        // phase) and one summary row, whose phase is null, for the whole sync.  Durations are
+        // in milliseconds; measurements that the phase's worker doesn't make are null.
+        String SYNC_START_MILLIS = "sync_start_millis";  // identifies the sync
+        String PHASE = "phase";  // name of a BuendiaSyncEngine.Phase
+        String PAGE = "page";  // 1-based; null for finalization and summary rows
+        String STATUS = "status";  // for summary rows, how the sync ended
+        String WALL_MILLIS = "wall_millis";
+        String NETWORK_MILLIS = "network_millis";  // from sending the request to the response
+        String PARSE_MILLIS = "parse_millis";
+        String APPLY_MILLIS = "apply_millis";  // writing to the database, including the commit
+        String BYTES = "bytes";  // size of the response body
+        String INSERTS = "inserts";
+        String DELETES = "deletes";
+        // For summary rows, the queries made by other threads (i.e. the UI) during the
+        // sync, and percentiles of their latency, including the time to run the query.
+        String UI_QUERIES = "ui_queries";
+        String UI_QUERY_P50_MILLIS = "ui_query_p50_millis";
+        String UI_QUERY_P90_MILLIS = "ui_query_p90_millis";
+        String UI_QUERY_MAX_MILLIS = "ui_query_max_millis";
+    }
+
     interface Users {
         Uri URI = buildContentUri("users");
         String GROUP_TYPE = buildGroupType("user");
@@ -203,6 +278,11 @@ public interface Contracts {
     // ProviderDelegate.  The column name constants should match the columns
     // returned by the query() method of the corresponding ProviderDelegate.
 
+    /**
+     * The number of patients at each location that has any.  The database keeps
+     * these counts in the patient_counts table, updating them with triggers on
+     * the patients table, so reading them doesn't touch every patient.
+     */
     interface PatientCounts {
         Uri URI = buildContentUri("patient-counts");
         String GROUP_TYPE = buildGroupType("patient-count");
@@ -14,25 +14,68 @@ package org.projectbuendia.client.providers;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import android.support.annotation.Nullable;
+
 import org.projectbuendia.client.utils.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
 /**
  * An AutoCloseable object representing a SQLite transaction.  Instantiating
  * a DatabaseTransaction starts a transaction.  Closing it with close() finishes
  * the transaction, which causes the operations within the transaction to be
  * rolled back if rollback() was called, or committed otherwise.
+ * <p>
+ * The savepoint is made inside an Android transaction, which holds the
+ * database's primary connection for this thread until the transaction ends.
+ * In write-ahead-log mode other threads read through a pool of other
+ * connections; without this, reads on this thread could also go to one of
+ * those and miss the writes made so far in the savepoint.
+ * <p>
+ * Transactions on one thread nest; nothing is visible to other threads until
+ * the outermost one ends.  Use {@link #runAfterCommit} for work, such as
+ * telling observers about changes, that should wait until then.
  */
 public final class DatabaseTransaction implements AutoCloseable { // @nolint
     private final SQLiteDatabase mDatabase;
     private final String mName;
+    private final @Nullable Lock mLock;
+    private final int mFirstAfterCommit;  // index of the first task added within this transaction
 
     private static final Logger LOG = Logger.create();
+    private static final ThreadLocal<ThreadState> sThreadState = new ThreadLocal<ThreadState>() {
+        @Override protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
 
     /** Starts a named transaction by creating a savepoint. */
     public DatabaseTransaction(SQLiteDatabase database, String name) {
+        this(database, name, null);
+    }
+
+    /**
+     * Starts a named transaction by creating a savepoint, holding the given
+     * lock, if any, until the transaction is closed.  The caller must already
+     * hold the lock if it needed it to get the database.
+     */
+    public DatabaseTransaction(SQLiteDatabase database, String name, @Nullable Lock lock) {
         mDatabase = database;
         mName = name;
-        LOG.d("Starting transaction with SAVEPOINT " + mName);
+        mLock = lock;
+        if (mLock != null) mLock.lock();
+        try {
+            LOG.d("Starting transaction with SAVEPOINT " + mName);
+            mDatabase.beginTransactionNonExclusive();
+        } catch (RuntimeException e) {
+            if (mLock != null) mLock.unlock();
+            throw e;
+        }
+        ThreadState state = sThreadState.get();
+        state.depth++;
+        mFirstAfterCommit = state.afterCommit.size();
         mDatabase.execSQL("SAVEPOINT " + mName);
     }
 
@@ -40,11 +83,21 @@ public final class DatabaseTransaction implements AutoCloseable { // @nolint
         this(openHelper.getWritableDatabase(), name);
     }
 
-    /** Rolls back a named transaction to the state just after it started. */
+    /**
+     * Rolls back a named transaction to the state just after it started, and
+     * discards the tasks given to {@link #runAfterCommit} since then, as the
+     * changes they were waiting for will never be committed.
+     */
     public void rollback() {
         if (mDatabase.inTransaction()) {
             LOG.d("Rolling back transaction with ROLLBACK TO " + mName);
-            mDatabase.execSQL("ROLLBACK TO " + mName);
+            // The leading semicolon stops Android from taking this statement for
+            // a plain ROLLBACK, which would end the Android transaction.
+            mDatabase.execSQL(";ROLLBACK TO " + mName);
+            List<Runnable> tasks = sThreadState.get().afterCommit;
+            if (tasks.size() > mFirstAfterCommit) {
+                tasks.subList(mFirstAfterCommit, tasks.size()).clear();
+            }
             LOG.d("Rollback to " + mName + " completed");
         } else {
             LOG.w("There is no current transaction to roll back");
@@ -56,7 +109,39 @@ public final class DatabaseTransaction implements AutoCloseable { // @nolint
      * rollback() was called; otherwise it will be committed.
      */
     @Override public void close() {
-        mDatabase.execSQL("RELEASE " + mName);
+        try {
+            mDatabase.execSQL("RELEASE " + mName);
+            // A rollback has already been done with ROLLBACK TO, so what remains is committed.
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            if (mLock != null) mLock.unlock();
+            ThreadState state = sThreadState.get();
+            if (--state.depth == 0 && !state.afterCommit.isEmpty()) {
+                List<Runnable> tasks = new ArrayList<>(state.afterCommit);
+                state.afterCommit.clear();
+                for (Runnable task : tasks) task.run();
+            }
+        }
         LOG.d("Finished transaction " + mName);
     }
+
+    /**
+     * Runs a task when the outermost DatabaseTransaction open on the current
+     * thread ends, or right away if there is none open.  The task is dropped if
+     * a transaction that was open when it was added is rolled back.
+     */
+    public static void runAfterCommit(Runnable task) {
+        ThreadState state = sThreadState.get();
+        if (state.depth > 0) {
+            state.afterCommit.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private static class ThreadState {
+        int depth = 0;
+        final List<Runnable> afterCommit = new ArrayList<>();
+    }
 }
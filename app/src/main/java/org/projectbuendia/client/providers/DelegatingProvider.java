@@ -12,24 +12,43 @@
 package org.projectbuendia.client.providers;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 
 import android.database.sqlite.SQLiteOpenHelper;
 
-/** A {@link ContentProvider} that delegates responsibility to {@link ProviderDelegate}s. */
+import java.util.ArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link ContentProvider} that delegates responsibility to {@link ProviderDelegate}s.
+ * The delegates only change the database; this class reports the changes to
+ * its {@link TableChangeBus}, which notifies observers in batches.
+ * <p>
+ * Every access to the database holds the read lock of {@link #mDatabaseLock},
+ * so a subclass can take its write lock to keep everything out while it closes
+ * or swaps the database file.
+ */
 abstract class DelegatingProvider<T extends SQLiteOpenHelper> extends ContentProvider {
+    private static final String BATCH_SAVEPOINT = "APPLY_BATCH";
 
     private ProviderDelegateRegistry<T> mRegistry;
     protected ContentResolver mContentResolver;
     protected T mDatabaseHelper;
+    protected TableChangeBus mChangeBus;
+    protected final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
 
     @Override public boolean onCreate() {
         mRegistry = getRegistry();
         mDatabaseHelper = createDatabaseHelper();
         mContentResolver = getContext().getContentResolver();
+        mChangeBus = new TableChangeBus(mContentResolver);
 
         return true;
     }
@@ -45,30 +64,103 @@ abstract class DelegatingProvider<T extends SQLiteOpenHelper> extends ContentPro
     @Override public Cursor query(
         Uri uri, String[] projection, String selection, String[] selectionArgs,
         String sortOrder) {
-        return mRegistry.getDelegate(uri)
-            .query(
-                mDatabaseHelper, mContentResolver, uri, projection, selection,
-                selectionArgs, sortOrder);
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            return mRegistry.getDelegate(uri)
+                .query(
+                    mDatabaseHelper, mContentResolver, uri, projection, selection,
+                    selectionArgs, sortOrder);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override public Uri insert(Uri uri, ContentValues values) {
-        return mRegistry.getDelegate(uri)
-            .insert(mDatabaseHelper, mContentResolver, uri, values);
+        Uri result;
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            result = mRegistry.getDelegate(uri)
+                .insert(mDatabaseHelper, mContentResolver, uri, values);
+        } finally {
+            lock.unlock();
+        }
+        mChangeBus.notifyChange(uri);
+        return result;
     }
 
     @Override public int bulkInsert(Uri uri, ContentValues[] values) {
-        return mRegistry.getDelegate(uri)
-            .bulkInsert(mDatabaseHelper, mContentResolver, uri, values);
+        int count;
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            count = mRegistry.getDelegate(uri)
+                .bulkInsert(mDatabaseHelper, mContentResolver, uri, values);
+        } finally {
+            lock.unlock();
+        }
+        if (count > 0) mChangeBus.notifyChange(uri);
+        return count;
     }
 
     @Override public int delete(Uri uri, String selection, String[] selectionArgs) {
-        return mRegistry.getDelegate(uri)
-            .delete(mDatabaseHelper, mContentResolver, uri, selection, selectionArgs);
+        int count;
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            count = mRegistry.getDelegate(uri)
+                .delete(mDatabaseHelper, mContentResolver, uri, selection, selectionArgs);
+        } finally {
+            lock.unlock();
+        }
+        if (count > 0) mChangeBus.notifyChange(uri);
+        return count;
     }
 
     @Override public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        return mRegistry.getDelegate(uri)
-            .update(
-                mDatabaseHelper, mContentResolver, uri, values, selection, selectionArgs);
+        int count;
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            count = mRegistry.getDelegate(uri)
+                .update(
+                    mDatabaseHelper, mContentResolver, uri, values, selection, selectionArgs);
+        } finally {
+            lock.unlock();
+        }
+        if (count > 0) mChangeBus.notifyChange(uri);
+        return count;
+    }
+
+    /**
+     * Applies all the operations in one transaction, so that they are all rolled
+     * back if any of them fails.  Since the changes are committed together,
+     * observers hear about each changed URI once, instead of once per operation.
+     */
+    @Override public ContentProviderResult[] applyBatch(
+        ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        try (DatabaseTransaction tx = startLockedTransaction(BATCH_SAVEPOINT)) {
+            try {
+                return super.applyBatch(operations);
+            } catch (OperationApplicationException | RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Starts a transaction that holds the read lock of {@link #mDatabaseLock}
+     * until it is closed.
+     */
+    protected DatabaseTransaction startLockedTransaction(String name) {
+        Lock lock = mDatabaseLock.readLock();
+        lock.lock();
+        try {
+            return new DatabaseTransaction(mDatabaseHelper.getWritableDatabase(), name, lock);
+        } finally {
+            lock.unlock();  // the transaction holds it again until it is closed
+        }
     }
 }
@@ -55,7 +55,6 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
         Database dbHelper, ContentResolver contentResolver, Uri uri,
         ContentValues values) {
         long id = dbHelper.getWritableDatabase().replaceOrThrow(mTable.name, null, values);
-        contentResolver.notifyChange(uri, null, false);
         return uri.buildUpon().appendPath(Long.toString(id)).build();
     }
 
@@ -69,25 +68,14 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
         ContentValues first = allValues[0];
         String[] columns = first.keySet().toArray(new String[first.size()]);
         try (DatabaseTransaction tx = new DatabaseTransaction(db, BULK_INSERT_SAVEPOINT)) {
-            try (SQLiteStatement statement = makeInsertStatement(db, mTable.name, columns)) {
-                Object[] bindings = new Object[first.size()];
+            try (SQLiteStatement statement = TableWriter.compileInsert(db, mTable.name, columns)) {
                 for (ContentValues values : allValues) {
                     statement.clearBindings();
                     if (values.size() != first.size()) {
                         throw new AssertionError();
                     }
-                    for (int i = 0; i < bindings.length; i++) {
-                        Object value = values.get(columns[i]);
-                        // This isn't super safe, but is in our context.
-                        int bindingIndex = i + 1;
-                        if (value instanceof String) {
-                            statement.bindString(bindingIndex, (String) value);
-                        } else if ((value instanceof Long) || value instanceof Integer) {
-                            statement.bindLong(bindingIndex, ((Number) value).longValue());
-                        } else if ((value instanceof Double) || value instanceof Float) {
-                            statement.bindDouble(bindingIndex, ((Number) value).doubleValue());
-                        }
-                        bindings[i] = value;
+                    for (int i = 0; i < columns.length; i++) {
+                        TableWriter.bind(statement, i + 1, values.get(columns[i]));
                     }
                     statement.executeInsert();
                 }
@@ -96,45 +84,15 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
                 tx.rollback();
             }
         }
-        contentResolver.notifyChange(uri, null, false);
         return allValues.length;
     }
 
-    private SQLiteStatement makeInsertStatement(
-        SQLiteDatabase db, String table, String[] columns) {
-        // I kind of hoped this would be provided by SQLiteDatabase or DatabaseHelper,
-        // But it doesn't seem to be. Innards copied from SQLiteDatabase.insertWithOnConflict
-        StringBuilder sql = new StringBuilder();
-        sql.append("INSERT OR REPLACE ");
-        sql.append(" INTO ");
-        sql.append(table);
-        sql.append('(');
-
-        int size = (columns != null && columns.length > 0) ? columns.length : 0;
-        if (size <= 0) {
-            throw new IllegalArgumentException();
-        }
-        for (int i = 0; i < columns.length; i++) {
-            sql.append((i > 0) ? "," : "");
-            sql.append(columns[i]);
-        }
-        sql.append(')');
-        sql.append(" VALUES (");
-        for (int i = 0; i < size; i++) {
-            sql.append((i > 0) ? ",?" : "?");
-        }
-        sql.append(')');
-
-        return db.compileStatement(sql.toString());
-    }
-
     @Override public int delete(
         Database dbHelper, ContentResolver contentResolver, Uri uri,
         String selection, String[] selectionArgs) {
         int count = new QueryBuilder(mTable)
             .where(selection, selectionArgs)
             .delete(dbHelper.getWritableDatabase());
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 
@@ -144,7 +102,6 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
         int count = new QueryBuilder(mTable)
             .where(selection, selectionArgs)
             .update(dbHelper.getWritableDatabase(), values);
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 }
@@ -46,7 +46,6 @@ public class InsertableItemProviderDelegate extends ItemProviderDelegate {
             dbHelper.getWritableDatabase().insertWithOnConflict(
                 mTable.name, null, values, SQLiteDatabase.CONFLICT_IGNORE);
         }
-        contentResolver.notifyChange(uri, null, false);
         return getPrefixUriBuilder(uri).appendPath(uri.getLastPathSegment()).build();
     }
 
@@ -74,7 +74,6 @@ public class ItemProviderDelegate implements ProviderDelegate<Database> {
             .where(mIdColumn + "=?", uri.getLastPathSegment())
             .where(selection, selectionArgs)
             .delete(dbHelper.getWritableDatabase());
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 
@@ -85,7 +84,6 @@ public class ItemProviderDelegate implements ProviderDelegate<Database> {
             .where(mIdColumn + "=?", uri.getLastPathSegment())
             .where(selection, selectionArgs)
             .update(dbHelper.getWritableDatabase(), values);
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 }
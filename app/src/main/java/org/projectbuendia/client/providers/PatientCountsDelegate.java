@@ -20,7 +20,10 @@ import org.projectbuendia.client.sync.Database;
 import org.projectbuendia.client.sync.QueryBuilder;
 import org.projectbuendia.client.providers.Contracts.Table;
 
-/** A {@link ProviderDelegate} that provides query access to the count of patients in each location. */
+/**
+ * A {@link ProviderDelegate} that provides query access to the count of patients in each location,
+ * which the database keeps up to date in the patient_counts table.
+ */
 public class PatientCountsDelegate implements ProviderDelegate<Database> {
 
     @Override public String getType() {
@@ -30,15 +33,12 @@ public class PatientCountsDelegate implements ProviderDelegate<Database> {
     @Override public Cursor query(
         Database dbHelper, ContentResolver contentResolver, Uri uri, String[] projection,
         String selection, String[] selectionArgs, String sortOrder) {
-        return new QueryBuilder(Table.PATIENTS)
+        return new QueryBuilder(Table.PATIENT_COUNTS)
             .where(selection, selectionArgs)
-            .where(Contracts.Patients.LOCATION_UUID + " is not null")
-            .groupBy(Contracts.Patients.LOCATION_UUID)
             .orderBy(sortOrder)
             .select(dbHelper.getReadableDatabase(),
-                Contracts.Patients.ID,
-                Contracts.Patients.LOCATION_UUID,
-                "count(*) as " + Contracts.PatientCounts.PATIENT_COUNT);
+                Contracts.PatientCounts.LOCATION_UUID,
+                Contracts.PatientCounts.PATIENT_COUNT);
     }
 
     @Override public Uri insert(
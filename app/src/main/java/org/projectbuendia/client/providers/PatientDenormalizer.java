@@ -0,0 +1,90 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+import org.projectbuendia.models.ConceptUuids;
+
+import java.util.Collection;
+
+/**
+ * Fills in the denormalized columns of the patients table (pregnancy, location,
+ * and bed number) from the latest observations of the corresponding concepts,
+ * for any number of patients at once.  The patients to update are loaded into a
+ * temporary table so that each column can be set with one statement instead of
+ * a query and an update per patient.
+ */
+class PatientDenormalizer {
+    private static final Logger LOG = Logger.create();
+
+    private static final String TEMP_TABLE = "denormalize_patients";
+
+    /** Selects the latest value for a concept; %s is the patient UUID expression. */
+    private static final String LATEST_VALUE_QUERY = ""
+        + "SELECT value FROM observations"
+        + " WHERE observations.patient_uuid = %s"
+        + "   AND observations.concept_uuid = ?"
+        + "   AND observations.voided IS NOT 1"
+        + " ORDER BY observations.millis DESC LIMIT 1";
+
+    /** Updates the denormalized columns for the given patients; returns the number of patients. */
+    static int denormalize(SQLiteDatabase db, Collection<String> patientUuids) {
+        LOG.start("denormalize");
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TEMP_TABLE + " (uuid TEXT PRIMARY KEY)");
+        db.execSQL("DELETE FROM temp." + TEMP_TABLE);
+        try (SQLiteStatement insert = db.compileStatement(
+            "INSERT OR IGNORE INTO temp." + TEMP_TABLE + " VALUES (?)")) {
+            for (String uuid : patientUuids) {
+                insert.bindString(1, uuid);
+                insert.executeInsert();
+            }
+        }
+
+        // Pregnancy is a plain SQL expression of the observed value, so one
+        // UPDATE covers all the patients.  Patients with no pregnancy
+        // observation keep their current value.
+        db.execSQL("UPDATE patients SET pregnancy = COALESCE(("
+                + String.format(LATEST_VALUE_QUERY, "patients.uuid") + ") = ?, pregnancy)"
+                + " WHERE uuid IN (SELECT uuid FROM temp." + TEMP_TABLE + ")",
+            new Object[] {ConceptUuids.PREGNANCY_UUID, ConceptUuids.YES_UUID});
+
+        // Placement values have the form "locationUuid/bed", which is split in
+        // Java (SQLite on older devices lacks instr()), so the latest values are
+        // fetched with one query and applied with one reused statement.
+        int count = 0;
+        try (Cursor c = db.rawQuery("SELECT d.uuid, ("
+                + String.format(LATEST_VALUE_QUERY, "d.uuid") + ")"
+                + " FROM temp." + TEMP_TABLE + " AS d",
+            new String[] {ConceptUuids.PLACEMENT_UUID});
+             SQLiteStatement update = db.compileStatement(
+                 "UPDATE patients SET location_uuid = ?, bed_number = ? WHERE uuid = ?")) {
+            while (c.moveToNext()) {
+                count++;
+                String placement = c.getString(1);
+                if (placement == null) continue;
+                String[] parts = Utils.splitFields(placement, "/", 2);
+                update.bindString(1, parts[0]);
+                update.bindString(2, parts[1]);
+                update.bindString(3, c.getString(0));
+                update.executeUpdateDelete();
+            }
+        }
+        db.execSQL("DELETE FROM temp." + TEMP_TABLE);
+        LOG.finish("denormalize", "Denormalized observations for %d patients", count);
+        return count;
+    }
+}
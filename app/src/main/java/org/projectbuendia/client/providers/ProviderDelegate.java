@@ -19,7 +19,10 @@ import android.net.Uri;
 
 import android.database.sqlite.SQLiteOpenHelper;
 
-/** A delegate used to handle a single URI for {@link DelegatingProvider}. */
+/**
+ * A delegate used to handle a single URI for {@link DelegatingProvider}.  Delegates
+ * don't notify observers of their changes; {@link DelegatingProvider} does that.
+ */
 public interface ProviderDelegate<T extends SQLiteOpenHelper> {
 
     static final String TYPE_PACKAGE_PREFIX = "/vnd.projectbuendia.client.";
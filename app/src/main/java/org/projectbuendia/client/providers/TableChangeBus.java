@@ -0,0 +1,151 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the changes made to the database and passes them on to observers
+ * in batches, instead of one notification per write.  A change made within a
+ * {@link DatabaseTransaction} is held until the outermost transaction ends,
+ * since other threads can't see it before then, and changes are sent out on
+ * the main thread at most once per frame.  Each batch notifies the
+ * ContentResolver once per changed URI (for CursorLoaders and other
+ * ContentObservers) and then tells each {@link Listener} which tables changed.
+ */
+public class TableChangeBus {
+    /** The longest that a change waits to be sent out (about one frame). */
+    private static final long FLUSH_DELAY_MILLIS = 16;
+
+    /** Maps the first path segment of each URI to the tables it reads. */
+    private static final Map<String, Set<Table>> TABLES_BY_PATH = new HashMap<>();
+    static {
+        addPath(Contracts.Bookmarks.URI, Table.BOOKMARKS);
+        addPath(Contracts.ChartItems.URI, Table.CHART_ITEMS);
+        addPath(Contracts.Concepts.URI, Table.CONCEPTS);
+        addPath(Contracts.Forms.URI, Table.FORMS);
+        addPath(Contracts.Locations.URI, Table.LOCATIONS);
+        addPath(Contracts.MaintenanceRuns.URI, Table.MAINTENANCE_RUNS);
+        addPath(Contracts.Misc.URI, Table.MISC);
+        // Triggers update latest_observations whenever observations changes.
+        addPath(Contracts.Observations.URI, Table.OBSERVATIONS, Table.LATEST_OBSERVATIONS);
+        addPath(Contracts.LatestObservations.URI, Table.LATEST_OBSERVATIONS);
+        addPath(Contracts.Orders.URI, Table.ORDERS);
+        // Triggers update patient_counts and patient_search whenever patients changes.
+        addPath(Contracts.Patients.URI, Table.PATIENTS, Table.PATIENT_COUNTS, Table.PATIENT_SEARCH);
+        addPath(Contracts.PatientCounts.URI, Table.PATIENT_COUNTS);
+        addPath(Contracts.SyncMetrics.URI, Table.SYNC_METRICS);
+        addPath(Contracts.Users.URI, Table.USERS);
+    }
+
+    /** Receives the set of tables that changed, on the main thread. */
+    public interface Listener {
+        void onTablesChanged(Set<Table> tables);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Runnable mFlush = this::flush;
+
+    /** The changes made on each thread and not yet committed. */
+    private final ThreadLocal<Set<Uri>> mUncommittedUris = new ThreadLocal<Set<Uri>>() {
+        @Override protected Set<Uri> initialValue() {
+            return new LinkedHashSet<>();
+        }
+    };
+
+    // The committed changes waiting to be sent out; guarded by this.
+    private final Set<Uri> mDirtyUris = new LinkedHashSet<>();
+    private boolean mFlushScheduled = false;
+
+    public TableChangeBus(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** Marks the data at a URI as changed; this can be called on any thread. */
+    public void notifyChange(Uri uri) {
+        Set<Uri> uris = mUncommittedUris.get();
+        boolean first = uris.isEmpty();
+        uris.add(uri);
+        if (first) {
+            DatabaseTransaction.runAfterCommit(this::commit);
+        }
+    }
+
+    /** Moves the current thread's changes into the queue to be sent out. */
+    private void commit() {
+        Set<Uri> uris = mUncommittedUris.get();
+        synchronized (this) {
+            mDirtyUris.addAll(uris);
+            if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+                mFlushScheduled = true;
+            }
+        }
+        uris.clear();
+    }
+
+    private void flush() {
+        Set<Uri> uris;
+        synchronized (this) {
+            uris = new LinkedHashSet<>(mDirtyUris);
+            mDirtyUris.clear();
+            mFlushScheduled = false;
+        }
+        Set<Table> tables = EnumSet.noneOf(Table.class);
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null, false);
+            tables.addAll(getTables(uri));
+        }
+        if (!tables.isEmpty()) {
+            Set<Table> changed = Collections.unmodifiableSet(tables);
+            for (Listener listener : mListeners) {
+                listener.onTablesChanged(changed);
+            }
+        }
+    }
+
+    /** Gets the tables whose contents are read through a URI. */
+    static Set<Table> getTables(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) return EnumSet.allOf(Table.class);
+        Set<Table> tables = TABLES_BY_PATH.get(segments.get(0));
+        return tables != null ? tables : EnumSet.noneOf(Table.class);
+    }
+
+    private static void addPath(Uri uri, Table first, Table... rest) {
+        TABLES_BY_PATH.put(uri.getPathSegments().get(0), EnumSet.of(first, rest));
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Writes rows into one table in bulk, using compiled statements that are reused
+ * for every row, so that large numbers of rows can be stored without going
+ * through the ContentProvider interface one row at a time.  Rows are inserted
+ * with INSERT OR REPLACE and deleted by the value of a key column.
+ * <p>
+ * Opening a TableWriter starts a transaction and closing it finishes the
+ * transaction, which, as with SQLiteDatabase.setTransactionSuccessful(), is
+ * committed only if markSuccessful() was called and rolled back otherwise.
+ * Call markSuccessful() at the end of the code that writes, so that if an
+ * exception is thrown midway, nothing it wrote is kept.  A committed writer
+ * sends a single change notification for the table's URI, if any rows were
+ * written.  Obtain one with {@link BuendiaProvider#openTableWriter}.
+ */
+public final class TableWriter implements AutoCloseable { // @nolint
+    private static final String SAVEPOINT_PREFIX = "TABLE_WRITER_";
+
+    private final SQLiteDatabase mDatabase;
+    private final TableChangeBus mChangeBus;
+    private final Uri mUri;
+    private final Table mTable;
+    private final String mKeyColumn;
+    private final DatabaseTransaction mTransaction;
+
+    // Insert statements are compiled for each distinct set of columns written.
+    private final Map<Set<String>, InsertStatement> mInserts = new HashMap<>();
+    private InsertStatement mInsert = null;  // the most recently used insert statement
+    private SQLiteStatement mDelete = null;
+    private int mNumInserts = 0;
+    private int mNumDeletes = 0;
+    private boolean mSuccessful = false;
+
+    TableWriter(SQLiteDatabase database, TableChangeBus changeBus,
+                Uri uri, Table table, String keyColumn) {
+        this(database, null, changeBus, uri, table, keyColumn);
+    }
+
+    /** Creates a writer whose transaction holds the given lock, if any, until it is closed. */
+    TableWriter(SQLiteDatabase database, @Nullable Lock lock, TableChangeBus changeBus,
+                Uri uri, Table table, String keyColumn) {
+        mDatabase = database;
+        mChangeBus = changeBus;
+        mUri = uri;
+        mTable = table;
+        mKeyColumn = keyColumn;
+        mTransaction = new DatabaseTransaction(database, SAVEPOINT_PREFIX + table.name, lock);
+    }
+
+    /** Inserts or replaces a row; columns absent from the values are set to their defaults. */
+    public void upsert(ContentValues values) {
+        Set<String> columns = values.keySet();
+        if (mInsert == null || !mInsert.columnSet.equals(columns)) {
+            mInsert = mInserts.get(columns);
+            if (mInsert == null) {
+                mInsert = new InsertStatement(columns);
+                mInserts.put(mInsert.columnSet, mInsert);
+            }
+        }
+        SQLiteStatement statement = mInsert.statement;
+        statement.clearBindings();
+        for (int i = 0; i < mInsert.columns.length; i++) {
+            bind(statement, i + 1, values.get(mInsert.columns[i]));
+        }
+        statement.executeInsert();
+        mNumInserts++;
+    }
+
+    /** Deletes the row whose key column has the given value, if there is one. */
+    public void delete(String key) {
+        if (mDelete == null) {
+            mDelete = mDatabase.compileStatement(
+                "DELETE FROM " + mTable.name + " WHERE " + mKeyColumn + " = ?");
+        }
+        mDelete.bindString(1, key);
+        mNumDeletes += mDelete.executeUpdateDelete();
+    }
+
+    /** Deletes all the rows in the table. */
+    public void deleteAll() {
+        mNumDeletes += mDatabase.delete(mTable.name, "1", null);
+    }
+
+    /** Marks everything written as complete, to be committed when the writer is closed. */
+    public void markSuccessful() {
+        mSuccessful = true;
+    }
+
+    public int getNumInserts() {
+        return mNumInserts;
+    }
+
+    public int getNumDeletes() {
+        return mNumDeletes;
+    }
+
+    /**
+     * Commits the transaction and notifies observers of any changes if the
+     * writer was marked successful; otherwise discards everything written.
+     */
+    @Override public void close() {
+        for (InsertStatement insert : mInserts.values()) {
+            insert.statement.close();
+        }
+        if (mDelete != null) mDelete.close();
+        if (!mSuccessful) mTransaction.rollback();
+        mTransaction.close();
+        if (mSuccessful && mNumInserts + mNumDeletes > 0) {
+            mChangeBus.notifyChange(mUri);
+        }
+    }
+
+    /** Compiles an INSERT OR REPLACE statement with a parameter for each column. */
+    static SQLiteStatement compileInsert(SQLiteDatabase db, String table, String[] columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("No columns to insert into " + table);
+        }
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ");
+        sql.append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        return db.compileStatement(sql.append(')').toString());
+    }
+
+    /** Binds a value of any type that ContentValues can hold to a statement parameter. */
+    static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof String) {
+            statement.bindString(index, (String) value);
+        } else if (value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private class InsertStatement {
+        final Set<String> columnSet;
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        InsertStatement(Set<String> columnSet) {
+            this.columnSet = new HashSet<>(columnSet);
+            this.columns = columnSet.toArray(new String[columnSet.size()]);
+            this.statement = compileInsert(mDatabase, mTable.name, columns);
+        }
+    }
+}
@@ -58,7 +58,6 @@ class UsersDelegate implements ProviderDelegate<Database> {
         ContentValues values) {
         long id = dbHelper.getWritableDatabase()
             .replaceOrThrow(Table.USERS.name, null, values);
-        contentResolver.notifyChange(uri, null, false);
         return uri.buildUpon().appendPath(Long.toString(id)).build();
     }
 
@@ -68,7 +67,6 @@ class UsersDelegate implements ProviderDelegate<Database> {
         int count = new QueryBuilder(Table.USERS)
             .where(selection, selectionArgs)
             .delete(dbHelper.getWritableDatabase());
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 
@@ -78,7 +76,6 @@ class UsersDelegate implements ProviderDelegate<Database> {
         int count = new QueryBuilder(Table.USERS)
             .where(selection, selectionArgs)
             .update(dbHelper.getWritableDatabase(), values);
-        if (count > 0) contentResolver.notifyChange(uri, null, false);
         return count;
     }
 }
@@ -3,6 +3,7 @@ package org.projectbuendia.client.receivers;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.BatteryManager;
 
 import org.joda.time.Duration;
@@ -17,10 +18,9 @@ public class BatteryWatcher extends BroadcastReceiver {
     private boolean acPlugged = false;
 
     @Override public void onReceive(Context context, Intent intent) {
-        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
         // NOTE(ping): The charging docks we are using don't seem to trigger
         // DOCK_EVENT actions, so we watch for AC charging instead.
-        boolean newAcPlugged = (plugged & BatteryManager.BATTERY_PLUGGED_AC) > 0;
+        boolean newAcPlugged = isAcPlugged(intent);
         if (newAcPlugged && !acPlugged) {
             LOG.i("AC charging started");
             dockTime = Instant.now();
@@ -41,4 +41,19 @@ public class BatteryWatcher extends BroadcastReceiver {
             ? new Duration(dockTime, Instant.now())
             : new Duration(0);
     }
+
+    /**
+     * Returns true if the tablet is charging from AC power, i.e. sitting in its
+     * dock.  Unlike isDocked(), this works without registering a receiver, as it
+     * reads the last battery status that the system broadcast.
+     */
+    public static boolean isOnAcPower(Context context) {
+        Intent status = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return status != null && isAcPlugged(status);
+    }
+
+    private static boolean isAcPlugged(Intent intent) {
+        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        return (plugged & BatteryManager.BATTERY_PLUGGED_AC) > 0;
+    }
 }
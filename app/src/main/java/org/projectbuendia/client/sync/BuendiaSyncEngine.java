@@ -26,20 +26,26 @@ import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
 import org.joda.time.DateTime;
 import org.joda.time.Instant;
+import org.projectbuendia.client.App;
+import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.R;
+import org.projectbuendia.client.net.VolleySingleton;
 import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts.Bookmarks;
 import org.projectbuendia.client.providers.Contracts.Misc;
+import org.projectbuendia.client.providers.Contracts.Patients;
 import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.providers.DatabaseTransaction;
 import org.projectbuendia.client.sync.SyncManager.SyncStatus;
 import org.projectbuendia.client.sync.controllers.ChartsSyncWorker;
 import org.projectbuendia.client.sync.controllers.ConceptsSyncWorker;
 import org.projectbuendia.client.sync.controllers.FormsSyncWorker;
+import org.projectbuendia.client.sync.controllers.IncrementalSyncWorker;
 import org.projectbuendia.client.sync.controllers.LocationsSyncWorker;
 import org.projectbuendia.client.sync.controllers.ObservationsSyncWorker;
 import org.projectbuendia.client.sync.controllers.OrdersSyncWorker;
@@ -49,21 +55,48 @@ import org.projectbuendia.client.sync.controllers.UsersSyncWorker;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 
 /** Implementation of sync operations for the Buendia database. */
 public class BuendiaSyncEngine implements SyncEngine {
     private static final Logger LOG = Logger.create();
     private static final String SAVEPOINT_NAME = "SYNC_SAVEPOINT";
+    private static final String STEP_SAVEPOINT_NAME = "SYNC_STEP_SAVEPOINT";
+    private static final String PATIENT_SAVEPOINT_NAME = "PATIENT_SYNC_SAVEPOINT";
     private static final String KEY_PHASES = "PHASES";
+    private static final String KEY_PATIENT_UUID = "PATIENT_UUID";
 
     private final Context context;
     private final ContentResolver contentResolver;
-    private boolean isCancelled = false;
+    // The threads running sync(), and those of them that cancel() has stopped; guarded by this.
+    private final Set<Thread> syncThreads = new HashSet<>();
+    private final Set<Thread> cancelledThreads = new HashSet<>();
 
-    /** The available phases, in the default order in which to run them. */
+    /**
+     * The workers for syncs of single patients.  These are not the workers of the
+     * phases, which keep state from page to page of a sync of all patients, because
+     * a patient sync can run on another thread while such a sync is in progress.
+     */
+    private final IncrementalSyncWorker<?>[] patientWorkers = {
+        new ObservationsSyncWorker(), new OrdersSyncWorker()
+    };
+
+    /**
+     * The available phases, in the default order in which to run them.  A phase
+     * that depends on other phases is not started until all of those phases that
+     * are part of the same sync have been completed; phases that don't depend on
+     * each other have their data fetched concurrently.  Every phase must be
+     * declared after all the phases it depends on.
+     */
     public enum Phase {
         LOCATIONS(R.string.syncing_locations, new LocationsSyncWorker()),
         USERS(R.string.syncing_users, new UsersSyncWorker()),
@@ -71,16 +104,19 @@ public class BuendiaSyncEngine implements SyncEngine {
         CHART_ITEMS(R.string.syncing_charts, new ChartsSyncWorker()),
         FORMS(R.string.syncing_forms, new FormsSyncWorker()),
         PATIENTS(R.string.syncing_patients, new PatientsSyncWorker()),
-        OBSERVATIONS(R.string.syncing_observations, new ObservationsSyncWorker()),
-        ORDERS(R.string.syncing_orders, new OrdersSyncWorker());
+        // Denormalization of observations into patients needs the patient rows.
+        OBSERVATIONS(R.string.syncing_observations, new ObservationsSyncWorker(), CONCEPTS, PATIENTS),
+        ORDERS(R.string.syncing_orders, new OrdersSyncWorker(), PATIENTS);
 
         public final @StringRes int message;
         public final SyncWorker worker;
+        public final Set<Phase> dependencies;
         public static final Phase[] ALL_PHASES = Phase.values();
 
-        Phase(int message, SyncWorker worker) {
+        Phase(int message, SyncWorker worker, Phase... dependencies) {
             this.message = message;
             this.worker = worker;
+            this.dependencies = ImmutableSet.copyOf(dependencies);
         }
     }
 
@@ -89,15 +125,33 @@ public class BuendiaSyncEngine implements SyncEngine {
         this.contentResolver = context.getContentResolver();
     }
 
-    @Override public void cancel() {
-        isCancelled = true;
+    /**
+     * Cancels the running syncs at once: their network requests are cancelled, and
+     * their threads are interrupted so that they stop waiting for them (or stop
+     * applying the page they are on) and roll back.
+     */
+    @Override public synchronized void cancel() {
         LOG.i("Received a cancel() request");
+        VolleySingleton.getInstance(context).cancelAll(SyncWorker.REQUEST_TAG);
+        for (Thread thread : syncThreads) {
+            cancelledThreads.add(thread);
+            thread.interrupt();
+        }
     }
 
     public static Bundle buildOptions(Phase... phases) {
         return Utils.bundle(KEY_PHASES, Joiner.on(",").join(phases));
     }
 
+    /** Builds the options for a sync of just one patient's observations and orders. */
+    public static Bundle buildPatientOptions(String patientUuid) {
+        return Utils.bundle(KEY_PATIENT_UUID, patientUuid);
+    }
+
+    public static @Nullable String getPatientUuid(Bundle options) {
+        return options != null ? options.getString(KEY_PATIENT_UUID) : null;
+    }
+
     public static @NonNull List<Phase> getPhases(Bundle options) {
         List<Phase> phases = new ArrayList<>();
         if (options != null) {
@@ -112,17 +166,54 @@ public class BuendiaSyncEngine implements SyncEngine {
         return phases;
     }
 
-    /** Not thread-safe but, by default, this will never be called multiple times in parallel. */
+    /**
+     * Runs the requested phases, or a sync of one patient (see {@link
+     * #buildPatientOptions}).  In resumable mode (see {@link
+     * AppSettings#getSyncResumable()}, on by default), each step -- one page of a
+     * phase, which includes saving its bookmark, or the finalization of a phase -- is
+     * committed as soon as it completes, so an interrupted sync keeps the pages it has
+     * already applied and the next sync resumes from the last saved bookmarks.
+     * Otherwise the whole sync of phases is one transaction, so any failure rolls back
+     * everything; but that transaction holds the database's one writing connection
+     * for the whole sync, so the UI can still read, while anything else that writes,
+     * such as a submitted form or a patient sync, waits until the sync ends.
+     * <p>
+     * A sync of one patient may run on another thread while phases are being synced,
+     * so that an open chart doesn't wait for a long sync; otherwise this is never
+     * called while another sync is running.
+     */
     @Override public void sync(Bundle options, ContentProviderClient client, SyncResult result) {
-        isCancelled = false;
-
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            syncThreads.add(thread);
+        }
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        provider.setSyncThread(true);
+        String patientUuid = getPatientUuid(options);
+        SyncStatus status;
+        boolean othersRunning;
         try {
             checkCancellation("before work started");
+            status = patientUuid != null
+                ? syncPatient(patientUuid, client, result)
+                : runSync(options, client, result);
         } catch (CancellationException e) {
-            broadcastSyncStatus(SyncStatus.CANCELLED);
-            return;
+            status = SyncStatus.CANCELLED;
+        } finally {
+            provider.setSyncThread(false);
+            synchronized (this) {
+                syncThreads.remove(thread);
+                cancelledThreads.remove(thread);
+                othersRunning = !syncThreads.isEmpty();
+            }
+            Thread.interrupted();  // clears an interrupt that came too late to matter
         }
+        // Sent after this sync has left syncThreads, so that whichever of two
+        // concurrent syncs stops last is the one that reports that none is running.
+        broadcastSyncStatus(status, patientUuid, othersRunning);
+    }
 
+    private SyncStatus runSync(Bundle options, ContentProviderClient client, SyncResult result) {
         List<Phase> phases = getPhases(options);
         boolean fullSync = Sets.newHashSet(phases).equals(Sets.newHashSet(Phase.ALL_PHASES));
         LOG.start("sync", "options = %s", options);
@@ -130,21 +221,43 @@ public class BuendiaSyncEngine implements SyncEngine {
         broadcastSyncProgress(0, 1, R.string.sync_in_progress);
 
         BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
-        try (DatabaseTransaction tx = provider.startTransaction(SAVEPOINT_NAME)) {
+        try {
+            if (fullSync && App.getSettings().getSyncSnapshotBootstrap() && isEmpty(client)) {
+                bootstrapFromSnapshot(provider);
+            }
+        } catch (InterruptedException e) {
+            LOG.i("Cancelled during snapshot download");
+            return SyncStatus.CANCELLED;
+        } catch (RemoteException e) {
+            LOG.e(e, "Could not check whether the database is empty");
+        }
+
+        boolean resumable = App.getSettings().getSyncResumable();
+        SyncTelemetry telemetry = new SyncTelemetry();
+        provider.setSyncTelemetry(telemetry);
+        SyncStatus status = SyncStatus.SUCCEEDED;
+        try (DatabaseTransaction tx = resumable ? null : provider.startTransaction(SAVEPOINT_NAME)) {
             try {
-                if (fullSync) storeFullSyncStartTime(client, Instant.now());
+                if (fullSync) storeFullSyncStartTime(client, Instant.now(), resumable);
                 LOG.elapsed("sync", "Starting phases");
                 int completedWork = 0;
                 int totalWork = phases.size();
+                List<Phase> pending = new ArrayList<>(new LinkedHashSet<>(phases));
+                Set<Phase> started = EnumSet.noneOf(Phase.class);
 
-                for (Phase phase : phases) {
-                    checkCancellation("before " + phase);
+                while (!pending.isEmpty()) {
+                    checkCancellation("before next phase");
+                    startReadyPhases(pending, started, result, client);
+                    Phase phase = chooseNextPhase(pending, started);
+                    pending.remove(phase);
                     broadcastSyncProgress(completedWork, totalWork, phase.message);
                     LOG.i("Start phase: %s", phase);
-                    phase.worker.initialize(contentResolver, result, client);
                     boolean done = false;
+                    int page = 0;
                     while (!done) {
-                        done = phase.worker.sync(contentResolver, result, client);
+                        done = runStep(provider, resumable, telemetry.startStep(phase, ++page, result),
+                            result, () -> phase.worker.awaitResponse(contentResolver, client),
+                            () -> phase.worker.sync(contentResolver, result, client));
                         completedWork++;
                         if (!done) {
                             totalWork++;
@@ -152,34 +265,199 @@ public class BuendiaSyncEngine implements SyncEngine {
                             checkCancellation("during " + phase);
                         }
                     }
-                    phase.worker.finalize(contentResolver, result, client);
+                    runStep(provider, resumable, telemetry.startStep(phase, null, result),
+                        result, null, () -> {
+                            phase.worker.finalize(contentResolver, result, client);
+                            return true;
+                        });
                     LOG.elapsed("sync", "Completed phase %s", phase);
                 }
                 broadcastSyncProgress(1, 1, R.string.completing_sync);
                 if (fullSync) storeFullSyncEndTime(client, Instant.now());
             } catch (CancellationException e) {
                 LOG.i(e, "Cancelled %s", options);
-                tx.rollback();
-                // Reset canceled state so that it doesn't interfere with next sync.
-                broadcastSyncStatus(SyncStatus.CANCELLED);
-                return;
+                if (tx != null) tx.rollback();
+                status = SyncStatus.CANCELLED;
             } catch (OperationApplicationException e) {
                 LOG.e(e, "Failed due to database error");
-                tx.rollback();
+                if (tx != null) tx.rollback();
                 result.databaseError = true;
-                broadcastSyncStatus(SyncStatus.FAILED);
-                return;
+                status = SyncStatus.FAILED;
             } catch (Throwable e) {
-                LOG.e(e, "Failed due to exception");
-                tx.rollback();
+                if (tx != null) tx.rollback();
+                if (wasCancelled(e)) {
+                    LOG.i(e, "Cancelled %s while waiting or applying", options);
+                    status = SyncStatus.CANCELLED;
+                } else {
+                    LOG.e(e, "Failed due to exception");
+                    result.stats.numIoExceptions++;
+                    status = SyncStatus.FAILED;
+                }
+            }
+        }
+        // Saved after the transaction is closed, so that failed syncs are recorded too.
+        provider.setSyncTelemetry(null);
+        telemetry.save(client, status, result);
+        if (status == SyncStatus.SUCCEEDED) {
+            LOG.finish("sync");
+            LOG.i("Completed", options);
+        }
+        return status;
+    }
+
+    /**
+     * Returns true if nothing has been synced to this tablet yet: there are no
+     * bookmarks and no patients, so replacing the database would lose nothing.
+     */
+    private boolean isEmpty(ContentProviderClient client) throws RemoteException {
+        try (Cursor c = client.query(Bookmarks.URI, null, null, null, null)) {
+            if (c.getCount() > 0) return false;
+        }
+        try (Cursor c = client.query(Patients.URI, new String[] {Patients.UUID}, null, null, null)) {
+            return c.getCount() == 0;
+        }
+    }
+
+    /**
+     * Downloads a snapshot of the server's database and swaps it in (see {@link
+     * DatabaseSnapshot}), so that the phases that follow sync incrementally from
+     * its bookmarks.  This runs before the sync's transaction is started, as the
+     * database is closed and replaced.  If the server has no snapshot or the
+     * download fails, the sync simply continues from the empty database.
+     */
+    private void bootstrapFromSnapshot(BuendiaProvider provider) throws InterruptedException {
+        LOG.start("bootstrapFromSnapshot");
+        broadcastSyncProgress(0, 1, R.string.syncing_snapshot);
+        try {
+            File snapshot = DatabaseSnapshot.download(context, App.getConnectionDetails(),
+                (bytes, totalBytes) -> {
+                    if (totalBytes > 0) {
+                        broadcastSyncProgress((int) (bytes / 1024), (int) (totalBytes / 1024),
+                            R.string.syncing_snapshot);
+                    }
+                });
+            if (snapshot != null) {
+                provider.replaceDatabase(snapshot);
+                LOG.i("Replaced the database with the server's snapshot");
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.w(e, "Snapshot bootstrap failed; continuing with a full sync");
+        }
+        LOG.finish("bootstrapFromSnapshot");
+    }
+
+    /**
+     * Fetches the newest observations and orders for one patient, without moving
+     * any bookmarks (see {@link IncrementalSyncWorker#fetchPatient}).  Everything is
+     * downloaded first and then stored in one short transaction, so the database
+     * is held only while writing.  No progress is broadcast, so the sync status UI
+     * is not disturbed; the outcome is broadcast with the patient's UUID attached.
+     */
+    private SyncStatus syncPatient(String patientUuid, ContentProviderClient client, SyncResult result) {
+        LOG.start("syncPatient", "patientUuid = %s", patientUuid);
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        SyncStatus status = SyncStatus.SUCCEEDED;
+        try {
+            List<IncrementalSyncWorker.PatientUpdate> updates = new ArrayList<>();
+            for (IncrementalSyncWorker<?> worker : patientWorkers) {
+                updates.add(worker.fetchPatient(client, patientUuid));
+                checkCancellation("during patient sync");
+            }
+            try (DatabaseTransaction tx = provider.startTransaction(PATIENT_SAVEPOINT_NAME)) {
+                try {
+                    for (IncrementalSyncWorker.PatientUpdate update : updates) {
+                        update.store(contentResolver, result, client);
+                    }
+                } catch (Throwable e) {
+                    tx.rollback();
+                    throw e;
+                }
+            }
+        } catch (CancellationException e) {
+            LOG.i(e, "Cancelled patient sync for %s", patientUuid);
+            status = SyncStatus.CANCELLED;
+        } catch (Throwable e) {
+            if (wasCancelled(e)) {
+                LOG.i(e, "Cancelled patient sync for %s", patientUuid);
+                status = SyncStatus.CANCELLED;
+            } else {
+                LOG.e(e, "Patient sync for %s failed", patientUuid);
                 result.stats.numIoExceptions++;
-                broadcastSyncStatus(SyncStatus.FAILED);
-                return;
+                status = SyncStatus.FAILED;
+            }
+        }
+        LOG.finish("syncPatient");
+        return status;
+    }
+
+    /** One unit of sync work, which is committed as a whole in resumable mode. */
+    private interface Step {
+        boolean run() throws Throwable;
+    }
+
+    /** Work that a step needs done before its transaction starts, such as waiting for the network. */
+    private interface Preparation {
+        void run() throws Throwable;
+    }
+
+    /**
+     * Runs a step, in its own transaction if the sync is resumable, and records its
+     * measurements, whether or not it succeeds.  The preparation, if any, runs first,
+     * outside the step's transaction, so that other writers aren't held up by it.
+     */
+    private boolean runStep(BuendiaProvider provider, boolean resumable,
+        SyncTelemetry.Step metrics, SyncResult result, @Nullable Preparation preparation,
+        Step step) throws Throwable {
+        try {
+            if (preparation != null) preparation.run();
+            if (!resumable) return step.run();
+            try (DatabaseTransaction tx = provider.startTransaction(STEP_SAVEPOINT_NAME)) {
+                try {
+                    return step.run();
+                } catch (Throwable t) {
+                    tx.rollback();
+                    throw t;
+                }
+            }
+        } finally {
+            if (metrics.isPage()) metrics.phase.worker.reportStepMetrics(metrics);
+            metrics.finish(result);
+        }
+    }
+
+    /**
+     * Initializes every pending phase whose dependencies are no longer pending, and
+     * lets it start fetching its data in the background.  Network requests for all
+     * such phases proceed concurrently; all database writes stay on this thread.
+     */
+    private void startReadyPhases(List<Phase> pending, Set<Phase> started,
+        SyncResult result, ContentProviderClient client) throws Throwable {
+        for (Phase phase : pending) {
+            if (started.contains(phase) || !Collections.disjoint(phase.dependencies, pending)) {
+                continue;
             }
+            LOG.i("Prefetching phase: %s", phase);
+            phase.worker.initialize(contentResolver, result, client);
+            phase.worker.prefetch(contentResolver, client);
+            started.add(phase);
+        }
+    }
+
+    /**
+     * Chooses the started phase to apply next, preferring one whose data has
+     * already arrived, so that a slow response doesn't hold up the others.
+     */
+    private Phase chooseNextPhase(List<Phase> pending, Set<Phase> started) {
+        Phase next = null;
+        for (Phase phase : pending) {
+            if (!started.contains(phase)) continue;
+            if (phase.worker.isPrefetchDone()) return phase;
+            if (next == null) next = phase;
         }
-        broadcastSyncStatus(SyncStatus.SUCCEEDED);
-        LOG.finish("sync");
-        LOG.i("Completed", options);
+        if (next == null) {
+            throw new IllegalStateException("No phase is ready to run among " + pending);
+        }
+        return next;
     }
 
     /**
@@ -188,20 +466,35 @@ public class BuendiaSyncEngine implements SyncEngine {
      * procedures.
      */
     private synchronized void checkCancellation(String when) throws CancellationException {
-        if (isCancelled) {
-            isCancelled = false;
+        if (cancelledThreads.remove(Thread.currentThread())) {
             String message = "Sync cancelled " + when;
             LOG.w(message);
             throw new CancellationException(message);
         }
     }
 
-    private void broadcastSyncStatus(SyncStatus status) {
-        context.sendBroadcast(
-            new Intent(SyncManager.STATUS_ACTION)
-                .putExtra(SyncManager.SYNC_STATUS, status)
-                .addFlags(Intent.FLAG_RECEIVER_FOREGROUND)
-        );
+    /**
+     * Returns true if an exception was caused by cancel(): an interrupted wait, or
+     * a request that failed because it was cancelled.
+     */
+    private synchronized boolean wasCancelled(Throwable e) {
+        return cancelledThreads.remove(Thread.currentThread()) || e instanceof InterruptedException;
+    }
+
+    /**
+     * Broadcasts the outcome of a sync of phases, or of the given patient, and
+     * whether any other sync is still running.
+     */
+    private void broadcastSyncStatus(
+        SyncStatus status, @Nullable String patientUuid, boolean othersRunning) {
+        Intent intent = new Intent(SyncManager.STATUS_ACTION)
+            .putExtra(SyncManager.SYNC_STATUS, status)
+            .putExtra(SyncManager.SYNC_OTHERS_RUNNING, othersRunning)
+            .addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        if (patientUuid != null) {
+            intent.putExtra(SyncManager.SYNC_PATIENT_UUID, patientUuid);
+        }
+        context.sendBroadcast(intent);
     }
 
     private void broadcastSyncProgress(int numerator, int denominator, @StringRes int messageId) {
@@ -215,7 +508,23 @@ public class BuendiaSyncEngine implements SyncEngine {
         );
     }
 
-    private void storeFullSyncStartTime(ContentProviderClient provider, Instant time) throws RemoteException {
+    private void storeFullSyncStartTime(
+        ContentProviderClient provider, Instant time, boolean resumable) throws RemoteException {
+        if (resumable) {
+            // If the last full sync was interrupted, this one continues it, so the
+            // data set still won't be complete until a full sync that started at
+            // the earlier time has finished.
+            try (Cursor cursor = provider.query(Misc.URI, null, null, null, null)) {
+                if (cursor.moveToNext()) {
+                    DateTime start = Utils.getDateTime(cursor, Misc.FULL_SYNC_START_MILLIS);
+                    DateTime end = Utils.getDateTime(cursor, Misc.FULL_SYNC_END_MILLIS);
+                    if (start != null && (end == null || end.isBefore(start))) {
+                        LOG.i("Resuming full sync that started at " + start);
+                        return;
+                    }
+                }
+            }
+        }
         LOG.i("Recording full sync start time: " + time);
         ContentValues cv = new ContentValues();
         cv.put(Misc.FULL_SYNC_START_MILLIS, time.getMillis());
@@ -264,8 +573,14 @@ public class BuendiaSyncEngine implements SyncEngine {
         }
     }
 
-    public static void setBookmark(ContentProviderClient provider, Table table, String bookmark)
+    /** Stores the bookmark for a table; a null bookmark clears the stored one. */
+    public static void setBookmark(
+        ContentProviderClient provider, Table table, @Nullable String bookmark)
             throws RemoteException {
+        if (bookmark == null) {
+            provider.delete(Bookmarks.URI.buildUpon().appendPath(table.name).build(), null, null);
+            return;
+        }
         ContentValues cv = new ContentValues();
         cv.put(Bookmarks.TABLE_NAME, table.name);
         cv.put(Bookmarks.BOOKMARK, bookmark);
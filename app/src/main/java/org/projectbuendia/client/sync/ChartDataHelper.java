@@ -13,6 +13,8 @@ package org.projectbuendia.client.sync;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
 
 import com.google.common.base.Joiner;
 
@@ -28,6 +30,7 @@ import org.projectbuendia.models.Obs;
 import org.projectbuendia.models.Order;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.ChartItems;
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
 import org.projectbuendia.client.providers.Contracts.Observations;
 import org.projectbuendia.client.providers.Contracts.Orders;
 import org.projectbuendia.client.utils.Intl;
@@ -43,6 +46,8 @@ import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.annotation.Nullable;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.projectbuendia.client.utils.Utils.eq;
 
@@ -60,9 +65,15 @@ public class ChartDataHelper {
         mContentResolver = checkNotNull(contentResolver);
     }
 
+    /** Runs every query made by this class; tests override it to see the queries. */
+    @VisibleForTesting protected Cursor query(
+        Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return mContentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
     /** Gets all the orders for a given patient. */
     public List<Order> getOrders(String patientUuid) {
-        Cursor c = mContentResolver.query(
+        Cursor c = query(
             Orders.URI, null,
             Orders.PATIENT_UUID + " = ?", new String[] {patientUuid},
             Orders.START_MILLIS);
@@ -110,7 +121,7 @@ public class ChartDataHelper {
     private List<Obs> getObservations(String patientUuid, Locale locale) {
         ConceptService concepts = App.getConceptService();
         List<Obs> results = new ArrayList<>();
-        try (Cursor c = mContentResolver.query(
+        try (Cursor c = query(
             Observations.URI, null,
             Observations.PATIENT_UUID + " = ? and "
                 + Observations.VOIDED + " IS NOT 1",
@@ -155,7 +166,7 @@ public class ChartDataHelper {
         String order = Observations.MILLIS + " ASC";
 
         List<Obs> results = new ArrayList<>();
-        try (Cursor c = mContentResolver.query(Observations.URI, null, query, argArray, order)) {
+        try (Cursor c = query(Observations.URI, null, query, argArray, order)) {
             while (c.moveToNext()) {
                 results.add(loadObs(c, locale, concepts));
             }
@@ -163,6 +174,60 @@ public class ChartDataHelper {
         return results;
     }
 
+    /** Aggregates of a patient's observations of one concept, computed by SQLite. */
+    public static class ObsAggregates {
+        public final int count;
+        public final @Nullable Double min;
+        public final @Nullable Double max;
+        public final @Nullable Double avg;
+
+        ObsAggregates(int count, @Nullable Double min, @Nullable Double max, @Nullable Double avg) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+        }
+    }
+
+    /**
+     * Computes the count, minimum, maximum, and average of the given typed value
+     * column (Observations.VALUE_NUMERIC or VALUE_MILLIS) over a patient's
+     * observations of a concept, optionally within a time range, without
+     * loading the observations.  Only observations with a value in that column
+     * are counted; min, max, and avg are null if there are none.  This is for
+     * views that don't load the rows; the chart has all of a patient's
+     * observations in memory already, so its filters work on those instead.
+     */
+    public ObsAggregates getObsAggregates(
+        String patientUuid, String conceptUuid, String valueColumn,
+        @Nullable Long startMillis, @Nullable Long stopMillis) {
+        String query = Observations.VOIDED + " IS NOT 1"
+            + " AND " + Observations.PATIENT_UUID + " = ?"
+            + " AND " + Observations.CONCEPT_UUID + " = ?"
+            + " AND " + valueColumn + " IS NOT NULL";
+        List<String> args = new ArrayList<>(Arrays.asList(patientUuid, conceptUuid));
+        if (startMillis != null) {
+            query += " AND " + Observations.MILLIS + " >= ?";
+            args.add("" + startMillis);
+        }
+        if (stopMillis != null) {
+            query += " AND " + Observations.MILLIS + " < ?";
+            args.add("" + stopMillis);
+        }
+        String[] projection = {
+            "count(" + valueColumn + ") AS count",
+            "min(" + valueColumn + ") AS min",
+            "max(" + valueColumn + ") AS max",
+            "avg(" + valueColumn + ") AS avg"
+        };
+        try (Cursor c = query(
+            Observations.URI, projection, query, args.toArray(new String[0]), null)) {
+            if (!c.moveToFirst()) return new ObsAggregates(0, null, null, null);
+            return new ObsAggregates(Utils.getInt(c, "count", 0),
+                Utils.getDouble(c, "min"), Utils.getDouble(c, "max"), Utils.getDouble(c, "avg"));
+        }
+    }
+
     private String makeSqlPlaceholderSet(String[] items) {
         String[] placeholders = new String[items.length];
         Arrays.fill(placeholders, "?");
@@ -174,14 +239,19 @@ public class ChartDataHelper {
     public Map<String, Obs> getLatestObservations(String patientUuid) {
         ConceptService concepts = App.getConceptService();
         Locale locale = App.getSettings().getLocale();
-        Map<String, Obs> result = new HashMap<>();
-        for (Obs obs : getObservations(patientUuid, locale)) {
-            Obs existing = result.get(obs.conceptUuid);
-            if (existing == null || obs.time.isAfter(existing.time)) {
+        try (Cursor c = query(
+            LatestObservations.URI, null,
+            Observations.PATIENT_UUID + " = ?",
+            new String[] {patientUuid},
+            null
+        )) {
+            Map<String, Obs> result = new HashMap<>();
+            while (c.moveToNext()) {
+                Obs obs = loadObs(c, locale, concepts);
                 result.put(obs.conceptUuid, obs);
             }
+            return result;
         }
-        return result;
     }
 
     /** Gets the latest observation of the specified concept for all patients. */
@@ -189,17 +259,15 @@ public class ChartDataHelper {
     public Map<String, Obs> getLatestObservationsForConcept(String conceptUuid) {
         ConceptService concepts = App.getConceptService();
         Locale locale = App.getSettings().getLocale();
-        try (Cursor c = mContentResolver.query(
-            Observations.URI, null,
-            Observations.VOIDED + " IS NOT 1 and "
-                + Observations.CONCEPT_UUID + " = ?",
+        try (Cursor c = query(
+            LatestObservations.URI, null,
+            Observations.CONCEPT_UUID + " = ?",
             new String[] {conceptUuid},
-            Observations.MILLIS + " DESC"
+            null
         )) {
             Map<String, Obs> result = new HashMap<>();
             while (c.moveToNext()) {
                 String patientUuid = Utils.getString(c, Observations.PATIENT_UUID);
-                if (result.containsKey(patientUuid)) continue;
                 result.put(patientUuid, loadObs(c, locale, concepts));
             }
             return result;
@@ -213,7 +281,7 @@ public class ChartDataHelper {
         List<Chart> charts = new ArrayList<>();
         Chart chart = null;
 
-        try (Cursor c = mContentResolver.query(ChartItems.URI, null, null, null, "weight")) {
+        try (Cursor c = query(ChartItems.URI, null, null, null, "weight")) {
             while (c.moveToNext()) {
                 Long rowid = Utils.getLong(c, ChartItems.ROWID);
                 Long parentRowid = Utils.getLong(c, ChartItems.PARENT_ROWID);
@@ -271,7 +339,7 @@ public class ChartDataHelper {
 
     public List<Form> getForms() {
         SortedSet<Form> forms = new TreeSet<>();
-        try (Cursor cursor = mContentResolver.query(
+        try (Cursor cursor = query(
             Contracts.Forms.URI, null, null, null, null)) {
             while (cursor.moveToNext()) {
                 forms.add(new Form(
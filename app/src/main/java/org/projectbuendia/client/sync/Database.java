@@ -12,14 +12,20 @@
 package org.projectbuendia.client.sync;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.utils.Logger;
 
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Schema definition for the app's database, which contains patient attributes,
@@ -30,17 +36,55 @@ public class Database extends SQLiteOpenHelper {
     private static final Logger LOG = Logger.create();
 
     /** Schema version. */
-    public static final int DATABASE_VERSION = 38;
+    public static final int DATABASE_VERSION = 47;
 
     /** Filename for SQLite file. */
     public static final String DATABASE_FILENAME = "buendia.db";
 
+    /**
+     * The size, in pages, that the write-ahead log may reach before SQLite copies
+     * it back into the database.  Android's default of 100 pages makes a sync
+     * checkpoint after almost every page of results it writes.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+
+    /** The size to which the write-ahead log file is truncated after a checkpoint. */
+    private static final long WAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
+
+    /** The value of PRAGMA auto_vacuum that allows PRAGMA incremental_vacuum. */
+    static final long AUTO_VACUUM_INCREMENTAL = 2;
+
     /**
      * A map of SQL table schemas, with one entry per table.  The values should
-     * be strings that take the place of X in a "CREATE TABLE foo (X)" statement.
+     * be strings that take the place of X in a "CREATE TABLE foo (X)" statement,
+     * or for the FULL_TEXT_TABLES, in a "CREATE VIRTUAL TABLE foo USING fts4(X)"
+     * statement.
      */
     static final Map<Table, String> SCHEMAS = new HashMap<>();
 
+    /** The tables that are full-text indexes rather than ordinary tables. */
+    static final Set<Table> FULL_TEXT_TABLES = EnumSet.of(Table.PATIENT_SEARCH);
+
+    /**
+     * The token that stands for an unknown given or family name in patient_search.
+     * The index uses the "simple" tokenizer, the only one available on every
+     * Android version we support; it drops ASCII punctuation such as "-" but
+     * keeps all non-ASCII characters, so this Unicode hyphen survives as a token.
+     */
+    public static final String UNKNOWN_NAME_TOKEN = "\u2010";
+
+    /**
+     * The number of leading characters of a patient ID at which patient_search
+     * starts a suffix of the ID, so that any word within that many characters
+     * of the start is found by a prefix query (see {@link #searchIdSuffixes}).
+     */
+    private static final int ID_SUFFIX_STARTS = 16;
+
+    /** Space and every dash (Unicode category Pd); a name made of only these is unknown. */
+    private static final String BLANKS_AND_DASHES = " -\u058a\u05be\u1400\u1806\u2010\u2011"
+        + "\u2012\u2013\u2014\u2015\u2e17\u2e1a\u2e3a\u2e3b\u2e40\u301c\u3030\u30a0"
+        + "\ufe31\ufe32\ufe58\ufe63\uff0d";
+
     // For descriptions of these tables and the meanings of their columns, see Contracts.java.
     static {
         SCHEMAS.put(Table.PATIENTS, ""
@@ -55,6 +99,18 @@ public class Database extends SQLiteOpenHelper {
             + "bed_number TEXT"
         );
 
+        // Maintained by the TRIGGERS below; see Contracts.PatientCounts.
+        SCHEMAS.put(Table.PATIENT_COUNTS, ""
+            + "location_uuid TEXT PRIMARY KEY NOT NULL,"
+            + "patient_count INTEGER NOT NULL");
+
+        // Maintained by the TRIGGERS below; see Contracts.PatientSearch.  The
+        // prefix indexes keep the first keystrokes of a search fast.
+        SCHEMAS.put(Table.PATIENT_SEARCH, ""
+            + "terms,"
+            + "uuid" + notIndexed("uuid") + ","
+            + "prefix=\"1,2\"");
+
         SCHEMAS.put(Table.CONCEPTS, ""
             + "uuid TEXT PRIMARY KEY NOT NULL,"
             + "xform_id INTEGER UNIQUE NOT NULL,"
@@ -86,8 +142,29 @@ public class Database extends SQLiteOpenHelper {
             + "order_uuid STRING,"
             + "value STRING,"
             + "voided INTEGER,"
+            + "value_numeric REAL,"
+            + "value_millis INTEGER,"
+            + "value_coded TEXT,"
             + "UNIQUE (patient_uuid, encounter_uuid, concept_uuid)");
 
+        // Maintained by the TRIGGERS below; holds the newest row of observations
+        // for each patient and concept, with the same columns.
+        SCHEMAS.put(Table.LATEST_OBSERVATIONS, ""
+            + "uuid TEXT,"
+            + "encounter_uuid TEXT,"
+            + "patient_uuid TEXT,"
+            + "provider_uuid TEXT,"
+            + "concept_uuid TEXT,"
+            + "type STRING,"
+            + "millis INTEGER,"
+            + "order_uuid STRING,"
+            + "value STRING,"
+            + "voided INTEGER,"
+            + "value_numeric REAL,"
+            + "value_millis INTEGER,"
+            + "value_coded TEXT,"
+            + "PRIMARY KEY (patient_uuid, concept_uuid)");
+
         SCHEMAS.put(Table.ORDERS, ""
             + "uuid TEXT PRIMARY KEY NOT NULL,"
             + "patient_uuid TEXT,"
@@ -127,15 +204,384 @@ public class Database extends SQLiteOpenHelper {
         SCHEMAS.put(Table.BOOKMARKS, ""
             + "table_name TEXT PRIMARY KEY NOT NULL,"
             + "bookmark TEXT NOT NULL");
+
+        SCHEMAS.put(Table.SYNC_METRICS, ""
+            + "sync_start_millis INTEGER NOT NULL,"
+            + "phase TEXT,"
+            + "page INTEGER,"
+            + "status TEXT,"
+            + "wall_millis INTEGER,"
+            + "network_millis INTEGER,"
+            + "parse_millis INTEGER,"
+            + "apply_millis INTEGER,"
+            + "bytes INTEGER,"
+            + "inserts INTEGER,"
+            + "deletes INTEGER,"
+            + "ui_queries INTEGER,"
+            + "ui_query_p50_millis INTEGER,"
+            + "ui_query_p90_millis INTEGER,"
+            + "ui_query_max_millis INTEGER");
+
+        SCHEMAS.put(Table.MAINTENANCE_RUNS, ""
+            + "start_millis INTEGER NOT NULL,"
+            + "wall_millis INTEGER,"
+            + "pruned_observations INTEGER,"
+            + "observations INTEGER,"
+            + "file_bytes INTEGER,"
+            + "reclaimed_bytes INTEGER");
+    }
+
+    /**
+     * A map of secondary indexes, by index name.  The values should be strings
+     * that take the place of X in a "CREATE INDEX name ON X" statement.  These
+     * are designed so that none of the app's queries on the observations, orders,
+     * or patients tables needs a full table scan; DatabaseQueryPlanTest checks this.
+     */
+    static final Map<String, String> INDEXES = new LinkedHashMap<>();
+
+    static {
+        // Latest value of a concept for one patient (denormalization, chart filters);
+        // also serves all other lookups by patient_uuid.
+        INDEXES.put("observations_patient_concept_millis",
+            Table.OBSERVATIONS + " (patient_uuid, concept_uuid, millis)");
+        // Latest value of a concept for all patients (patient list columns).
+        INDEXES.put("observations_concept_millis",
+            Table.OBSERVATIONS + " (concept_uuid, millis)");
+        // Observations of one encounter (EncounterUuidFilter).
+        INDEXES.put("observations_encounter",
+            Table.OBSERVATIONS + " (encounter_uuid)");
+        // Orders of one patient, in order of start time.
+        INDEXES.put("orders_patient_start_millis",
+            Table.ORDERS + " (patient_uuid, start_millis)");
+        // The location filter, and the triggers that maintain patient_counts.
+        INDEXES.put("patients_location",
+            Table.PATIENTS + " (location_uuid)");
+        // Lookups by patient ID when a patient is opened by ID.
+        INDEXES.put("patients_id",
+            Table.PATIENTS + " (id)");
+        // The age and pregnancy filters.
+        INDEXES.put("patients_birthdate",
+            Table.PATIENTS + " (birthdate)");
+        INDEXES.put("patients_pregnancy",
+            Table.PATIENTS + " (pregnancy)");
+        // Latest value of a concept for all patients (patient list columns);
+        // lookups by patient use the primary key.
+        INDEXES.put("latest_observations_concept",
+            Table.LATEST_OBSERVATIONS + " (concept_uuid)");
+    }
+
+    private static final String OBSERVATION_COLUMNS = "uuid, encounter_uuid, patient_uuid,"
+        + " provider_uuid, concept_uuid, type, millis, order_uuid, value, voided,"
+        + " value_numeric, value_millis, value_coded";
+
+    /**
+     * Replaces the latest_observations row for the patient and concept of the
+     * given row (NEW or OLD) of observations.  Every write to observations,
+     * whether from a sync, a form, or voiding an observation, goes through
+     * these triggers, so nothing else has to maintain the table.
+     */
+    private static String refreshLatestObservation(String row) {
+        String where = " WHERE patient_uuid = " + row + ".patient_uuid"
+            + " AND concept_uuid = " + row + ".concept_uuid";
+        return "DELETE FROM " + Table.LATEST_OBSERVATIONS + where + ";"
+            + " INSERT INTO " + Table.LATEST_OBSERVATIONS + " (" + OBSERVATION_COLUMNS + ")"
+            + " SELECT " + OBSERVATION_COLUMNS + " FROM " + Table.OBSERVATIONS + where
+            + " AND voided IS NOT 1 ORDER BY millis DESC LIMIT 1;";
+    }
+
+    /**
+     * The option that keeps an FTS4 table from indexing a column, or nothing
+     * where SQLite is older than 3.8.0 (before Android 5.0, API 21), which
+     * lacks it.  There the column is indexed too, which costs some space but
+     * doesn't change search results, as PatientSearchFilter searches only terms.
+     */
+    private static String notIndexed(String column) {
+        return Build.VERSION.SDK_INT >= 21 ? ", notindexed=" + column : "";
+    }
+
+    /** The text in patient_search for the given row (NEW, OLD, or patients) of patients. */
+    private static String patientSearchTerms(String row) {
+        return searchName(row + ".given_name") + " || ' ' || " + searchName(row + ".family_name")
+            + " || ' ' || " + searchIdSuffixes(row + ".id")
+            + " || ' ' || lower(coalesce(" + row + ".bed_number, ''))";
+    }
+
+    /**
+     * The ID followed by each of its suffixes that starts within its first
+     * ID_SUFFIX_STARTS characters.  A prefix query finds a word of any of them,
+     * so an ID is matched by any part of it, as IdFilter did: "23" finds
+     * "KH.0023" through the suffix "23".
+     */
+    private static String searchIdSuffixes(String column) {
+        String id = "lower(coalesce(" + column + ", ''))";
+        StringBuilder sql = new StringBuilder(id);
+        for (int start = 2; start <= ID_SUFFIX_STARTS; start++) {
+            sql.append(" || ' ' || substr(").append(id).append(", ").append(start).append(")");
+        }
+        return sql.toString();
+    }
+
+    private static String searchName(String column) {
+        return "CASE WHEN trim(coalesce(" + column + ", ''), '" + BLANKS_AND_DASHES + "') = ''"
+            + " THEN '" + UNKNOWN_NAME_TOKEN + "' ELSE lower(" + column + ") END";
     }
 
+    /** Adds the patient_search entry for the NEW row of patients. */
+    private static String indexPatient() {
+        return "INSERT INTO " + Table.PATIENT_SEARCH + " (uuid, terms)"
+            + " VALUES (NEW.uuid, " + patientSearchTerms("NEW") + ");";
+    }
+
+    /** Replaces the patient_search entry for the OLD row of patients with one for the NEW row. */
+    private static String reindexPatient() {
+        return "UPDATE " + Table.PATIENT_SEARCH + " SET uuid = NEW.uuid,"
+            + " terms = " + patientSearchTerms("NEW") + " WHERE uuid = OLD.uuid;";
+    }
+
+    private static String unindexPatient() {
+        return "DELETE FROM " + Table.PATIENT_SEARCH + " WHERE uuid = OLD.uuid;";
+    }
+
+    /**
+     * Adds one to the patient_counts row for a location, given as an SQL
+     * expression; a null location isn't counted.  (INSERT OR IGNORE won't do, as
+     * the conflict clause of the statement that fires a trigger overrides it.)
+     */
+    private static String countPatientAt(String locationUuid) {
+        String where = " WHERE location_uuid = " + locationUuid;
+        return "INSERT INTO " + Table.PATIENT_COUNTS + " (location_uuid, patient_count)"
+            + " SELECT " + locationUuid + ", 0 WHERE " + locationUuid + " IS NOT NULL"
+            + " AND NOT EXISTS (SELECT 1 FROM " + Table.PATIENT_COUNTS + where + ");"
+            + " UPDATE " + Table.PATIENT_COUNTS + " SET patient_count = patient_count + 1" + where + ";";
+    }
+
+    /** Subtracts one from a location's count, removing the row when it reaches zero. */
+    private static String uncountPatientAt(String locationUuid) {
+        String where = " WHERE location_uuid = " + locationUuid;
+        return "UPDATE " + Table.PATIENT_COUNTS + " SET patient_count = patient_count - 1" + where + ";"
+            + " DELETE FROM " + Table.PATIENT_COUNTS + where + " AND patient_count <= 0;";
+    }
+
+    /**
+     * A map of triggers, by trigger name.  The values should be strings that
+     * take the place of X in a "CREATE TRIGGER name X" statement.
+     */
+    static final Map<String, String> TRIGGERS = new LinkedHashMap<>();
+
+    static {
+        TRIGGERS.put("observations_insert_latest", "AFTER INSERT ON " + Table.OBSERVATIONS
+            + " BEGIN " + refreshLatestObservation("NEW") + " END");
+        TRIGGERS.put("observations_delete_latest", "AFTER DELETE ON " + Table.OBSERVATIONS
+            + " BEGIN " + refreshLatestObservation("OLD") + " END");
+        TRIGGERS.put("observations_update_latest", "AFTER UPDATE ON " + Table.OBSERVATIONS
+            + " BEGIN " + refreshLatestObservation("OLD") + " " + refreshLatestObservation("NEW") + " END");
+
+        // A row deleted by INSERT OR REPLACE fires the delete triggers only
+        // because onOpen turns on recursive_triggers.  A patient's entry in
+        // patient_search is found by its uuid, which isn't indexed, so changing
+        // or removing a patient reads every entry; adding one reads none.
+        TRIGGERS.put("patients_insert_search", "AFTER INSERT ON " + Table.PATIENTS
+            + " BEGIN " + indexPatient() + " END");
+        TRIGGERS.put("patients_delete_search", "AFTER DELETE ON " + Table.PATIENTS
+            + " BEGIN " + unindexPatient() + " END");
+        TRIGGERS.put("patients_update_search", "AFTER UPDATE OF uuid, given_name, family_name, id,"
+            + " bed_number ON " + Table.PATIENTS
+            + " BEGIN " + reindexPatient() + " END");
+        TRIGGERS.put("patients_insert_counts", "AFTER INSERT ON " + Table.PATIENTS
+            + " BEGIN " + countPatientAt("NEW.location_uuid") + " END");
+        TRIGGERS.put("patients_delete_counts", "AFTER DELETE ON " + Table.PATIENTS
+            + " BEGIN " + uncountPatientAt("OLD.location_uuid") + " END");
+        TRIGGERS.put("patients_update_counts", "AFTER UPDATE OF location_uuid ON " + Table.PATIENTS
+            + " WHEN OLD.location_uuid IS NOT NEW.location_uuid BEGIN "
+            + uncountPatientAt("OLD.location_uuid") + " "
+            + countPatientAt("NEW.location_uuid") + " END");
+    }
+
+    /** A change to the schema that brings it up by one version, keeping the data. */
+    interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * A map of migrations, keyed by the version that each one upgrades to.  When
+     * you increment DATABASE_VERSION, add a migration here that alters the schema
+     * in place (ALTER TABLE, CREATE TABLE), so that tablets keep their data and
+     * bookmarks instead of all resyncing everything at once after an app update.
+     * Write out each migration's DDL as the schema was at its version, rather than
+     * using SCHEMAS, which later versions change; the migrations that follow it
+     * expect that schema.  New INDEXES and TRIGGERS need no code here, as onUpgrade creates any that
+     * are missing.  If a change can't be made in place, add no migration; the
+     * database will then be wiped and resynced.
+     */
+    static final Map<Integer, Migration> MIGRATIONS = new HashMap<>();
+
+    static {
+        MIGRATIONS.put(39, db -> db.execSQL("CREATE TABLE " + Table.SYNC_METRICS + " ("
+            + "sync_start_millis INTEGER NOT NULL,"
+            + "phase TEXT,"
+            + "page INTEGER,"
+            + "status TEXT,"
+            + "wall_millis INTEGER,"
+            + "network_millis INTEGER,"
+            + "parse_millis INTEGER,"
+            + "apply_millis INTEGER,"
+            + "bytes INTEGER,"
+            + "inserts INTEGER,"
+            + "deletes INTEGER)"));
+        MIGRATIONS.put(40, db -> { });  // added INDEXES
+        MIGRATIONS.put(41, db -> {
+            for (String column : new String[] {
+                "ui_queries", "ui_query_p50_millis", "ui_query_p90_millis", "ui_query_max_millis"}) {
+                db.execSQL("ALTER TABLE " + Table.SYNC_METRICS + " ADD COLUMN " + column + " INTEGER");
+            }
+        });
+        MIGRATIONS.put(42, db -> {
+            db.execSQL("ALTER TABLE " + Table.OBSERVATIONS + " ADD COLUMN value_numeric REAL");
+            db.execSQL("ALTER TABLE " + Table.OBSERVATIONS + " ADD COLUMN value_millis INTEGER");
+            db.execSQL("ALTER TABLE " + Table.OBSERVATIONS + " ADD COLUMN value_coded TEXT");
+            // Fill in the new columns as Obs.putTypedValues() would.
+            db.execSQL("UPDATE " + Table.OBSERVATIONS + " SET"
+                + " value_numeric = CASE WHEN type = 'NUMERIC' THEN CAST(value AS REAL) END,"
+                + " value_millis = CASE WHEN type = 'DATETIME' THEN CAST(value AS INTEGER)"
+                + "     WHEN type = 'DATE' THEN CAST(strftime('%s', value) AS INTEGER) * 1000 END,"
+                + " value_coded = CASE WHEN type IN ('CODED', 'BOOLEAN') THEN value END"
+                + " WHERE value IS NOT NULL");
+        });
+        MIGRATIONS.put(43, db -> {
+            db.execSQL("CREATE TABLE " + Table.LATEST_OBSERVATIONS + " ("
+                + "uuid TEXT,"
+                + "encounter_uuid TEXT,"
+                + "patient_uuid TEXT,"
+                + "provider_uuid TEXT,"
+                + "concept_uuid TEXT,"
+                + "type STRING,"
+                + "millis INTEGER,"
+                + "order_uuid STRING,"
+                + "value STRING,"
+                + "voided INTEGER,"
+                + "value_numeric REAL,"
+                + "value_millis INTEGER,"
+                + "value_coded TEXT,"
+                + "PRIMARY KEY (patient_uuid, concept_uuid))");
+            // Where several observations share the latest time, any one will do.
+            db.execSQL("INSERT OR REPLACE INTO " + Table.LATEST_OBSERVATIONS
+                + " (" + OBSERVATION_COLUMNS + ") SELECT " + OBSERVATION_COLUMNS
+                + " FROM " + Table.OBSERVATIONS + " o WHERE voided IS NOT 1 AND millis ="
+                + " (SELECT max(millis) FROM " + Table.OBSERVATIONS + " WHERE voided IS NOT 1"
+                + " AND patient_uuid = o.patient_uuid AND concept_uuid = o.concept_uuid)");
+        });
+        MIGRATIONS.put(44, db -> {
+            db.execSQL("CREATE VIRTUAL TABLE " + Table.PATIENT_SEARCH
+                + " USING fts4(terms, prefix=\"1,2\")");
+            db.execSQL("INSERT INTO " + Table.PATIENT_SEARCH + " (docid, terms)"
+                + " SELECT rowid, " + patientSearchTerms(Table.PATIENTS.name) + " FROM " + Table.PATIENTS);
+        });
+        MIGRATIONS.put(45, db -> {
+            // Replaced by recursive_triggers, which makes REPLACE fire the delete triggers.
+            db.execSQL("DROP TRIGGER IF EXISTS patients_insert_search_before");
+            db.execSQL("CREATE TABLE " + Table.PATIENT_COUNTS + " ("
+                + "location_uuid TEXT PRIMARY KEY NOT NULL,"
+                + "patient_count INTEGER NOT NULL)");
+            db.execSQL("INSERT INTO " + Table.PATIENT_COUNTS + " (location_uuid, patient_count)"
+                + " SELECT location_uuid, count(*) FROM " + Table.PATIENTS
+                + " WHERE location_uuid IS NOT NULL GROUP BY location_uuid");
+        });
+        MIGRATIONS.put(46, db -> db.execSQL("CREATE TABLE " + Table.MAINTENANCE_RUNS + " ("
+            + "start_millis INTEGER NOT NULL,"
+            + "wall_millis INTEGER,"
+            + "pruned_observations INTEGER,"
+            + "observations INTEGER,"
+            + "file_bytes INTEGER,"
+            + "reclaimed_bytes INTEGER)"));
+        MIGRATIONS.put(47, db -> {
+            // Entries were keyed by the rowid of patients, which a full VACUUM can
+            // renumber; now they hold the patient's uuid.  onUpgrade recreates the
+            // dropped triggers to match.
+            db.execSQL("DROP TRIGGER IF EXISTS patients_insert_search");
+            db.execSQL("DROP TRIGGER IF EXISTS patients_delete_search");
+            db.execSQL("DROP TRIGGER IF EXISTS patients_update_search");
+            db.execSQL("DROP TABLE " + Table.PATIENT_SEARCH);
+            db.execSQL("CREATE VIRTUAL TABLE " + Table.PATIENT_SEARCH
+                + " USING fts4(terms, uuid" + notIndexed("uuid") + ", prefix=\"1,2\")");
+            db.execSQL("INSERT INTO " + Table.PATIENT_SEARCH + " (uuid, terms)"
+                + " SELECT uuid, " + patientSearchTerms(Table.PATIENTS.name) + " FROM " + Table.PATIENTS);
+        });
+    }
+
+    /**
+     * Opens the database in write-ahead-log mode, in which Android keeps a pool
+     * of connections so that reads on other threads (the patient list, charts)
+     * proceed while a sync is writing, instead of waiting for it.
+     */
     public Database(Context context) {
         super(context, DATABASE_FILENAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
+    /**
+     * Gives a new database incremental vacuum (see {@link DatabaseMaintenance}),
+     * which can only be turned on by rewriting the file with VACUUM once it has
+     * any tables.  Android has already added its android_metadata table by the
+     * time this runs, but while that is the only table, the rewrite costs nothing.
+     */
+    @Override public void onConfigure(SQLiteDatabase db) {
+        if (!db.isReadOnly()
+            && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL
+            && DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master"
+                + " WHERE name != 'android_metadata'", null) == 0) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+    }
+
+    @Override public void onOpen(SQLiteDatabase db) {
+        // These settings belong to a connection, so they are made in a transaction
+        // to be sure they go to the primary connection, which does all the writing
+        // and therefore all the automatic checkpoints.
+        db.beginTransactionNonExclusive();
+        try {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
+            // Makes INSERT OR REPLACE fire the delete triggers for the rows it
+            // replaces, which the TRIGGERS need to keep their tables consistent.
+            db.execSQL("PRAGMA recursive_triggers = ON");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies the migrations from oldVersion to newVersion in order.  If any
+     * migration is missing or fails, everything is discarded and recreated
+     * instead; this database is only a cache of data on the server, so the
+     * data can always be fetched again.  SQLiteOpenHelper runs this in a
+     * transaction, so a failed migration leaves nothing half-done.  Finally,
+     * any indexes and triggers that don't exist yet are created.
+     */
     @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache of data on the server, so its upgrade
-        // policy is to discard all the data and start over.
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Migration migration = MIGRATIONS.get(version);
+            if (migration == null) {
+                LOG.w("No migration to version %d", version);
+                clear(db);
+                return;
+            }
+            try {
+                LOG.i("Migrating database to version %d", version);
+                migration.migrate(db);
+            } catch (SQLException e) {
+                LOG.e(e, "Migration to version %d failed", version);
+                clear(db);
+                return;
+            }
+        }
+        createIndexes(db);
+        createTriggers(db);
+    }
+
+    @Override public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Migrations only go forward, so a downgraded app starts over.
         clear(db);
     }
 
@@ -150,10 +596,32 @@ public class Database extends SQLiteOpenHelper {
     @Override public void onCreate(SQLiteDatabase db) {
         LOG.i("Creating tables");
         for (Table table : Table.values()) {
+            createTable(db, table);
+        }
+        createIndexes(db);
+        createTriggers(db);
+    }
+
+    private static void createTable(SQLiteDatabase db, Table table) {
+        if (FULL_TEXT_TABLES.contains(table)) {
+            db.execSQL("CREATE VIRTUAL TABLE " + table + " USING fts4(" + SCHEMAS.get(table) + ");");
+        } else {
             db.execSQL("CREATE TABLE " + table + " (" + SCHEMAS.get(table) + ");");
         }
     }
 
+    private static void createIndexes(SQLiteDatabase db) {
+        for (Map.Entry<String, String> index : INDEXES.entrySet()) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + index.getKey() + " ON " + index.getValue() + ";");
+        }
+    }
+
+    private static void createTriggers(SQLiteDatabase db) {
+        for (Map.Entry<String, String> trigger : TRIGGERS.entrySet()) {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + trigger.getKey() + " " + trigger.getValue() + ";");
+        }
+    }
+
     public void clear() {
         // Never call zero-argument clear() from onUpgrade, as getWritableDatabase
         // can trigger onUpgrade, leading to endless recursion.
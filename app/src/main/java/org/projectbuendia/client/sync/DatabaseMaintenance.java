@@ -0,0 +1,180 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import org.projectbuendia.client.providers.Contracts.MaintenanceRuns;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Keeps the database from growing without bound on tablets that run for months.
+ * Each run prunes orphaned temporary observations, gives the free pages left by
+ * deleted rows back to the file system with an incremental VACUUM, refreshes
+ * the query planner's statistics with ANALYZE, and records the size of the
+ * database in the maintenance_runs table, so that its growth can be seen in
+ * the diagnostics.  {@link ThreadedSyncScheduler} runs it at most once a day,
+ * on the sync thread, when the tablet is docked and no sync is due.
+ */
+public class DatabaseMaintenance {
+    private static final Logger LOG = Logger.create();
+
+    /** The shortest time between runs. */
+    static final long MIN_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Temporary observations (those with no UUID) are the local copies of
+     * observations that were just submitted to the server, and are replaced by
+     * the real ones at the next observation sync.  When that sync keeps failing
+     * they pile up, so those whose encounter is older than this are pruned; the
+     * server already has them.
+     */
+    static final long TEMPORARY_OBS_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    /** The number of runs whose measurements are kept in the database. */
+    static final int MAX_RUNS_KEPT = 60;
+
+    private static final String ORPHANED_OBS_SELECTION = "uuid IS NULL AND (millis < ?"
+        + " OR patient_uuid NOT IN (SELECT uuid FROM " + Table.PATIENTS + "))";
+
+    /** Returns true if the last run was long enough ago that it's time for another. */
+    public static boolean isDue(SQLiteDatabase db) {
+        long lastStart = DatabaseUtils.longForQuery(db,
+            "SELECT coalesce(max(start_millis), 0) FROM " + Table.MAINTENANCE_RUNS, null);
+        return System.currentTimeMillis() - lastStart >= MIN_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Runs all the maintenance steps and returns the UUIDs of the patients whose
+     * temporary observations were pruned, whose denormalized columns may need to
+     * be recomputed.  This must not be called within a transaction, as VACUUM
+     * can't run in one.  Failures are only logged, as maintenance must never
+     * break the sync thread that runs it.
+     */
+    public static Set<String> run(SQLiteDatabase db) {
+        long startMillis = System.currentTimeMillis();
+        long startRealtime = SystemClock.elapsedRealtime();
+        try {
+            long startBytes = getFileBytes(db);
+            Set<String> patientUuids = new HashSet<>();
+            int pruned;
+            db.beginTransactionNonExclusive();
+            try {
+                String[] args = {"" + (startMillis - TEMPORARY_OBS_MAX_AGE_MILLIS)};
+                try (Cursor c = db.rawQuery("SELECT DISTINCT patient_uuid FROM "
+                    + Table.OBSERVATIONS + " WHERE " + ORPHANED_OBS_SELECTION, args)) {
+                    while (c.moveToNext()) {
+                        patientUuids.add(c.getString(0));
+                    }
+                }
+                pruned = db.delete(Table.OBSERVATIONS.name, ORPHANED_OBS_SELECTION, args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != Database.AUTO_VACUUM_INCREMENTAL) {
+                // Only a full VACUUM, which rewrites the whole file, can change this
+                // setting, so databases created before Database.onConfigure() set it
+                // pay that cost once.
+                LOG.i("Rewriting the database to enable incremental vacuum");
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            } else {
+                // Each step of this pragma frees one page, so it has to be run to the
+                // end; getCount() steps through all of its (empty) rows.
+                try (Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null)) {
+                    c.getCount();
+                }
+            }
+            db.execSQL("ANALYZE");
+
+            long fileBytes = getFileBytes(db);
+            ContentValues values = new ContentValues();
+            values.put(MaintenanceRuns.START_MILLIS, startMillis);
+            values.put(MaintenanceRuns.WALL_MILLIS, SystemClock.elapsedRealtime() - startRealtime);
+            values.put(MaintenanceRuns.PRUNED_OBSERVATIONS, pruned);
+            values.put(MaintenanceRuns.OBSERVATIONS, DatabaseUtils.queryNumEntries(db, Table.OBSERVATIONS.name));
+            values.put(MaintenanceRuns.FILE_BYTES, fileBytes);
+            values.put(MaintenanceRuns.RECLAIMED_BYTES, startBytes - fileBytes);
+            db.insertOrThrow(Table.MAINTENANCE_RUNS.name, null, values);
+            db.execSQL("DELETE FROM " + Table.MAINTENANCE_RUNS + " WHERE start_millis <"
+                + " (SELECT start_millis FROM " + Table.MAINTENANCE_RUNS
+                + " ORDER BY start_millis DESC LIMIT 1 OFFSET " + (MAX_RUNS_KEPT - 1) + ")");
+            LOG.i("Database maintenance pruned %d observations and reclaimed %d bytes in %d ms",
+                pruned, startBytes - fileBytes, SystemClock.elapsedRealtime() - startRealtime);
+            return patientUuids;
+        } catch (SQLException e) {
+            LOG.w(e, "Database maintenance failed");
+            return Collections.emptySet();
+        }
+    }
+
+    /** Formats the measurements of the last numRuns runs, with the growth of the database, as plain text. */
+    public static String getReport(ContentResolver resolver, int numRuns) {
+        StringBuilder report = new StringBuilder();
+        long newestStart = 0, newestBytes = 0, oldestStart = 0, oldestBytes = 0;
+        int count = 0;
+        try (Cursor c = resolver.query(MaintenanceRuns.URI, null, null, null,
+            MaintenanceRuns.START_MILLIS + " DESC")) {
+            report.append(String.format(Locale.US, "Last %d database maintenance runs:\n",
+                Math.min(numRuns, c.getCount())));
+            while (c.moveToNext() && count < numRuns) {
+                long start = Utils.getLong(c, MaintenanceRuns.START_MILLIS, 0L);
+                long bytes = Utils.getLong(c, MaintenanceRuns.FILE_BYTES, 0L);
+                report.append(String.format(Locale.US,
+                    "  %s  %8.1f MB (%.1f MB freed)  %d obs, %d pruned  %.1f s\n",
+                    Utils.toLocalDateTime(start).toString("yyyy-MM-dd HH:mm:ss"),
+                    toMegabytes(bytes),
+                    toMegabytes(Utils.getLong(c, MaintenanceRuns.RECLAIMED_BYTES, 0L)),
+                    Utils.getLong(c, MaintenanceRuns.OBSERVATIONS, 0L),
+                    Utils.getLong(c, MaintenanceRuns.PRUNED_OBSERVATIONS, 0L),
+                    Utils.getLong(c, MaintenanceRuns.WALL_MILLIS, 0L) / 1000.0));
+                if (count == 0) {
+                    newestStart = start;
+                    newestBytes = bytes;
+                }
+                oldestStart = start;
+                oldestBytes = bytes;
+                count++;
+            }
+        }
+        double days = (newestStart - oldestStart) / (24 * 60 * 60 * 1000.0);
+        if (days > 0) {
+            report.append(String.format(Locale.US, "Database growth: %+.1f MB over %.0f days (%+.2f MB/day)\n",
+                toMegabytes(newestBytes - oldestBytes), days, toMegabytes(newestBytes - oldestBytes) / days));
+        }
+        return report.toString();
+    }
+
+    private static long getFileBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+            * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private static double toMegabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
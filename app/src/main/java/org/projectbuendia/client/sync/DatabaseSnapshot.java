@@ -0,0 +1,188 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+
+import org.projectbuendia.client.net.OpenMrsConnectionDetails;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads and verifies a snapshot of the server's copy of the database, so
+ * that a new tablet can start from it instead of paging through the whole
+ * observation history.  The server builds the snapshot with the same schema
+ * as {@link Database}, including the bookmarks table, so after it is swapped
+ * in (see {@link org.projectbuendia.client.providers.BuendiaProvider#replaceDatabase})
+ * an ordinary incremental sync brings the tablet up to date.
+ * <p>
+ * The snapshot is requested for the client's schema version; the server
+ * answers 404 if it has no snapshot for that version, and otherwise sends the
+ * SQLite file (checkpointed, not in WAL mode) with its SHA-256 digest in the
+ * {@link #CHECKSUM_HEADER} header.
+ */
+public class DatabaseSnapshot {
+    private static final Logger LOG = Logger.create();
+
+    static final String SNAPSHOT_PATH = "/snapshot";
+    static final String CHECKSUM_HEADER = "X-Buendia-Snapshot-SHA256";
+    private static final String FILENAME = Database.DATABASE_FILENAME + ".snapshot";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    private DatabaseSnapshot() { }
+
+    /** Receives the progress of a download, about once per megabyte. */
+    public interface ProgressListener {
+        /** totalBytes is -1 if the server didn't say how big the snapshot is. */
+        void onProgress(long bytes, long totalBytes);
+    }
+
+    /**
+     * Downloads the snapshot into the database directory and verifies it.
+     * Returns the verified file, or null if the server has no snapshot for this
+     * schema version.  The file is deleted if anything goes wrong.
+     * @throws IOException if the download fails or the snapshot doesn't verify
+     * @throws InterruptedException if the thread is interrupted (i.e., the sync
+     *     was cancelled) during the download
+     */
+    public static @Nullable File download(Context context, OpenMrsConnectionDetails details,
+        ProgressListener listener) throws IOException, InterruptedException {
+        URL url = new URL(details.getBuendiaApiUrl() + SNAPSHOT_PATH
+            + "?schema=" + Database.DATABASE_VERSION);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        for (Map.Entry<String, String> header :
+            details.addAuthHeader(new HashMap<String, String>()).entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        File file = context.getDatabasePath(FILENAME);
+        boolean verified = false;
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                LOG.i("Server has no snapshot for schema version %d", Database.DATABASE_VERSION);
+                return null;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Snapshot request failed with HTTP status " + status);
+            }
+            String expected = connection.getHeaderField(CHECKSUM_HEADER);
+            if (expected == null) {
+                throw new IOException("Snapshot response has no " + CHECKSUM_HEADER + " header");
+            }
+
+            String actual = copy(connection.getInputStream(), file,
+                connection.getContentLength(), listener);
+            if (!actual.equalsIgnoreCase(expected.trim())) {
+                throw new IOException("Snapshot checksum is " + actual + ", expected " + expected);
+            }
+            verifyDatabase(file);
+            verified = true;
+            LOG.i("Downloaded and verified a snapshot of %d bytes", file.length());
+            return file;
+        } finally {
+            connection.disconnect();
+            if (!verified) file.delete();
+        }
+    }
+
+    /** Copies a stream to a file, syncing it to disk; returns the SHA-256 digest in hex. */
+    private static String copy(InputStream in, File file, long totalBytes,
+        ProgressListener listener) throws IOException, InterruptedException {
+        HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), in);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long bytes = 0;
+            long nextProgress = PROGRESS_INTERVAL_BYTES;
+            int count;
+            while ((count = hashing.read(buffer)) >= 0) {
+                if (Thread.interrupted()) throw new InterruptedException("Snapshot download cancelled");
+                out.write(buffer, 0, count);
+                bytes += count;
+                if (bytes >= nextProgress) {
+                    listener.onProgress(bytes, totalBytes);
+                    nextProgress = bytes + PROGRESS_INTERVAL_BYTES;
+                }
+            }
+            out.getFD().sync();
+        } finally {
+            hashing.close();
+        }
+        return hashing.hash().toString();
+    }
+
+    /**
+     * Checks that a file is an intact SQLite database with the current schema
+     * version and all the tables that the app expects.
+     */
+    static void verifyDatabase(File file) throws IOException {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLiteException e) {
+            throw new IOException("Snapshot is not a SQLite database", e);
+        }
+        try {
+            if (db.getVersion() != Database.DATABASE_VERSION) {
+                throw new IOException("Snapshot has schema version " + db.getVersion()
+                    + ", expected " + Database.DATABASE_VERSION);
+            }
+            try (Cursor c = db.rawQuery("PRAGMA quick_check", null)) {
+                String result = c.moveToFirst() ? c.getString(0) : null;
+                if (!"ok".equals(result)) {
+                    throw new IOException("Snapshot failed its integrity check: " + result);
+                }
+            }
+            for (Table table : Table.values()) {
+                requireObject(db, "table", table.name);
+            }
+            // Without their triggers, the derived tables (latest_observations, etc.) would go stale.
+            for (String trigger : Database.TRIGGERS.keySet()) {
+                requireObject(db, "trigger", trigger);
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Snapshot could not be read", e);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void requireObject(SQLiteDatabase db, String type, String name) throws IOException {
+        try (Cursor c = db.rawQuery(
+            "SELECT 1 FROM sqlite_master WHERE type = ? AND name = ?", new String[] {type, name})) {
+            if (!c.moveToFirst()) {
+                throw new IOException("Snapshot has no " + name + " " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import java.util.Random;
+
+/**
+ * Spaces out sync attempts after failures.  Each consecutive failure doubles the
+ * delay before the next attempt, up to a maximum; the delay is then shortened by
+ * a random amount of up to half, so that tablets that lost the server at the same
+ * moment don't all come back to it at the same moment.  A success ends the backoff.
+ */
+class SyncBackoff {
+    static final long BASE_DELAY_MILLIS = 5000;
+    static final long MAX_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private final Random random;
+    private int failures = 0;
+    private long nextAttemptMillis = 0;
+
+    SyncBackoff(Random random) {
+        this.random = random;
+    }
+
+    /** Records a failed attempt made at the given time. */
+    synchronized void onFailure(long nowMillis) {
+        failures++;
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(failures - 1, 16));
+        long jitter = (long) (random.nextDouble() * delay / 2);
+        nextAttemptMillis = nowMillis + delay - jitter;
+    }
+
+    /** Records a successful attempt. */
+    synchronized void onSuccess() {
+        failures = 0;
+        nextAttemptMillis = 0;
+    }
+
+    /** The number of consecutive failed attempts. */
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /** The time to wait, from the given time, before the next attempt. */
+    synchronized long getDelayMillis(long nowMillis) {
+        return Math.max(0, nextAttemptMillis - nowMillis);
+    }
+}
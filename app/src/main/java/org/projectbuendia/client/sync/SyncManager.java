@@ -20,6 +20,7 @@ import android.os.Bundle;
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.R;
+import org.projectbuendia.client.events.sync.PatientSyncSucceededEvent;
 import org.projectbuendia.client.events.sync.SyncCancelledEvent;
 import org.projectbuendia.client.events.sync.SyncFailedEvent;
 import org.projectbuendia.client.events.sync.SyncProgressEvent;
@@ -61,6 +62,12 @@ public class SyncManager {
     /** Key for a nullable string describing the sync status to the user. */
     static final String SYNC_MESSAGE_ID = "sync-message-id";
 
+    /** Key for the UUID of the patient, if the sync was for a single patient. */
+    static final String SYNC_PATIENT_UUID = "sync-patient-uuid";
+
+    /** Key for whether another sync was still running when this one stopped. */
+    static final String SYNC_OTHERS_RUNNING = "sync-others-running";
+
     private boolean newSyncsSuppressed = false;
     private final SyncScheduler mScheduler;
     private final List<Runnable> syncStoppedCallbacks = new ArrayList<>();
@@ -79,11 +86,14 @@ public class SyncManager {
      * Sets whether all new syncs should be suppressed.  While this flag is true,
      * any attempt to start a new sync (by an explicit call to sync() or by any
      * periodic sync loop) becomes a no-op.  Any loops started by setPeriodicSync
-     * continue to loop but do not trigger any syncs.  Setting this flag has no
-     * effect on any already running sync.
+     * continue to loop but do not trigger any syncs.  Setting this flag also
+     * cancels any running sync, which stops at once and rolls back.
      */
     public void setNewSyncsSuppressed(boolean suppressed) {
         newSyncsSuppressed = suppressed;
+        if (suppressed && isSyncRunningOrPending()) {
+            mScheduler.stopSyncing();
+        }
     }
 
     /** Stops any currently running sync; invokes a callback when stopped or if already stopped. */
@@ -91,9 +101,14 @@ public class SyncManager {
         if (syncStoppedCallback != null) {
             syncStoppedCallbacks.add(syncStoppedCallback);
         }
+        boolean running = mScheduler.isRunning();
         if (isSyncRunningOrPending()) {
-            mScheduler.stopSyncing();  // let the SyncStoppedEvent trigger the callback
-        } else {
+            mScheduler.stopSyncing();
+        }
+        // A running sync broadcasts its status when it stops, which triggers the
+        // callbacks.  Syncs that were only pending (e.g. waiting out a backoff) are
+        // simply dropped and no status is broadcast, so run the callbacks now.
+        if (!running) {
             runSyncStoppedCallbacks();
         }
     }
@@ -102,6 +117,20 @@ public class SyncManager {
         return mScheduler.isRunningOrPending();
     }
 
+    /** Returns the number of syncs waiting to run; waiting requests are merged, so this stays small. */
+    public int getSyncQueueDepth() {
+        return mScheduler.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of milliseconds until the next sync is due to start,
+     * allowing for any backoff after failures; 0 if a sync is due now, or -1
+     * if none is pending or scheduled.
+     */
+    public long getMillisUntilNextSync() {
+        return mScheduler.getMillisUntilNextSync();
+    }
+
     /** Starts or cancels regularly repeating syncs, according to the settings. */
     public void applyPeriodicSyncSettings() {
         AppSettings settings = App.getSettings();
@@ -120,6 +149,15 @@ public class SyncManager {
         mScheduler.requestSync(buildOptions(phases));
     }
 
+    /**
+     * Fetches the newest observations and orders for one patient right away,
+     * alongside any running sync and ahead of any queued syncs.  A
+     * PatientSyncSucceededEvent is posted when the patient's data has been stored.
+     */
+    public void syncPatient(String patientUuid) {
+        mScheduler.requestPrioritySync(BuendiaSyncEngine.buildPatientOptions(patientUuid));
+    }
+
     /** Starts a sync of everything now. */
     public void syncAll() {
         sync(Phase.ALL_PHASES);
@@ -148,7 +186,19 @@ public class SyncManager {
     public class StatusReceiver extends BroadcastReceiver {
         @Override public void onReceive(Context context, Intent intent) {
             SyncStatus status = (SyncStatus) intent.getSerializableExtra(SYNC_STATUS);
-            if (status == SyncStatus.IN_PROGRESS) {
+            String patientUuid = intent.getStringExtra(SYNC_PATIENT_UUID);
+            // A patient sync can run alongside a sync of phases; syncs have only
+            // stopped once the last of them has.
+            boolean othersRunning = intent.getBooleanExtra(SYNC_OTHERS_RUNNING, false);
+            if (patientUuid != null) {
+                // A patient sync never reports progress, and only its success is
+                // of interest, to the chart showing that patient.
+                LOG.d("SyncStatus for patient %s: %s", patientUuid, status);
+                if (!othersRunning) runSyncStoppedCallbacks();
+                if (status == SyncStatus.SUCCEEDED) {
+                    EventBus.getDefault().post(new PatientSyncSucceededEvent(patientUuid));
+                }
+            } else if (status == SyncStatus.IN_PROGRESS) {
                 int numerator = intent.getIntExtra(SYNC_NUMERATOR, 0);
                 int denominator = intent.getIntExtra(SYNC_DENOMINATOR, 1);
                 int messageId = intent.getIntExtra(SYNC_MESSAGE_ID, R.string.sync_in_progress);
@@ -157,7 +207,7 @@ public class SyncManager {
             } else {
                 // All three other statuses indicate that sync has stopped.
                 LOG.d("SyncStatus: %s", status);
-                runSyncStoppedCallbacks();
+                if (!othersRunning) runSyncStoppedCallbacks();
                 EventBus.getDefault().post(
                     status == SyncStatus.SUCCEEDED ? new SyncSucceededEvent() :
                     status == SyncStatus.FAILED ? new SyncFailedEvent() :
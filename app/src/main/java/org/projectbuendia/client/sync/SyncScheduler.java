@@ -4,12 +4,21 @@ import android.os.Bundle;
 
 /** SyncManager-facing interface for scheduling and cancelling sync operations. */
 public interface SyncScheduler<T> {
-    /** Queues a request for a sync to begin when the sync engine is available. */
+    /**
+     * Queues a request for a sync to begin when the sync engine is available.
+     * The scheduler may merge it with other requests that are still waiting.
+     */
     void requestSync(Bundle options);
 
     /** Aborts any sync currently in progress and cancels any queued requests. */
     void stopSyncing();
 
+    /**
+     * Requests a sync ahead of all syncs already waiting on the queue.  A sync
+     * that is already running is not interrupted.
+     */
+    void requestPrioritySync(Bundle options);
+
     /**
      * Starts, changes, or stops a periodic sync schedule.  There can be at most
      * one such repeating loop for each set of options; if this bundle of options
@@ -23,6 +32,18 @@ public interface SyncScheduler<T> {
     /** Cancels all periodic sync loops. */
     void clearAllPeriodicSyncs();
 
+    /** Returns true if a sync is currently running (not merely waiting on the queue). */
+    boolean isRunning();
+
     /** Returns true if a sync is currently running or pending on the queue. */
     boolean isRunningOrPending();
+
+    /** Returns the number of syncs waiting to run. */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of milliseconds until the next sync is due to start,
+     * 0 if one is due now, or -1 if none is pending or scheduled.
+     */
+    long getMillisUntilNextSync();
 }
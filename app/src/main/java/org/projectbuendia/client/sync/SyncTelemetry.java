@@ -0,0 +1,269 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import org.projectbuendia.client.providers.Contracts.SyncMetrics;
+import org.projectbuendia.client.sync.BuendiaSyncEngine.Phase;
+import org.projectbuendia.client.sync.SyncManager.SyncStatus;
+import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the steps of one sync (each page of a phase, and each phase's
+ * finalization) and stores the measurements in the sync_metrics table, so that
+ * slow syncs in the field can be diagnosed without logcat.  The engine measures
+ * wall time and row counts; workers add what only they know (network, parse,
+ * and database time, and response size) in {@link
+ * org.projectbuendia.client.sync.controllers.SyncWorker#reportStepMetrics}.
+ */
+public class SyncTelemetry {
+    private static final Logger LOG = Logger.create();
+
+    /** The number of syncs whose measurements are kept in the database. */
+    static final int MAX_SYNCS_KEPT = 50;
+
+    /** The number of UI query latencies kept for one sync. */
+    static final int MAX_UI_QUERIES_KEPT = 10000;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startRealtime = SystemClock.elapsedRealtime();
+    private final List<Step> steps = new ArrayList<>();
+    private final List<Long> uiQueryMillis = new ArrayList<>();  // guarded by itself
+
+    /** Measurements of one step.  Workers fill in the public fields they can measure. */
+    public static class Step {
+        final Phase phase;
+        final @Nullable Integer page;
+        final long startRealtime = SystemClock.elapsedRealtime();
+        final long startRows;
+        final long startDeletes;
+        long wallMillis;
+        long inserts;
+        long deletes;
+
+        public @Nullable Long networkMillis = null;
+        public @Nullable Long parseMillis = null;
+        public @Nullable Long applyMillis = null;
+        public @Nullable Long bytes = null;
+
+        Step(Phase phase, @Nullable Integer page, SyncResult result) {
+            this.phase = phase;
+            this.page = page;
+            startRows = countRowsWritten(result);
+            startDeletes = result.stats.numDeletes;
+        }
+
+        /** Returns true for a call to sync(), false for the finalization of a phase. */
+        boolean isPage() {
+            return page != null;
+        }
+
+        /** Finishes measuring the step, whether or not it succeeded. */
+        void finish(SyncResult result) {
+            wallMillis = SystemClock.elapsedRealtime() - startRealtime;
+            inserts = countRowsWritten(result) - startRows;
+            deletes = result.stats.numDeletes - startDeletes;
+        }
+    }
+
+    /** Starts measuring a step; page is null for a phase's finalization. */
+    Step startStep(Phase phase, @Nullable Integer page, SyncResult result) {
+        Step step = new Step(phase, page, result);
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Records the latency of a query made while this sync is running (see
+     * {@link org.projectbuendia.client.providers.BuendiaProvider#setSyncTelemetry}).
+     * The provider reports only queries from threads that aren't syncing, which
+     * come from the UI.
+     */
+    public void recordQuery(long millis) {
+        synchronized (uiQueryMillis) {
+            if (uiQueryMillis.size() < MAX_UI_QUERIES_KEPT) uiQueryMillis.add(millis);
+        }
+    }
+
+    /**
+     * Stores the measurements of this sync and discards those of old syncs.  This
+     * must be called outside the sync's transaction so that the measurements of
+     * failed syncs, which are rolled back, are kept too.  Failures are only logged,
+     * as telemetry must never cause a sync to fail.
+     */
+    void save(ContentProviderClient client, SyncStatus status, SyncResult result) {
+        List<ContentValues> rows = new ArrayList<>();
+        for (Step step : steps) {
+            ContentValues values = new ContentValues();
+            values.put(SyncMetrics.SYNC_START_MILLIS, startMillis);
+            values.put(SyncMetrics.PHASE, step.phase.name());
+            values.put(SyncMetrics.PAGE, step.page);
+            values.put(SyncMetrics.WALL_MILLIS, step.wallMillis);
+            values.put(SyncMetrics.NETWORK_MILLIS, step.networkMillis);
+            values.put(SyncMetrics.PARSE_MILLIS, step.parseMillis);
+            values.put(SyncMetrics.APPLY_MILLIS, step.applyMillis);
+            values.put(SyncMetrics.BYTES, step.bytes);
+            values.put(SyncMetrics.INSERTS, step.inserts);
+            values.put(SyncMetrics.DELETES, step.deletes);
+            rows.add(values);
+        }
+        ContentValues summary = new ContentValues();
+        summary.put(SyncMetrics.SYNC_START_MILLIS, startMillis);
+        summary.put(SyncMetrics.STATUS, status.name());
+        summary.put(SyncMetrics.WALL_MILLIS, SystemClock.elapsedRealtime() - startRealtime);
+        summary.put(SyncMetrics.INSERTS, countRowsWritten(result));
+        summary.put(SyncMetrics.DELETES, result.stats.numDeletes);
+        synchronized (uiQueryMillis) {
+            summary.put(SyncMetrics.UI_QUERIES, uiQueryMillis.size());
+            if (!uiQueryMillis.isEmpty()) {
+                List<Long> sorted = new ArrayList<>(uiQueryMillis);
+                Collections.sort(sorted);
+                summary.put(SyncMetrics.UI_QUERY_P50_MILLIS, percentile(sorted, 50));
+                summary.put(SyncMetrics.UI_QUERY_P90_MILLIS, percentile(sorted, 90));
+                summary.put(SyncMetrics.UI_QUERY_MAX_MILLIS, sorted.get(sorted.size() - 1));
+            }
+        }
+        rows.add(summary);
+
+        try {
+            client.bulkInsert(SyncMetrics.URI, rows.toArray(new ContentValues[rows.size()]));
+            try (Cursor c = client.query(SyncMetrics.URI, new String[] {SyncMetrics.SYNC_START_MILLIS},
+                SyncMetrics.PHASE + " IS NULL", null, SyncMetrics.SYNC_START_MILLIS + " DESC")) {
+                if (c.moveToPosition(MAX_SYNCS_KEPT - 1)) {
+                    client.delete(SyncMetrics.URI, SyncMetrics.SYNC_START_MILLIS + " < ?",
+                        new String[] {"" + c.getLong(0)});
+                }
+            }
+        } catch (Exception e) {
+            LOG.w(e, "Failed to save sync metrics");
+        }
+    }
+
+    /** Formats the measurements of the last numSyncs syncs, with percentiles, as plain text. */
+    public static String getReport(ContentResolver resolver, int numSyncs) {
+        StringBuilder report = new StringBuilder();
+        List<Long> totals = new ArrayList<>();
+        long oldest = Long.MAX_VALUE;
+        try (Cursor c = resolver.query(SyncMetrics.URI, null, SyncMetrics.PHASE + " IS NULL",
+            null, SyncMetrics.SYNC_START_MILLIS + " DESC")) {
+            report.append(String.format(Locale.US, "Last %d syncs:\n", Math.min(numSyncs, c.getCount())));
+            while (c.moveToNext() && totals.size() < numSyncs) {
+                long start = Utils.getLong(c, SyncMetrics.SYNC_START_MILLIS, 0L);
+                long wall = Utils.getLong(c, SyncMetrics.WALL_MILLIS, 0L);
+                report.append(String.format(Locale.US, "  %s  %-9s %8.1f s  %d written, %d deleted\n",
+                    Utils.toLocalDateTime(start).toString("yyyy-MM-dd HH:mm:ss"),
+                    Utils.getString(c, SyncMetrics.STATUS, ""), wall / 1000.0,
+                    Utils.getLong(c, SyncMetrics.INSERTS, 0L),
+                    Utils.getLong(c, SyncMetrics.DELETES, 0L)));
+                if (Utils.getLong(c, SyncMetrics.UI_QUERIES, 0L) > 0) {
+                    report.append(String.format(Locale.US,
+                        "    %d UI queries during sync (ms): p50 %d, p90 %d, max %d\n",
+                        Utils.getLong(c, SyncMetrics.UI_QUERIES, 0L),
+                        Utils.getLong(c, SyncMetrics.UI_QUERY_P50_MILLIS, 0L),
+                        Utils.getLong(c, SyncMetrics.UI_QUERY_P90_MILLIS, 0L),
+                        Utils.getLong(c, SyncMetrics.UI_QUERY_MAX_MILLIS, 0L)));
+                }
+                totals.add(wall);
+                oldest = start;
+            }
+        }
+        if (totals.isEmpty()) return report.toString();
+        report.append("Sync time (ms): ").append(formatPercentiles(totals)).append("\n");
+
+        // Gather each phase's step measurements over the same syncs.
+        Map<String, PhaseStats> phases = new LinkedHashMap<>();
+        try (Cursor c = resolver.query(SyncMetrics.URI, null,
+            SyncMetrics.PHASE + " IS NOT NULL AND " + SyncMetrics.SYNC_START_MILLIS + " >= ?",
+            new String[] {"" + oldest}, SyncMetrics.SYNC_START_MILLIS)) {
+            while (c.moveToNext()) {
+                String phase = Utils.getString(c, SyncMetrics.PHASE);
+                PhaseStats stats = phases.get(phase);
+                if (stats == null) {
+                    stats = new PhaseStats();
+                    phases.put(phase, stats);
+                }
+                stats.add(c);
+            }
+        }
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            PhaseStats stats = entry.getValue();
+            report.append(String.format(Locale.US, "\n%s: %d steps, %d KB, %d written, %d deleted\n",
+                entry.getKey(), stats.wall.size(), stats.bytes / 1024, stats.inserts, stats.deletes));
+            report.append("  wall (ms):    ").append(formatPercentiles(stats.wall)).append("\n");
+            if (!stats.network.isEmpty()) {
+                report.append("  network (ms): ").append(formatPercentiles(stats.network)).append("\n");
+                report.append("  parse (ms):   ").append(formatPercentiles(stats.parse)).append("\n");
+                report.append("  apply (ms):   ").append(formatPercentiles(stats.apply)).append("\n");
+            }
+        }
+        return report.toString();
+    }
+
+    /** Returns the value at the given percentile of a sorted list, by the nearest-rank method. */
+    static long percentile(List<Long> sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    private static String formatPercentiles(List<Long> values) {
+        if (values.isEmpty()) return "-";
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return String.format(Locale.US, "p50 %d, p90 %d, p99 %d, max %d",
+            percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+            sorted.get(sorted.size() - 1));
+    }
+
+    private static long countRowsWritten(SyncResult result) {
+        return result.stats.numInserts + result.stats.numUpdates;
+    }
+
+    /** Accumulates the step measurements of one phase. */
+    private static class PhaseStats {
+        final List<Long> wall = new ArrayList<>();
+        final List<Long> network = new ArrayList<>();
+        final List<Long> parse = new ArrayList<>();
+        final List<Long> apply = new ArrayList<>();
+        long bytes = 0;
+        long inserts = 0;
+        long deletes = 0;
+
+        void add(Cursor c) {
+            wall.add(Utils.getLong(c, SyncMetrics.WALL_MILLIS, 0L));
+            addIfPresent(network, Utils.getLong(c, SyncMetrics.NETWORK_MILLIS));
+            addIfPresent(parse, Utils.getLong(c, SyncMetrics.PARSE_MILLIS));
+            addIfPresent(apply, Utils.getLong(c, SyncMetrics.APPLY_MILLIS));
+            bytes += Utils.getLong(c, SyncMetrics.BYTES, 0L);
+            inserts += Utils.getLong(c, SyncMetrics.INSERTS, 0L);
+            deletes += Utils.getLong(c, SyncMetrics.DELETES, 0L);
+        }
+
+        private static void addIfPresent(List<Long> list, @Nullable Long value) {
+            if (value != null) list.add(value);
+        }
+    }
+}
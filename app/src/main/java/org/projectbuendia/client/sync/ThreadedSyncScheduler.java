@@ -5,24 +5,47 @@ import android.content.SyncResult;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import org.projectbuendia.client.App;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.receivers.BatteryWatcher;
+import org.projectbuendia.client.sync.BuendiaSyncEngine.Phase;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-/** An implementation of SyncScheduler that runs the SyncEngine on a background thread. */
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An implementation of SyncScheduler that runs the SyncEngine on a background thread.
+ * <p>
+ * Requests are not queued one by one: the phases of all waiting requests are merged
+ * into a single pending sync of their union, so repeated requests and periodic ticks
+ * that arrive while a sync is running or waiting cost nothing extra.  Syncs of single
+ * patients run on a second thread (see {@link PatientSyncThread}), so that they don't
+ * wait for a sync of phases that is already running; each patient is pending at most
+ * once.  After a sync of phases fails, or is skipped because the HealthMonitor knows
+ * the API is unavailable, further syncs of phases are held back by an exponentially
+ * growing, jittered delay (see {@link SyncBackoff}); requests that arrive in the
+ * meantime are merged into the pending sync and run when it ends.
+ * While no sync is due, the thread also runs the daily {@link DatabaseMaintenance}.
+ */
 public class ThreadedSyncScheduler implements SyncScheduler {
     private static Logger LOG = Logger.create();
 
     private final SyncThread thread;
+    private final PatientSyncThread patientThread;
 
     // Command codes
     private static final int REQUEST_SYNC = 1;
@@ -34,16 +57,33 @@ public class ThreadedSyncScheduler implements SyncScheduler {
         LOG.i("> start new SyncThread");
         thread = new SyncThread(engine);
         thread.start();
+        patientThread = new PatientSyncThread(engine);
+        patientThread.start();
     }
 
     @Override public void requestSync(Bundle options) {
         LOG.i("> requestSync(%s)", options);
-        thread.send(REQUEST_SYNC, Utils.bundle("options", options));
+        enqueue(options, false);
+    }
+
+    @Override public void requestPrioritySync(Bundle options) {
+        LOG.i("> requestPrioritySync(%s)", options);
+        enqueue(options, true);
+    }
+
+    private void enqueue(Bundle options, boolean priority) {
+        String patientUuid = BuendiaSyncEngine.getPatientUuid(options);
+        if (patientUuid != null) {
+            patientThread.enqueue(patientUuid);
+        } else {
+            thread.enqueue(options, priority);
+        }
     }
 
     @Override public void stopSyncing() {
         LOG.i("> stopSyncing()");
-        thread.stopSyncing();
+        patientThread.clearPending();
+        thread.stopSyncing();  // cancels the running syncs on both threads
     }
 
     @Override public void setPeriodicSync(int periodSec, Bundle options) {
@@ -57,16 +97,110 @@ public class ThreadedSyncScheduler implements SyncScheduler {
         thread.send(CLEAR_ALL_PERIODIC_SYNCS, new Bundle());
     }
 
+    @Override public boolean isRunning() {
+        return thread.isSyncRunning() || patientThread.isSyncRunning();
+    }
+
     @Override public boolean isRunningOrPending() {
-        return thread.isSyncRunning() || thread.hasPendingRequests();
+        return isRunning() || getQueueDepth() > 0;
+    }
+
+    @Override public int getQueueDepth() {
+        return thread.getQueueDepth() + patientThread.getQueueDepth();
+    }
+
+    @Override public long getMillisUntilNextSync() {
+        return patientThread.getQueueDepth() > 0 ? 0 : thread.getMillisUntilNextSync();
+    }
+
+    /**
+     * Runs syncs of single patients, one at a time, while the SyncThread may be
+     * running a sync of phases.  A patient sync is requested when a chart opens,
+     * and someone is waiting to see it, so it isn't retried or backed off after a
+     * failure; the next sync of observations and orders catches up anyway.
+     */
+    protected static class PatientSyncThread extends Thread {
+        private final SyncEngine engine;
+        private final Set<String> pendingPatientUuids = new LinkedHashSet<>();  // guarded by this
+        private volatile boolean running = false;
+
+        public PatientSyncThread(SyncEngine engine) {
+            super("PatientSyncThread");
+            this.engine = engine;
+        }
+
+        public synchronized void enqueue(String patientUuid) {
+            pendingPatientUuids.add(patientUuid);
+            notifyAll();
+        }
+
+        public synchronized void clearPending() {
+            pendingPatientUuids.clear();
+        }
+
+        public synchronized int getQueueDepth() {
+            return pendingPatientUuids.size();
+        }
+
+        public boolean isSyncRunning() {
+            return running;
+        }
+
+        @Override public void run() {
+            LOG.i("* PatientSyncThread.run()");
+            while (true) {
+                String patientUuid;
+                synchronized (this) {
+                    while (pendingPatientUuids.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Only cancel() interrupts this thread, and only during a sync.
+                        }
+                    }
+                    Iterator<String> patients = pendingPatientUuids.iterator();
+                    patientUuid = patients.next();
+                    patients.remove();
+                }
+                runSync(patientUuid);
+            }
+        }
+
+        private void runSync(String patientUuid) {
+            if (!App.getSettings().isAuthorized()
+                || App.getSyncManager().getNewSyncsSuppressed()
+                || App.getHealthMonitor().isApiUnavailable()) {
+                LOG.w("Skipping sync of patient %s: not authorized, suppressed, or API unavailable",
+                    patientUuid);
+                return;
+            }
+            ContentProviderClient client = App.getResolver().acquireContentProviderClient(Contracts.Users.URI);
+            running = true;
+            try {
+                LOG.i("* engine.sync(patientUuid=%s)", patientUuid);
+                engine.sync(BuendiaSyncEngine.buildPatientOptions(patientUuid), client, new SyncResult());
+            } catch (RuntimeException e) {
+                // An exception here would end this thread, and with it all patient syncs.
+                LOG.e(e, "Sync of patient %s failed", patientUuid);
+            } finally {
+                LOG.i("* engine.sync() terminated");
+                running = false;
+                client.release();
+            }
+        }
     }
 
     protected static class SyncThread extends Thread {
         private final SyncEngine engine;
+        private final SyncBackoff backoff = new SyncBackoff(new Random());
+
+        // All access to these fields is guarded by this SyncThread.
         private final Map<Object, Loop> loopStates = new HashMap<>();
+        private final Set<Phase> pendingPhases = EnumSet.noneOf(Phase.class);
         private int nextLoopId = 0;
+
         private Handler handler = null;
-        private boolean running = false;
+        private volatile boolean running = false;
 
         // ==== Methods exposed to external threads ====
 
@@ -80,17 +214,54 @@ public class ThreadedSyncScheduler implements SyncScheduler {
             handler.sendMessage(Utils.newMessage(handler, command, data));
         }
 
+        /**
+         * Merges a request into the pending sync.  A priority request is handled
+         * before any other message waiting on the queue.
+         */
+        public void enqueue(Bundle options, boolean priority) {
+            synchronized (this) {
+                addPending(options);
+            }
+            if (priority) {
+                handler.sendMessageAtFrontOfQueue(handler.obtainMessage(REQUEST_SYNC));
+            } else if (!handler.hasMessages(REQUEST_SYNC)) {
+                handler.sendMessageDelayed(handler.obtainMessage(REQUEST_SYNC),
+                    backoff.getDelayMillis(SystemClock.elapsedRealtime()));
+            }
+        }
+
         public boolean isSyncRunning() {
             LOG.d("> isSyncRunning() = " + running);
             return running;
         }
 
-        public boolean hasPendingRequests() {
-            LOG.i("> hasPendingRequests() = " + handler.hasMessages(REQUEST_SYNC));
-            return handler.hasMessages(REQUEST_SYNC);
+        /** Returns the number of syncs waiting to run: one for all phases, or none. */
+        public synchronized int getQueueDepth() {
+            return pendingPhases.isEmpty() ? 0 : 1;
+        }
+
+        /**
+         * Returns the time until the next sync is due to start: a pending sync
+         * starts when any backoff ends, otherwise the next periodic tick starts
+         * one.  Returns 0 if a sync is due now, or -1 if none is scheduled.
+         */
+        public synchronized long getMillisUntilNextSync() {
+            long now = SystemClock.elapsedRealtime();
+            if (getQueueDepth() > 0) return backoff.getDelayMillis(now);
+            long next = -1;
+            for (Loop loop : loopStates.values()) {
+                if (loop.periodSec > 0) {
+                    long delay = Math.max(0, loop.nextTickMillis - now);
+                    if (next < 0 || delay < next) next = delay;
+                }
+            }
+            return next;
         }
 
         public void stopSyncing() {
+            synchronized (this) {
+                pendingPhases.clear();
+            }
             handler.removeMessages(REQUEST_SYNC);
             engine.cancel();
         }
@@ -107,42 +278,53 @@ public class ThreadedSyncScheduler implements SyncScheduler {
                     Bundle options = data.getBundle("options");
                     int periodSec = data.getInt("periodSec", 0);
                     int loopId = data.getInt("loopId", 0);
-                    Loop loop = getLoop(options);
 
                     switch (message.what) {
                         case REQUEST_SYNC:
-                            LOG.d("* handleMessage(REQUEST_SYNC, %s)", data);
-                            runSync(options);
+                            LOG.d("* handleMessage(REQUEST_SYNC)");
+                            runNextPending();
                             return true;
 
                         case SET_PERIODIC_SYNC:
-                            LOG.d("* handleMessage(SET_PERIODIC_SYNC, %s), loop=%s", data, loop);
-                            if (periodSec == loop.periodSec) {
-                                LOG.d("* requested period (%s sec) is already in effect", periodSec);
-                                return true;
-                            }
-                            loop.set(periodSec);
-                            LOG.d("* activeLoopId is now %d for options=%s", loop.activeLoopId, options);
-
-                            if (loop.periodSec > 0) {
-                                sendLoopTick(loop);
+                            synchronized (this) {
+                                Loop loop = getLoop(options);
+                                LOG.d("* handleMessage(SET_PERIODIC_SYNC, %s), loop=%s", data, loop);
+                                if (periodSec == loop.periodSec) {
+                                    LOG.d("* requested period (%s sec) is already in effect", periodSec);
+                                    return true;
+                                }
+                                loop.set(periodSec);
+                                LOG.d("* activeLoopId is now %d for options=%s", loop.activeLoopId, options);
+
+                                if (loop.periodSec > 0) {
+                                    sendLoopTick(loop);
+                                }
                             }
                             return true;
 
                         case CLEAR_ALL_PERIODIC_SYNCS:
                             LOG.d("* handleMessage(CLEAR_ALL_PERIODIC_SYNCS)");
-                            loopStates.clear();
-                            nextLoopId = 0;
+                            synchronized (this) {
+                                loopStates.clear();
+                                nextLoopId = 0;
+                            }
                             return true;
 
                         case LOOP_TICK:
-                            LOG.d("* handleMessage(LOOP_TICK, %s), loop=%s", data, loop);
-                            if (loopId == loop.activeLoopId) {
-                                runSync(options);
-                                sendLoopTick(loop);
-                            } else {
-                                LOG.d("* loopId=%d is no longer active; ignoring", loopId);
+                            boolean active;
+                            synchronized (this) {
+                                Loop loop = getLoop(options);
+                                LOG.d("* handleMessage(LOOP_TICK, %s), loop=%s", data, loop);
+                                active = loopId == loop.activeLoopId;
+                                if (active) {
+                                    addPending(options);
+                                    sendLoopTick(loop);
+                                } else {
+                                    LOG.d("* loopId=%d is no longer active; ignoring", loopId);
+                                }
                             }
+                            // While backing off, the tick only joins the pending sync.
+                            if (active && !handler.hasMessages(REQUEST_SYNC)) runNextPending();
                             return true;
                     }
                     return false;
@@ -156,6 +338,71 @@ public class ThreadedSyncScheduler implements SyncScheduler {
             }
         }
 
+        /** Merges a request's phases into the pending sync.  Caller must hold the lock. */
+        private void addPending(Bundle options) {
+            pendingPhases.addAll(BuendiaSyncEngine.getPhases(options));
+        }
+
+        /**
+         * Takes the pending sync of phases off the pending set, or returns null if
+         * nothing is pending.  Caller must hold the lock.
+         */
+        private Bundle takePending() {
+            if (pendingPhases.isEmpty()) return null;
+            Bundle options = BuendiaSyncEngine.buildOptions(
+                pendingPhases.toArray(new Phase[pendingPhases.size()]));
+            pendingPhases.clear();
+            return options;
+        }
+
+        /**
+         * Runs the next pending sync, unless a backoff is in effect; either way,
+         * schedules the following run if anything is still pending.
+         */
+        private void runNextPending() {
+            long delay = backoff.getDelayMillis(SystemClock.elapsedRealtime());
+            if (delay == 0) {
+                Bundle options;
+                synchronized (this) {
+                    options = takePending();
+                }
+                if (options != null && !runSync(options)) {
+                    backoff.onFailure(SystemClock.elapsedRealtime());
+                    LOG.w("Sync failed %d times in a row; backing off for %d ms",
+                        backoff.getFailures(), backoff.getDelayMillis(SystemClock.elapsedRealtime()));
+                }
+                delay = backoff.getDelayMillis(SystemClock.elapsedRealtime());
+            }
+            handler.removeMessages(REQUEST_SYNC);
+            if (getQueueDepth() > 0) {
+                handler.sendMessageDelayed(handler.obtainMessage(REQUEST_SYNC), delay);
+            }
+            // The thread is idle until the next sync is due, which makes time for maintenance.
+            if (getQueueDepth() == 0 || delay > 0) maybeMaintainDatabase();
+        }
+
+        /**
+         * Runs the database maintenance if it's due and the tablet is docked, which
+         * is when it's least likely to be in use.  Running it on this thread keeps
+         * it from competing with a sync for the database.
+         */
+        private void maybeMaintainDatabase() {
+            if (App.getSyncManager().getNewSyncsSuppressed()) return;
+            if (!BatteryWatcher.isOnAcPower(App.getContext())) return;
+            ContentProviderClient client = App.getResolver().acquireContentProviderClient(
+                Contracts.MaintenanceRuns.URI);
+            try {
+                if (((BuendiaProvider) client.getLocalContentProvider()).maintainDatabase()) {
+                    LOG.i("* database maintenance done");
+                }
+            } catch (RuntimeException e) {
+                // An exception here would end this thread, and with it all syncing.
+                LOG.e(e, "Database maintenance failed");
+            } finally {
+                client.release();
+            }
+        }
+
         private Loop getLoop(Bundle options) {
             if (options == null) return null;
             Object bundleKey = getHashableObject(options);
@@ -169,6 +416,7 @@ public class ThreadedSyncScheduler implements SyncScheduler {
 
         private void sendLoopTick(Loop loop) {
             LOG.d("* scheduling LOOP_TICK(%d) in %d sec for %s", loop.activeLoopId, loop.periodSec, loop);
+            loop.nextTickMillis = SystemClock.elapsedRealtime() + loop.periodSec * 1000;
             handler.sendMessageDelayed(Utils.newMessage(handler, LOOP_TICK, Utils.bundle(
                 "options", loop.options,
                 "periodSec", loop.periodSec,
@@ -176,25 +424,31 @@ public class ThreadedSyncScheduler implements SyncScheduler {
             )), loop.periodSec * 1000);
         }
 
-        private void runSync(Bundle options) {
+        /**
+         * Runs a sync.  Returns false if the sync failed or if the API is known to be
+         * unavailable (in which case the request is put back, to be retried after the
+         * backoff); returns true otherwise, including when the sync is skipped.
+         */
+        private boolean runSync(Bundle options) {
             if (!App.getSettings().isAuthorized()) {
                 LOG.w("Skipping sync: App is not authorized.");
-                return;
+                return true;
             }
 
             if (App.getSyncManager().getNewSyncsSuppressed()) {
                 LOG.w("Skipping sync: New syncs are currently suppressed.");
-                return;
+                return true;
             }
 
             // If we can't access the Buendia API, short-circuit. Before this check
             // was added, sync would occasionally hang indefinitely when Wi-Fi was
-            // unavailable.  As a side effect of this change, however, any
-            // user-requested sync will instantly fail until the HealthMonitor has
-            // made a determination that the server is definitely accessible.
+            // unavailable.  The request is kept, and retried once the backoff ends.
             if (App.getHealthMonitor().isApiUnavailable()) {
                 LOG.w("Skipping sync: Buendia API is unavailable.");
-                return;
+                synchronized (this) {
+                    addPending(options);
+                }
+                return false;
             }
 
             ContentProviderClient client = App.getResolver().acquireContentProviderClient(Contracts.Users.URI);
@@ -207,6 +461,9 @@ public class ThreadedSyncScheduler implements SyncScheduler {
                 LOG.i("* engine.sync() terminated");
                 running = false;
             }
+            if (result.hasError()) return false;
+            backoff.onSuccess();
+            return true;
         }
 
         /** Performs a bijection from a Bundle to an object usable as a Map key. */
@@ -224,6 +481,7 @@ public class ThreadedSyncScheduler implements SyncScheduler {
         private class Loop {
             private int periodSec;
             private int activeLoopId;
+            private long nextTickMillis;  // in the SystemClock.elapsedRealtime() time base
             private final Bundle options;
 
             private Loop(Bundle options) {
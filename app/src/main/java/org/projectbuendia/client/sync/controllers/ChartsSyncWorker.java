@@ -1,12 +1,19 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.RemoteException;
 
 import com.android.volley.toolbox.RequestFuture;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonChart;
@@ -15,80 +22,177 @@ import org.projectbuendia.client.json.JsonChartSection;
 import org.projectbuendia.client.json.JsonChartsResponse;
 import org.projectbuendia.client.net.OpenMrsChartServer;
 import org.projectbuendia.client.net.OpenMrsServer;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.ChartItems;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.BuendiaSyncEngine;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Handles syncing charts. Always fetches everything. This is okay because the full set of chart
- * layouts is usually fairly small in size.
+ * layouts is usually fairly small in size.  A hash of the resulting rows is kept as the
+ * bookmark for the chart_items table; if the hash is unchanged, nothing is written, and
+ * otherwise only the rows that were added, removed, or modified are written.
  */
 public class ChartsSyncWorker implements SyncWorker {
     private static final Logger LOG = Logger.create();
+    private static final String[] COLUMNS = {
+        ChartItems.ROWID, ChartItems.CHART_UUID, ChartItems.WEIGHT, ChartItems.SECTION_TYPE,
+        ChartItems.PARENT_ROWID, ChartItems.LABEL, ChartItems.TYPE, ChartItems.REQUIRED,
+        ChartItems.CONCEPT_UUIDS, ChartItems.FORMAT, ChartItems.CAPTION_FORMAT,
+        ChartItems.CSS_CLASS, ChartItems.CSS_STYLE, ChartItems.SCRIPT
+    };
+    private RequestFuture<JsonChartsResponse> prefetched = null;
+
+    @Override public void prefetch(ContentResolver resolver, ContentProviderClient client) {
+        prefetched = requestCharts();
+    }
+
+    @Override public boolean isPrefetchDone() {
+        return prefetched == null || prefetched.isDone();
+    }
+
+    @Override public void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client) throws Throwable {
+        if (prefetched != null) prefetched.get(OpenMrsServer.TIMEOUT_SECONDS, SECONDS);
+    }
 
     @Override public boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable {
-        OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
-        RequestFuture<JsonChartsResponse> future = RequestFuture.newFuture();
-        // errors handled by caller
-        chartServer.getChartStructures(future, future);
+        RequestFuture<JsonChartsResponse> future =
+            prefetched != null ? prefetched : requestCharts();
+        prefetched = null;
         final JsonChartsResponse response = future.get(OpenMrsServer.TIMEOUT_SECONDS, SECONDS);
 
-        // When we do a chart update, delete everything first, then insert all the new rows.
-        result.stats.numDeletes += client.delete(Contracts.ChartItems.URI, null, null);
-        client.applyBatch(getInsertOps(response, result));
+        List<ContentValues> rows = getChartRows(response);
+        String hash = hashRows(rows);
+        if (hash.equals(BuendiaSyncEngine.getBookmark(client, Table.CHART_ITEMS))) {
+            LOG.i("Charts are unchanged (hash %s)", hash);
+            return true;
+        }
 
+        // Compare the new rows against the stored ones and write only the differences,
+        // so that observers are notified only if the charts have actually changed.
+        Map<String, ContentValues> oldRows = getStoredRows(client);
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        try (TableWriter writer = provider.openTableWriter(
+            ChartItems.URI, Table.CHART_ITEMS, ChartItems.ROWID)) {
+            for (ContentValues row : rows) {
+                ContentValues oldRow = oldRows.remove(row.getAsString(ChartItems.ROWID));
+                if (oldRow == null || !sameValues(row, oldRow)) writer.upsert(row);
+            }
+            for (String rowid : oldRows.keySet()) {
+                writer.delete(rowid);
+            }
+            writer.markSuccessful();
+            LOG.i("Charts changed: %d rows written, %d rows deleted",
+                writer.getNumInserts(), writer.getNumDeletes());
+            result.stats.numDeletes += writer.getNumDeletes();
+            result.stats.numInserts += writer.getNumInserts();
+        }
+        BuendiaSyncEngine.setBookmark(client, Table.CHART_ITEMS, hash);
         return true;
     }
 
-    /** Converts a JsonChart response into appropriate inserts in the chart table. */
-    private static ArrayList<ContentProviderOperation> getInsertOps(
-            JsonChartsResponse response, SyncResult result) {
+    private static RequestFuture<JsonChartsResponse> requestCharts() {
+        OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
+        RequestFuture<JsonChartsResponse> future = RequestFuture.newFuture();
+        // errors handled by caller
+        chartServer.getChartStructures(REQUEST_TAG, future, future);
+        return future;
+    }
 
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    /** Gets the rows of the chart table for a JsonChart response. */
+    private static List<ContentValues> getChartRows(JsonChartsResponse response) {
+        List<ContentValues> rows = new ArrayList<>();
         int nextId = 1;
         int nextWeight = 1;
         for (JsonChart chart : response.results) {
             for (JsonChartSection section : chart.sections) {
                 int parentId = nextId;
-                ops.add(ContentProviderOperation.newInsert(Contracts.ChartItems.URI)
-                    .withValue("rowid", nextId++)
-                    .withValue(Contracts.ChartItems.CHART_UUID, chart.uuid)
-                    .withValue(Contracts.ChartItems.WEIGHT, nextWeight++)
-                    .withValue(Contracts.ChartItems.SECTION_TYPE, section.type != null ? section.type.name() : null)
-                    .withValue(Contracts.ChartItems.LABEL, section.label)
-                    .build());
-                result.stats.numInserts++;
+                ContentValues values = new ContentValues();
+                values.put("rowid", nextId++);
+                values.put(ChartItems.CHART_UUID, chart.uuid);
+                values.put(ChartItems.WEIGHT, nextWeight++);
+                values.put(ChartItems.SECTION_TYPE, section.type != null ? section.type.name() : null);
+                values.put(ChartItems.LABEL, section.label);
+                rows.add(values);
 
                 for (JsonChartItem item : section.items) {
                     Object[] conceptUuids = new Object[item.concepts.length];
                     for (int i = 0; i < conceptUuids.length; i++) {
                         conceptUuids[i] = Utils.expandUuid(item.concepts[i]);
                     }
-                    ops.add(ContentProviderOperation.newInsert(Contracts.ChartItems.URI)
-                        .withValue("rowid", nextId++)
-                        .withValue(Contracts.ChartItems.CHART_UUID, chart.uuid)
-                        .withValue(Contracts.ChartItems.WEIGHT, nextWeight++)
-                        .withValue(Contracts.ChartItems.PARENT_ROWID, parentId)
-                        .withValue(Contracts.ChartItems.LABEL, item.label)
-                        .withValue(Contracts.ChartItems.TYPE, item.type)
-                        .withValue(Contracts.ChartItems.REQUIRED, item.required ? 1 : 0)
-                        .withValue(Contracts.ChartItems.CONCEPT_UUIDS, Joiner.on(",").join(conceptUuids))
-                        .withValue(Contracts.ChartItems.FORMAT, item.format)
-                        .withValue(Contracts.ChartItems.CAPTION_FORMAT, item.caption_format)
-                        .withValue(Contracts.ChartItems.CSS_CLASS, item.css_class)
-                        .withValue(Contracts.ChartItems.CSS_STYLE, item.css_style)
-                        .withValue(Contracts.ChartItems.SCRIPT, item.script)
-                        .build());
-                    result.stats.numInserts++;
+                    values = new ContentValues();
+                    values.put("rowid", nextId++);
+                    values.put(ChartItems.CHART_UUID, chart.uuid);
+                    values.put(ChartItems.WEIGHT, nextWeight++);
+                    values.put(ChartItems.PARENT_ROWID, parentId);
+                    values.put(ChartItems.LABEL, item.label);
+                    values.put(ChartItems.TYPE, item.type);
+                    values.put(ChartItems.REQUIRED, item.required ? 1 : 0);
+                    values.put(ChartItems.CONCEPT_UUIDS, Joiner.on(",").join(conceptUuids));
+                    values.put(ChartItems.FORMAT, item.format);
+                    values.put(ChartItems.CAPTION_FORMAT, item.caption_format);
+                    values.put(ChartItems.CSS_CLASS, item.css_class);
+                    values.put(ChartItems.CSS_STYLE, item.css_style);
+                    values.put(ChartItems.SCRIPT, item.script);
+                    rows.add(values);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /** Computes a hash over all the column values of the given rows, in order. */
+    private static String hashRows(List<ContentValues> rows) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (ContentValues row : rows) {
+            for (String column : COLUMNS) {
+                Object value = row.get(column);
+                // Tag each value so that nulls and column boundaries are unambiguous.
+                if (value == null) {
+                    hasher.putByte((byte) 0);
+                } else {
+                    hasher.putByte((byte) 1).putString(value.toString(), Charsets.UTF_8);
                 }
+                hasher.putByte((byte) 0xff);
             }
         }
-        return ops;
+        return hasher.hash().toString();
+    }
+
+    /** Reads the stored chart rows, keyed by rowid, with all values as strings. */
+    private static Map<String, ContentValues> getStoredRows(ContentProviderClient client)
+        throws RemoteException {
+        Map<String, ContentValues> rows = new HashMap<>();
+        try (Cursor c = client.query(ChartItems.URI, COLUMNS, null, null, null)) {
+            while (c.moveToNext()) {
+                ContentValues row = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(c, row);
+                rows.put(row.getAsString(ChartItems.ROWID), row);
+            }
+        }
+        return rows;
+    }
+
+    /** Compares a new row to a stored row, whose values have all been read as strings. */
+    private static boolean sameValues(ContentValues newRow, ContentValues storedRow) {
+        for (String column : COLUMNS) {
+            Object value = newRow.get(column);
+            if (!Objects.equal(value != null ? value.toString() : null,
+                storedRow.getAsString(column))) return false;
+        }
+        return true;
     }
 }
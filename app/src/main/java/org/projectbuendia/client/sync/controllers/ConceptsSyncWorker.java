@@ -4,49 +4,100 @@ import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.SyncResult;
+import android.os.RemoteException;
 
 import com.android.volley.toolbox.RequestFuture;
 
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonConcept;
 import org.projectbuendia.client.json.JsonConceptsResponse;
+import org.projectbuendia.client.net.ConditionalResponse;
 import org.projectbuendia.client.net.OpenMrsChartServer;
 import org.projectbuendia.client.net.OpenMrsServer;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.BuendiaSyncEngine;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
-/** Syncs concepts.  All concepts are fetched every time. */
+/**
+ * Syncs concepts.  All concepts are fetched every time they have changed; the validator from
+ * each response is kept as the bookmark for the concepts table, so that when nothing has
+ * changed the server can reply "not modified" and this phase does nothing.
+ */
 public class ConceptsSyncWorker implements SyncWorker {
     private static final Logger LOG = Logger.create();
+    private RequestFuture<ConditionalResponse<JsonConceptsResponse>> prefetched = null;
+    private boolean changed = false;
+
+    @Override public void initialize(
+        ContentResolver resolver, SyncResult result, ContentProviderClient client) {
+        changed = false;
+    }
+
+    @Override public void prefetch(
+        ContentResolver resolver, ContentProviderClient client) throws RemoteException {
+        prefetched = requestConcepts(client);
+    }
+
+    @Override public boolean isPrefetchDone() {
+        return prefetched == null || prefetched.isDone();
+    }
+
+    @Override public void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client) throws Throwable {
+        if (prefetched != null) prefetched.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
 
     @Override public boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable {
-        OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
-        RequestFuture<JsonConceptsResponse> future = RequestFuture.newFuture();
-        chartServer.getConcepts(future, future); // errors handled by caller
-        ArrayList<ContentValues> conceptInserts = new ArrayList<>();
-        for (JsonConcept concept : future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS).results) {
-            // This is safe because the ContentProvider implements insert as replace.
-            ContentValues conceptInsert = new ContentValues();
-            conceptInsert.put(Contracts.Concepts.UUID, concept.uuid);
-            conceptInsert.put(Contracts.Concepts.XFORM_ID, concept.xform_id);
-            conceptInsert.put(Contracts.Concepts.TYPE, concept.type.name());
-            conceptInsert.put(Contracts.Concepts.NAME, concept.name);
-            conceptInserts.add(conceptInsert);
-            result.stats.numInserts++;
+        RequestFuture<ConditionalResponse<JsonConceptsResponse>> future =
+            prefetched != null ? prefetched : requestConcepts(client);
+        prefetched = null;
+        ConditionalResponse<JsonConceptsResponse> response =
+            future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (response.isNotModified()) {
+            LOG.i("Concepts have not changed since the last sync");
+            return true;
+        }
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        try (TableWriter writer = provider.openTableWriter(
+            Concepts.URI, Table.CONCEPTS, Concepts.UUID)) {
+            for (JsonConcept concept : response.value.results) {
+                // This is safe because the TableWriter implements insert as replace.
+                ContentValues conceptInsert = new ContentValues();
+                conceptInsert.put(Concepts.UUID, concept.uuid);
+                conceptInsert.put(Concepts.XFORM_ID, concept.xform_id);
+                conceptInsert.put(Concepts.TYPE, concept.type.name());
+                conceptInsert.put(Concepts.NAME, concept.name);
+                writer.upsert(conceptInsert);
+            }
+            writer.markSuccessful();
+            result.stats.numInserts += writer.getNumInserts();
         }
-        client.bulkInsert(Contracts.Concepts.URI,
-            conceptInserts.toArray(new ContentValues[conceptInserts.size()]));
+        BuendiaSyncEngine.setBookmark(client, Table.CONCEPTS, response.validator);
+        changed = true;
         return true;
     }
 
+    /** Requests the concepts, unless they haven't changed since the stored validator. */
+    private static RequestFuture<ConditionalResponse<JsonConceptsResponse>> requestConcepts(
+        ContentProviderClient client) throws RemoteException {
+        OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
+        RequestFuture<ConditionalResponse<JsonConceptsResponse>> future = RequestFuture.newFuture();
+        // errors handled by caller
+        chartServer.getConcepts(
+            BuendiaSyncEngine.getBookmark(client, Table.CONCEPTS), REQUEST_TAG, future, future);
+        return future;
+    }
+
     @Override public void finalize(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable {
-        App.getConceptService().invalidate();
+        if (changed) App.getConceptService().invalidate();
     }
 }
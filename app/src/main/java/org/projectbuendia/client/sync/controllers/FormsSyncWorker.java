@@ -1,40 +1,58 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.SyncResult;
-import android.database.Cursor;
-import android.net.Uri;
+import android.os.RemoteException;
 
 import com.android.volley.toolbox.RequestFuture;
 
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonForm;
 import org.projectbuendia.models.Form;
+import org.projectbuendia.client.net.ConditionalResponse;
 import org.projectbuendia.client.net.OpenMrsServer;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.Forms;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.BuendiaSyncEngine;
 import org.projectbuendia.client.ui.OdkActivityLauncher;
 import org.projectbuendia.client.utils.Logger;
-import org.projectbuendia.client.utils.Utils;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * Handles syncing forms. All forms are always fetched, which is okay because there are only a few
- * forms; usually less than 10.
+ * forms; usually less than 10.  The validator from each response is kept as the bookmark for the
+ * forms table, so that when nothing has changed the server can reply "not modified" and this
+ * phase only caches any xforms whose cache files are missing.
  */
 public class FormsSyncWorker implements SyncWorker {
     private static final Logger LOG = Logger.create();
     private static boolean isDisabled = false;
     private static final Object lock = new Object();
+    private RequestFuture<ConditionalResponse<List<JsonForm>>> prefetched = null;
+
+    @Override public void prefetch(
+        ContentResolver resolver, ContentProviderClient client) throws RemoteException {
+        synchronized (lock) {
+            if (!isDisabled) prefetched = requestForms(client);
+        }
+    }
+
+    @Override public boolean isPrefetchDone() {
+        return prefetched == null || prefetched.isDone();
+    }
+
+    @Override public void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client) throws Throwable {
+        if (prefetched != null) prefetched.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
 
     @Override public boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
@@ -45,11 +63,32 @@ public class FormsSyncWorker implements SyncWorker {
                 return true;
             }
 
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-            ops.addAll(getFormUpdateOps(result));
-            client.applyBatch(ops);
-            LOG.i("Finished updating forms (" + ops.size() + " db ops)");
-            if (ops.size() > 0) resolver.notifyChange(Contracts.Forms.URI, null, false);
+            RequestFuture<ConditionalResponse<List<JsonForm>>> future =
+                prefetched != null ? prefetched : requestForms(client);
+            prefetched = null;
+            ConditionalResponse<List<JsonForm>> response =
+                future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (response.isNotModified()) {
+                LOG.i("Forms have not changed since the last sync");
+                // The xforms are normally cached when the list changes, but the
+                // forms table may have come from a snapshot, or the cache files
+                // may have been cleared since, so check that they're all there.
+                if (!OdkActivityLauncher.areAllXformsCached()) {
+                    LOG.i("Some forms are not cached; caching them now");
+                    OdkActivityLauncher.fetchAndCacheAllXforms();
+                }
+                return true;
+            }
+            BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+            try (TableWriter writer = provider.openTableWriter(
+                Forms.URI, Table.FORMS, Forms.UUID)) {
+                writeForms(writer, response.value);
+                writer.markSuccessful();
+                LOG.i("Finished updating forms (%d deletes, %d inserts)",
+                    writer.getNumDeletes(), writer.getNumInserts());
+                result.stats.numInserts += writer.getNumInserts();
+            }
+            BuendiaSyncEngine.setBookmark(client, Table.FORMS, response.validator);
 
             // TODO(ping): Make this next step synchronous; it should run on the
             // sync thread like everything else so it doesn't overlap with other
@@ -67,37 +106,27 @@ public class FormsSyncWorker implements SyncWorker {
         }
     }
 
-    private static List<ContentProviderOperation> getFormUpdateOps(SyncResult syncResult)
-            throws ExecutionException, InterruptedException, TimeoutException {
+    /** Requests the forms, unless they haven't changed since the stored validator. */
+    private static RequestFuture<ConditionalResponse<List<JsonForm>>> requestForms(
+        ContentProviderClient client) throws RemoteException {
         LOG.i("Listing all forms on server");
-        RequestFuture<List<JsonForm>> future = RequestFuture.newFuture();
-        App.getServer().listForms(future, future);
+        RequestFuture<ConditionalResponse<List<JsonForm>>> future = RequestFuture.newFuture();
+        App.getServer().listForms(
+            BuendiaSyncEngine.getBookmark(client, Table.FORMS), REQUEST_TAG, future, future);
+        return future;
+    }
+
+    /** Replaces all the local forms with the given forms from the server. */
+    private static void writeForms(TableWriter writer, List<JsonForm> forms) {
         Map<String, ContentValues> cvs = new HashMap<>();
-        for (JsonForm form : future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        for (JsonForm form : forms) {
             cvs.put(form.id, Form.fromJson(form).toContentValues());
         }
-
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        final ContentResolver resolver = App.getResolver();
-        Cursor c = resolver.query(Contracts.Forms.URI, new String[] {Contracts.Forms.UUID},
-                null, null, null);
-        LOG.i("Examining forms: " + c.getCount() + " local, " + cvs.size() + " from server");
-        try {
-            while (c.moveToNext()) {
-                String uuid = Utils.getString(c, Contracts.Forms.UUID);
-                Uri uri = Contracts.Forms.URI.buildUpon().appendPath(uuid).build();
-                LOG.i("  - will delete form " + uuid);
-                ops.add(ContentProviderOperation.newDelete(uri).build());
-            }
-        } finally {
-            c.close();
-        }
-
-        for (ContentValues values : cvs.values()) {  // server has a new record
-            LOG.i("  - will insert form " + values.getAsString(Contracts.Forms.UUID));
-            ops.add(ContentProviderOperation.newInsert(Contracts.Forms.URI).withValues(values).build());
-            syncResult.stats.numInserts++;
+        LOG.i("Replacing local forms with %d forms from server", cvs.size());
+        writer.deleteAll();
+        for (ContentValues values : cvs.values()) {
+            LOG.i("  - will insert form " + values.getAsString(Forms.UUID));
+            writer.upsert(values);
         }
-        return ops;
     }
 }
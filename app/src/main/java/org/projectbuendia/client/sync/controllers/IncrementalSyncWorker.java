@@ -14,33 +14,46 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.TimeoutError;
 import com.android.volley.toolbox.RequestFuture;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 
 import org.projectbuendia.client.App;
+import org.projectbuendia.client.AppSettings;
+import org.projectbuendia.client.json.CompactObsCodec;
 import org.projectbuendia.client.json.IncrementalSyncResponse;
 import org.projectbuendia.client.json.Serializers;
 import org.projectbuendia.client.net.Common;
-import org.projectbuendia.client.net.GsonRequest;
+import org.projectbuendia.client.net.IncrementalSyncRequest;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
 import org.projectbuendia.client.net.OpenMrsServer;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.TableWriter;
 import org.projectbuendia.client.sync.BuendiaSyncEngine;
+import org.projectbuendia.client.sync.SyncTelemetry;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
 
@@ -49,12 +62,47 @@ import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
  * <p>
  * To implement an incremental sync phase, create a subclass, supply the appropriate arguments to
  * {@link IncrementalSyncWorker}'s constructor from the subclasses' public, no-arg
- * constructor, and then implement the {@link #getUpdateOps(Object[], SyncResult)} method.
+ * constructor, and then implement {@link #openTableWriter(BuendiaProvider)} and
+ * {@link #writeItem(TableWriter, Object)}.
  * <p>
  * Note: you may also wish to undertake an action at the start and end of the sync phase - hooks are
- * provided for this. See {@link #beforeSyncStarted(ContentResolver, SyncResult,
- * ContentProviderClient)} and {@link #afterSyncFinished(ContentResolver, SyncResult,
- * ContentProviderClient)}.
+ * provided for this. See {@link #initialize(ContentResolver, SyncResult, ContentProviderClient)}
+ * and {@link #finalize(ContentResolver, SyncResult, ContentProviderClient)}; subclasses that
+ * override {@code initialize} must call the superclass implementation.
+ * <p>
+ * Pages are pipelined: as soon as a page arrives, the request for the following page (whose
+ * "since" parameter is the arriving page's bookmark) is sent, so that the download of page N+1
+ * overlaps the database writes for page N.  At most {@link AppSettings#getSyncPagesInFlight()}
+ * pages are requested ahead of the page being applied.  Each page's bookmark is still saved
+ * only after that page has been applied, so a prefetched page that doesn't follow on from the
+ * stored bookmark (e.g. after a rollback) is discarded and re-requested.
+ * <p>
+ * Each page is streamed into the database: items are deserialized from the response body one
+ * at a time and written straight to the table with compiled statements, so the page is never
+ * materialized as a String, an array of objects, or a list of ContentProviderOperations.
+ * Each page is written in its own transaction and sends one change notification.  The raw
+ * body of each page is still buffered by Volley, and its reference is dropped as soon as the
+ * page has been written, so at most 1 + {@link AppSettings#getSyncPagesInFlight()} bodies, each
+ * kept near {@link PageSizer#MAX_PAGE_BYTES} by the page sizer, are held at once.
+ * <p>
+ * Each request carries a "limit" hint for the number of items in the page, which a
+ * {@link PageSizer} adapts to the latency and payload size of the pages received so far;
+ * the chosen size is saved per resource type in the app settings when the sync of that
+ * resource ends, whether it finishes or fails.
+ * <p>
+ * A subclass that can store items from a compact binary encoding (see {@link CompactObsCodec})
+ * implements {@link CompactRecordWriter}, and so offers the encoding in the Accept header;
+ * pages that the server sends in that encoding are passed to its writeCompactRecord()
+ * instead of being parsed as JSON, and pages sent as JSON are handled as usual.  Other
+ * workers don't offer the encoding, and a compact page sent to them fails to parse.
+ * <p>
+ * Each page is awaited in {@link #awaitResponse}, before the engine starts the transaction
+ * for the step that applies it, so that the database isn't held during the download.
+ * <p>
+ * {@link #fetchPatient} fetches just one patient's items that are newer than the stored
+ * bookmark, so that an open chart can be brought up to date without waiting for a sync of
+ * every patient; it doesn't touch the bookmark, which still marks how far the sync of all
+ * patients has got.
  */
 public abstract class IncrementalSyncWorker<T> implements SyncWorker {
 
@@ -63,6 +111,23 @@ public abstract class IncrementalSyncWorker<T> implements SyncWorker {
     private final String resourceType;
     private final Contracts.Table dbTable;
     private final Class<T> clazz;
+    private final Gson gson;
+    private final @Nullable CompactRecordWriter compactWriter =
+        this instanceof CompactRecordWriter ? (CompactRecordWriter) this : null;
+
+    // Pages requested ahead of the current page, oldest first; all access is guarded by pipeline.
+    private final Deque<PageRequest> pipeline = new ArrayDeque<>();
+    private PageRequest currentPage = null;
+    private PageRequest receivedPage = null;  // awaited by awaitResponse() for the next sync()
+    private int pagesInFlight = 0;
+    private PageSizer pageSizer = null;
+
+    // Measurements of the last page, for reportStepMetrics(); null if not measured.
+    private Long lastNetworkMillis = null;
+    private Long lastParseMillis = null;
+    private Long lastApplyMillis = null;
+    private Long lastBytes = null;
+    private long writeNanos = 0;  // time spent in writeItem() during the current page
 
     /**
      * Instantiate a new IncrementalSyncWorker. This is designed to be called from a no-arg
@@ -77,6 +142,41 @@ public abstract class IncrementalSyncWorker<T> implements SyncWorker {
         this.resourceType = resourceType;
         this.dbTable = dbTable;
         this.clazz = clazz;
+        GsonBuilder builder = new GsonBuilder();
+        Serializers.registerTo(builder);
+        this.gson = builder.create();
+    }
+
+    @Override public void initialize(
+        ContentResolver resolver, SyncResult result, ContentProviderClient client) {
+        // Anything left over from a cancelled or failed sync is stale.
+        discardPipeline();
+        receivedPage = null;
+        pagesInFlight = App.getSettings().getSyncPagesInFlight();
+        if (pageSizer == null) {
+            pageSizer = new PageSizer(App.getSettings().getSyncPageSize(resourceType));
+        }
+    }
+
+    @Override public void prefetch(ContentResolver resolver, ContentProviderClient client)
+        throws RemoteException {
+        String bookmark = BuendiaSyncEngine.getBookmark(client, dbTable);
+        synchronized (pipeline) {
+            if (pipeline.isEmpty()) pipeline.add(new PageRequest(bookmark));
+        }
+    }
+
+    @Override public boolean isPrefetchDone() {
+        synchronized (pipeline) {
+            PageRequest next = pipeline.peek();
+            return next == null || next.future.isDone();
+        }
+    }
+
+    @Override public void awaitResponse(ContentResolver resolver, ContentProviderClient client)
+        throws Throwable {
+        lastNetworkMillis = lastParseMillis = lastApplyMillis = lastBytes = null;
+        receivedPage = receivePage(BuendiaSyncEngine.getBookmark(client, dbTable));
     }
 
     @Override public final boolean sync(ContentResolver contentResolver, SyncResult syncResult,
@@ -85,12 +185,57 @@ public abstract class IncrementalSyncWorker<T> implements SyncWorker {
         String bookmark = BuendiaSyncEngine.getBookmark(providerClient, dbTable);
         LOG.d("%s: Using bookmark %s", dbTable, Utils.repr(bookmark));
 
-        RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
-        createRequest(bookmark, future, future);
-        IncrementalSyncResponse<T> response = future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        ArrayList<ContentProviderOperation> ops = getUpdateOps(response.results, syncResult);
-        providerClient.applyBatch(ops);
-        LOG.i("%s: Applied %d db ops", dbTable, ops.size());
+        PageRequest page = receivedPage;
+        receivedPage = null;
+        if (page == null || !Utils.eq(page.since, bookmark)) {
+            lastNetworkMillis = lastParseMillis = lastApplyMillis = lastBytes = null;
+            page = receivePage(bookmark);
+        }
+        IncrementalSyncResponse<T> response = page.future.get();  // already arrived
+        try {
+            lastBytes = (long) response.body.length;
+            BuendiaProvider provider = (BuendiaProvider) providerClient.getLocalContentProvider();
+            long startNanos = System.nanoTime();
+            long parseNanos;
+            writeNanos = 0;
+            try (TableWriter writer = openTableWriter(provider)) {
+                // Items are parsed and written alternately, so the time spent in
+                // writeItem() is what separates parsing time from database time.
+                int count = response.compact
+                    ? response.readCompactRecords(record -> {
+                        checkInterrupted();
+                        long itemNanos = System.nanoTime();
+                        compactWriter.writeCompactRecord(writer, record);
+                        writeNanos += System.nanoTime() - itemNanos;
+                    })
+                    : response.readResults(gson, clazz, item -> {
+                        checkInterrupted();
+                        long itemNanos = System.nanoTime();
+                        writeItem(writer, item);
+                        writeNanos += System.nanoTime() - itemNanos;
+                    });
+                parseNanos = System.nanoTime() - startNanos - writeNanos;
+                writer.markSuccessful();  // otherwise no part of the page is kept
+                LOG.i("%s: Wrote %d inserts, %d deletes from %d bytes", dbTable,
+                    writer.getNumInserts(), writer.getNumDeletes(), response.body.length);
+                syncResult.stats.numInserts += writer.getNumInserts();
+                syncResult.stats.numDeletes += writer.getNumDeletes();
+                pageSizer.onSuccess(page.limit, count, response.body.length, page.latencyMillis);
+            }
+            response.body = null;  // only the bookmark and "more" flag are needed from here on
+            afterPageWritten(provider);
+            // Database time includes the commit when the writer is closed.
+            lastParseMillis = parseNanos / 1000000;
+            lastApplyMillis = (System.nanoTime() - startNanos - parseNanos) / 1000000;
+        } catch (Throwable t) {
+            discardPipeline();
+            // The sync stops here, so this is the last chance to remember the size.
+            App.getSettings().setSyncPageSize(resourceType, pageSizer.getSize());
+            throw t;
+        }
+        if (!response.more) {
+            App.getSettings().setSyncPageSize(resourceType, pageSizer.getSize());
+        }
         bookmark = response.bookmark;
 
         LOG.d("%s: Saving bookmark %s", dbTable, Utils.repr(bookmark));
@@ -98,56 +243,241 @@ public abstract class IncrementalSyncWorker<T> implements SyncWorker {
         return !response.more;
     }
 
-    // Mandatory callback
+    /**
+     * Waits for the page that follows the given bookmark to arrive, and then lets
+     * the pipeline request the page after it.  If the page fails or times out, the
+     * pipeline is discarded and the page size is saved, as the sync stops there.
+     */
+    private PageRequest receivePage(@Nullable String bookmark) throws Throwable {
+        PageRequest page = null;
+        try {
+            page = takePage(bookmark);
+            page.future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            synchronized (pipeline) {
+                fillPipeline();  // a slot just opened up, so the next page can be requested
+                lastNetworkMillis = page.latencyMillis;
+            }
+            return page;
+        } catch (Throwable t) {
+            discardPipeline();
+            if (page != null && isTimeout(t)) {
+                pageSizer.onTimeout(page.limit);
+                LOG.w("%s: Page of %d timed out; reducing page size to %d",
+                    dbTable, page.limit, pageSizer.getSize());
+            }
+            App.getSettings().setSyncPageSize(resourceType, pageSizer.getSize());
+            throw t;
+        }
+    }
+
+    @Override public void reportStepMetrics(SyncTelemetry.Step step) {
+        step.networkMillis = lastNetworkMillis;
+        step.parseMillis = lastParseMillis;
+        step.applyMillis = lastApplyMillis;
+        step.bytes = lastBytes;
+    }
+
+    /**
+     * Fetches the items for the given patient that are newer than the stored bookmark,
+     * without writing anything, and returns an update that stores them.  All of the
+     * patient's pages are downloaded first, so that the update can then be stored in
+     * one short transaction that doesn't hold the database while waiting for the
+     * network.  The bookmark is left as it is; items that a later sync of all patients
+     * receives again are simply upserted again.  {@link #finalize} is not called;
+     * the update calls {@link #finalizePatient} instead.
+     */
+    public PatientUpdate fetchPatient(ContentProviderClient providerClient, String patientUuid)
+        throws Throwable {
+        String since = BuendiaSyncEngine.getBookmark(providerClient, dbTable);
+        int limit = pageSizer != null ? pageSizer.getSize() : PageSizer.DEFAULT_SIZE;
+        List<IncrementalSyncResponse<T>> responses = new ArrayList<>();
+        boolean more = true;
+        while (more) {
+            RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
+            future.setRequest(createRequest(since, patientUuid, limit, future, future));
+            IncrementalSyncResponse<T> response =
+                future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            responses.add(response);
+            since = response.bookmark;
+            more = response.more;
+        }
+        return (resolver, syncResult, client) -> {
+            BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+            for (IncrementalSyncResponse<T> response : responses) {
+                try (TableWriter writer = openTableWriter(provider)) {
+                    if (response.compact) {
+                        response.readCompactRecords(record -> {
+                            checkInterrupted();
+                            compactWriter.writeCompactRecord(writer, record);
+                        });
+                    } else {
+                        response.readResults(gson, clazz, item -> {
+                            checkInterrupted();
+                            writeItem(writer, item);
+                        });
+                    }
+                    writer.markSuccessful();
+                    LOG.i("%s: Wrote %d inserts, %d deletes for patient %s", dbTable,
+                        writer.getNumInserts(), writer.getNumDeletes(), patientUuid);
+                    syncResult.stats.numInserts += writer.getNumInserts();
+                    syncResult.stats.numDeletes += writer.getNumDeletes();
+                }
+            }
+            finalizePatient(resolver, client, patientUuid);
+        };
+    }
+
+    /** The items fetched for one patient by {@link #fetchPatient}, ready to be stored. */
+    public interface PatientUpdate {
+        /** Stores the items; the caller should do this within a transaction. */
+        void store(ContentResolver resolver, SyncResult syncResult,
+            ContentProviderClient client) throws Throwable;
+    }
 
-    /** Produces a list of the operations needed to bring the local database in sync with the server. */
-    protected abstract ArrayList<ContentProviderOperation> getUpdateOps(T[] list, SyncResult result);
+    /**
+     * Called after each page of a sync of all patients has been written, in the
+     * same step as the page and its bookmark.  In resumable mode the step commits
+     * on its own and the next sync resumes after it, so work that the page's
+     * items need must be done here rather than in {@link #finalize}.
+     */
+    protected void afterPageWritten(BuendiaProvider provider) { }
 
+    /** Called by a {@link PatientUpdate} after it has stored all of a patient's new items. */
+    protected void finalizePatient(ContentResolver resolver,
+        ContentProviderClient client, String patientUuid) throws RemoteException { }
 
-    private void createRequest(@Nullable String bookmark,
+    /**
+     * Returns the request for the page that follows the given bookmark, reusing the oldest
+     * prefetched page if it was requested with the same bookmark.
+     */
+    private PageRequest takePage(@Nullable String bookmark) {
+        synchronized (pipeline) {
+            PageRequest page = pipeline.poll();
+            if (page != null && !Utils.eq(page.since, bookmark)) {
+                LOG.w("%s: Prefetched page since %s doesn't follow bookmark %s; discarding",
+                    dbTable, Utils.repr(page.since), Utils.repr(bookmark));
+                page.future.cancel(true);
+                discardPipeline();
+                page = null;
+            }
+            currentPage = page != null ? page : new PageRequest(bookmark);
+            return currentPage;
+        }
+    }
+
+    /**
+     * Requests the page after the newest page that has arrived, if there is room in the
+     * pipeline.  Each page's request depends on the previous page's bookmark, so pages can
+     * only be requested one after another as responses arrive.  Caller must hold the lock.
+     */
+    private void fillPipeline() {
+        PageRequest last = pipeline.isEmpty() ? currentPage : pipeline.peekLast();
+        if (last == null || last.response == null || !last.response.more
+            || last.successorRequested || pipeline.size() >= pagesInFlight) return;
+        last.successorRequested = true;
+        LOG.d("%s: Prefetching page since %s", dbTable, Utils.repr(last.response.bookmark));
+        pipeline.add(new PageRequest(last.response.bookmark));
+    }
+
+    /** Stops parsing a page as soon as the sync is cancelled; the writer then rolls back. */
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Sync cancelled while applying a page");
+        }
+    }
+
+    private static boolean isTimeout(Throwable t) {
+        return t instanceof TimeoutException
+            || (t instanceof ExecutionException && t.getCause() instanceof TimeoutError);
+    }
+
+    /** Cancels all outstanding page requests. */
+    private void discardPipeline() {
+        synchronized (pipeline) {
+            for (PageRequest page : pipeline) {
+                page.future.cancel(true);
+            }
+            pipeline.clear();
+            currentPage = null;
+        }
+    }
+
+    // Mandatory callbacks
+
+    /** Opens the writer that {@link #writeItem} will use to store items in the database. */
+    protected abstract TableWriter openTableWriter(BuendiaProvider provider);
+
+    /** Stores or deletes one item received from the server, as appropriate. */
+    protected abstract void writeItem(TableWriter writer, T item);
+
+    /** Implemented by a worker that can store items sent in a compact binary encoding. */
+    protected interface CompactRecordWriter {
+        /** Returns the media type of the compact encoding, to offer to the server. */
+        String getCompactMediaType();
+
+        /** Stores or deletes one record received in the compact encoding, as appropriate. */
+        void writeCompactRecord(TableWriter writer, CompactObsCodec.Record record);
+    }
+
+    /**
+     * A request for one page of results, which is sent as soon as this object is created,
+     * asking for as many items as the page sizer currently recommends.
+     */
+    private class PageRequest {
+        final String since;
+        final int limit = pageSizer.getSize();
+        final long sentMillis = System.currentTimeMillis();
+        final RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
+        IncrementalSyncResponse<T> response = null;  // set on arrival, guarded by pipeline
+        long latencyMillis = 0;  // set on arrival, guarded by pipeline
+        boolean successorRequested = false;  // guarded by pipeline
+
+        PageRequest(@Nullable String since) {
+            this.since = since;
+            future.setRequest(createRequest(since, null, limit, arrived -> {
+                synchronized (pipeline) {
+                    response = arrived;
+                    latencyMillis = System.currentTimeMillis() - sentMillis;
+                    fillPipeline();
+                }
+                future.onResponse(arrived);
+            }, future));
+        }
+    }
+
+    private Request<?> createRequest(@Nullable String bookmark, @Nullable String patientUuid, int limit,
         Response.Listener<IncrementalSyncResponse<T>> successListener,
         final Response.ErrorListener errorListener) {
         if (bookmark == null) {
             bookmark = "0000-00-00T00:00:00.000Z";
         }
+        String query = "since=" + bookmark + "&limit=" + limit;
+        if (patientUuid != null) {
+            query += "&patient=" + Utils.urlEncode(patientUuid);
+        }
         OpenMrsConnectionDetails connectionDetails = App.getConnectionDetails();
         Uri uri = Uri.parse(connectionDetails.getBuendiaApiUrl())
             .buildUpon()
             .appendPath(resourceType)
-            .encodedQuery("since=" + bookmark)
+            .encodedQuery(query)
             .build();
-        GsonRequest<IncrementalSyncResponse<T>> request = new GsonRequest<>(
+        Map<String, String> headers = connectionDetails.addAuthHeader(new HashMap<>());
+        if (compactWriter != null) {
+            // Servers that don't know the compact encoding ignore it and send JSON.
+            headers.put("Accept", compactWriter.getCompactMediaType() + ", application/json;q=0.5");
+        }
+        IncrementalSyncRequest<T> request = new IncrementalSyncRequest<>(
             uri.toString(),
-            new IncrementalSyncResponseType(clazz),
-            connectionDetails.addAuthHeader(new HashMap<>()),
+            headers,
+            compactWriter != null,
             successListener,
             wrapErrorListener(errorListener));
-        Serializers.registerTo(request.getGson());
-        request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
+        request.setTag(REQUEST_TAG);
+        // A patient's items are few, and someone is waiting to see them, so don't retry.
+        request.setRetryPolicy(patientUuid != null
+            ? new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_SHORT, 0, 1f)
+            : new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
         connectionDetails.getVolley().addToRequestQueue(request);
-    }
-
-    private static class IncrementalSyncResponseType implements ParameterizedType {
-
-        private final Type[] typeArgs;
-
-        public IncrementalSyncResponseType(Type innerType) {
-            typeArgs = new Type[] { innerType };
-        }
-
-        @Override
-        public Type[] getActualTypeArguments() {
-            return typeArgs;
-        }
-
-        @Override
-        public Type getOwnerType() {
-            return null;
-        }
-
-        @Override
-        public Type getRawType() {
-            return IncrementalSyncResponse.class;
-        }
+        return request;
     }
 }
@@ -1,55 +1,97 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import com.android.volley.toolbox.RequestFuture;
 
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonLocation;
+import org.projectbuendia.client.net.ConditionalResponse;
 import org.projectbuendia.client.net.OpenMrsServer;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts.Locations;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.BuendiaSyncEngine;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import static org.projectbuendia.client.utils.Utils.eq;
 
 /**
  * Handles syncing locations. All locations are always fetched, which is ok because the full set of
- * locations is fairly smaller.
+ * locations is fairly smaller.  The validator from each response is kept as the bookmark for the
+ * locations table and sent with the next request, so that if nothing has changed the server can
+ * reply "not modified" and this phase does nothing.
  */
 public class LocationsSyncWorker implements SyncWorker {
     private static final Logger LOG = Logger.create();
+    private RequestFuture<ConditionalResponse<List<JsonLocation>>> prefetched = null;
+
+    @Override public void prefetch(
+        ContentResolver resolver, ContentProviderClient client) throws RemoteException {
+        prefetched = requestLocations(client);
+    }
+
+    @Override public boolean isPrefetchDone() {
+        return prefetched == null || prefetched.isDone();
+    }
+
+    @Override public void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client) throws Throwable {
+        if (prefetched != null) prefetched.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
 
     @Override public boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable {
-        ArrayList<ContentProviderOperation> ops = getLocationUpdateOps(result);
-        client.applyBatch(ops);
-        if (ops.size() > 0) {
-            resolver.notifyChange(Locations.URI, null, false);
+        RequestFuture<ConditionalResponse<List<JsonLocation>>> future =
+            prefetched != null ? prefetched : requestLocations(client);
+        prefetched = null;
+        ConditionalResponse<List<JsonLocation>> response =
+            future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        LOG.d("After network call");
+        if (response.isNotModified()) {
+            LOG.i("Locations have not changed since the last sync");
+            return true;
+        }
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        try (TableWriter writer = provider.openTableWriter(
+            Locations.URI, Table.LOCATIONS, Locations.UUID)) {
+            writeLocationUpdates(writer, response.value, result);
+            writer.markSuccessful();
         }
+        BuendiaSyncEngine.setBookmark(client, Table.LOCATIONS, response.validator);
         return true;
     }
 
+    /** Requests the locations, unless they haven't changed since the stored validator. */
+    private static RequestFuture<ConditionalResponse<List<JsonLocation>>> requestLocations(
+        ContentProviderClient client) throws RemoteException {
+        LOG.d("Before network call");
+        RequestFuture<ConditionalResponse<List<JsonLocation>>> future = RequestFuture.newFuture();
+        App.getServer().listLocations(
+            BuendiaSyncEngine.getBookmark(client, Table.LOCATIONS), REQUEST_TAG, future, future);
+        return future;
+    }
+
     /**
-     * Requests locations from the server and transforms the response into an {@link ArrayList} of
-     * {@link ContentProviderOperation}s for updating the database.
+     * Writes the inserts, updates, and deletes needed to bring the local database
+     * in sync with the given locations from the server.
      */
-    private static ArrayList<ContentProviderOperation> getLocationUpdateOps(SyncResult syncResult)
-            throws ExecutionException, InterruptedException, TimeoutException {
+    private static void writeLocationUpdates(
+        TableWriter writer, List<JsonLocation> locations, SyncResult syncResult) {
         final ContentResolver contentResolver = App.getResolver();
 
         final String[] projection = new String[] {
@@ -58,14 +100,6 @@ public class LocationsSyncWorker implements SyncWorker {
             Locations.PARENT_UUID
         };
 
-        LOG.d("Before network call");
-        RequestFuture<List<JsonLocation>> future = RequestFuture.newFuture();
-        App.getServer().listLocations(future, future);
-
-        List<JsonLocation> locations = future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        LOG.d("After network call");
-        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
-
         Map<String, JsonLocation> locationsByUuid = new HashMap<>();
         for (JsonLocation location : locations) {
             locationsByUuid.put(location.uuid, location);
@@ -89,12 +123,7 @@ public class LocationsSyncWorker implements SyncWorker {
                 // Update locations from the server that also exist locally.
                 if (!eq(location.name, name) || !eq(location.parent_uuid, parentUuid)) {
                     LOG.i("  - will update location " + uuid);
-                    Uri existingUri = uri.buildUpon().appendPath(String.valueOf(uuid)).build();
-                    batch.add(ContentProviderOperation.newUpdate(existingUri)
-                        .withValue(Locations.UUID, uuid)
-                        .withValue(Locations.NAME, location.name)
-                        .withValue(Locations.PARENT_UUID, location.parent_uuid)
-                        .build());
+                    writer.upsert(toContentValues(location));
                     syncResult.stats.numUpdates++;
                 }
                 locationsByUuid.remove(uuid);  // remove to prevent insertion later
@@ -102,8 +131,7 @@ public class LocationsSyncWorker implements SyncWorker {
             } else {
                 // Delete locations that exist locally but not on the server.
                 LOG.i("  - will delete location " + uuid);
-                Uri deleteUri = uri.buildUpon().appendPath(uuid).build();
-                batch.add(ContentProviderOperation.newDelete(deleteUri).build());
+                writer.delete(uuid);
                 syncResult.stats.numDeletes++;
             }
         }
@@ -112,14 +140,16 @@ public class LocationsSyncWorker implements SyncWorker {
         // Insert all the locations we received that don't exist locally.
         for (JsonLocation location : locationsByUuid.values()) {
             LOG.i("  - will insert location " + location.uuid);
-            batch.add(ContentProviderOperation.newInsert(Locations.URI)
-                .withValue(Locations.UUID, location.uuid)
-                .withValue(Locations.NAME, location.name)
-                .withValue(Locations.PARENT_UUID, location.parent_uuid)
-                .build());
+            writer.upsert(toContentValues(location));
             syncResult.stats.numInserts++;
         }
+    }
 
-        return batch;
+    private static ContentValues toContentValues(JsonLocation location) {
+        ContentValues values = new ContentValues();
+        values.put(Locations.UUID, location.uuid);
+        values.put(Locations.NAME, location.name);
+        values.put(Locations.PARENT_UUID, location.parent_uuid);
+        return values;
     }
 }
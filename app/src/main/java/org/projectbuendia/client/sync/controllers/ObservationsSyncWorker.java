@@ -14,64 +14,90 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.SyncResult;
-import android.net.Uri;
 import android.os.RemoteException;
 
-import org.projectbuendia.client.App;
+import org.projectbuendia.client.json.CompactObsCodec;
+import org.projectbuendia.client.json.Datatype;
 import org.projectbuendia.client.json.JsonObservation;
+import org.projectbuendia.models.Obs;
 import org.projectbuendia.models.tasks.DenormalizeObsTask;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts.Observations;
-import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Handles syncing observations. Uses an incremental sync mechanism - see
- * {@link IncrementalSyncWorker} for details.
+ * {@link IncrementalSyncWorker} for details.  The server may send observations
+ * in the compact encoding of {@link CompactObsCodec}, whose records are written
+ * to the table without going through JsonObservation.
  */
-public class ObservationsSyncWorker extends IncrementalSyncWorker<JsonObservation> {
-    private static final Logger LOG = Logger.create();
+public class ObservationsSyncWorker extends IncrementalSyncWorker<JsonObservation>
+    implements IncrementalSyncWorker.CompactRecordWriter {
     private Set<String> patientUuidsToUpdate = new HashSet<>();
+    private final ContentValues compactValues = new ContentValues();  // reused for each record
 
     public ObservationsSyncWorker() {
-        super("observations", Contracts.Table.OBSERVATIONS, JsonObservation.class);
+        super("observations", Table.OBSERVATIONS, JsonObservation.class);
     }
 
     @Override public void initialize(
         ContentResolver resolver, SyncResult result, ContentProviderClient client) {
+        super.initialize(resolver, result, client);
         patientUuidsToUpdate.clear();
     }
 
-    @Override
-    protected ArrayList<ContentProviderOperation> getUpdateOps(
-            JsonObservation[] observations, SyncResult syncResult) {
-        int numInserts = 0;
-        int numDeletes = 0;
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        for (JsonObservation observation : observations) {
-            if (observation.voided) {
-                Uri uri = Observations.URI.buildUpon().appendPath(observation.uuid).build();
-                ops.add(ContentProviderOperation.newDelete(uri).build());
-                numDeletes++;
-            } else {
-                ops.add(ContentProviderOperation.newInsert(Observations.URI)
-                        .withValues(observation.toContentValues()).build());
-                numInserts++;
-            }
-            if (DenormalizeObsTask.needsDenormalization(observation.concept_uuid)) {
-                patientUuidsToUpdate.add(observation.patient_uuid);
-            }
+    @Override protected TableWriter openTableWriter(BuendiaProvider provider) {
+        return provider.openTableWriter(Observations.URI, Table.OBSERVATIONS, Observations.UUID);
+    }
+
+    @Override protected void writeItem(TableWriter writer, JsonObservation observation) {
+        if (observation.voided) {
+            writer.delete(observation.uuid);
+        } else {
+            writer.upsert(observation.toContentValues());
+        }
+        if (DenormalizeObsTask.needsDenormalization(observation.concept_uuid)) {
+            patientUuidsToUpdate.add(observation.patient_uuid);
+        }
+    }
+
+    @Override public String getCompactMediaType() {
+        return CompactObsCodec.MEDIA_TYPE;
+    }
+
+    @Override public void writeCompactRecord(TableWriter writer, CompactObsCodec.Record record) {
+        if (record.voided) {
+            writer.delete(record.uuid);
+        } else {
+            ContentValues cvs = compactValues;
+            cvs.put(Observations.UUID, record.uuid);
+            cvs.put(Observations.ENCOUNTER_UUID, record.encounterUuid);
+            cvs.put(Observations.PATIENT_UUID, record.patientUuid);
+            cvs.put(Observations.PROVIDER_UUID, record.providerUuid);
+            cvs.put(Observations.CONCEPT_UUID, record.conceptUuid);
+            cvs.put(Observations.TYPE, (record.type != null ? record.type : Datatype.NONE).name());
+            cvs.put(Observations.MILLIS, record.millis);
+            cvs.put(Observations.ORDER_UUID, record.orderUuid);
+            cvs.put(Observations.VALUE, record.value);
+            Obs.putTypedValues(cvs, record.type, record.value);
+            writer.upsert(cvs);
         }
-        LOG.d("Observations: %d inserts, %d deletes", numInserts, numDeletes);
-        syncResult.stats.numInserts += numInserts;
-        syncResult.stats.numDeletes += numDeletes;
-        return ops;
+        if (DenormalizeObsTask.needsDenormalization(record.conceptUuid)) {
+            patientUuidsToUpdate.add(record.patientUuid);
+        }
+    }
+
+    @Override protected void afterPageWritten(BuendiaProvider provider) {
+        provider.denormalizePatients(patientUuidsToUpdate);
+        patientUuidsToUpdate.clear();
     }
 
     @Override public void finalize(
@@ -79,8 +105,16 @@ public class ObservationsSyncWorker extends IncrementalSyncWorker<JsonObservatio
     ) throws RemoteException {
         // Remove all temporary observations now we have the real ones
         client.delete(Observations.URI, Observations.UUID + " IS NULL", new String[0]);
-        for (String uuid : patientUuidsToUpdate) {
-            App.getModel().denormalizeObservations(App.getCrudEventBus(), uuid);
-        }
+    }
+
+    @Override protected void finalizePatient(
+        ContentResolver resolver, ContentProviderClient client, String patientUuid
+    ) throws RemoteException {
+        client.delete(Observations.URI,
+            Observations.UUID + " IS NULL AND " + Observations.PATIENT_UUID + " = ?",
+            new String[] {patientUuid});
+        BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+        provider.denormalizePatients(Collections.singleton(patientUuid));
+        patientUuidsToUpdate.clear();  // writeItem() only ever added this patient
     }
 }
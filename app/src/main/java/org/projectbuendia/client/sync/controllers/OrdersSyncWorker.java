@@ -1,65 +1,47 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.SyncResult;
-import android.net.Uri;
 
 import org.projectbuendia.client.json.JsonOrder;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts.Orders;
-import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
 import org.projectbuendia.client.utils.Utils;
 
-import java.util.ArrayList;
-
 /**
  * Handles syncing orders. Currently we always fetch all orders. This won't scale; incremental
  * fetch would help a lot.
  */
 public class OrdersSyncWorker extends IncrementalSyncWorker<JsonOrder> {
-    private static final Logger LOG = Logger.create();
-
     public OrdersSyncWorker() {
-        super("orders", Contracts.Table.ORDERS, JsonOrder.class);
+        super("orders", Table.ORDERS, JsonOrder.class);
     }
 
-    @Override
-    protected ArrayList<ContentProviderOperation> getUpdateOps(
-            JsonOrder[] orders, SyncResult syncResult) {
-        int numInserts = 0;
-        int numDeletes = 0;
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>(orders.length);
-        for (JsonOrder order : orders) {
-            if (order.voided) {
-                ops.add(deleteOrderWithUuid(order.uuid));
-                numDeletes++;
-            } else {
-                ops.add(insertOrReplaceOrder(order));
-                numInserts++;
-            }
-        }
-        LOG.d("Orders: %d inserts, %d deletes", numInserts, numDeletes);
-        syncResult.stats.numInserts += numInserts;
-        syncResult.stats.numDeletes += numDeletes;
-        return ops;
+    @Override protected TableWriter openTableWriter(BuendiaProvider provider) {
+        return provider.openTableWriter(Orders.URI, Table.ORDERS, Orders.UUID);
     }
 
-    private static ContentProviderOperation insertOrReplaceOrder(JsonOrder order) {
-        return ContentProviderOperation.newInsert(Orders.URI)
-                .withValue(Orders.UUID, order.uuid)
-                .withValue(Orders.PATIENT_UUID, order.patient_uuid)
-                .withValue(Orders.PROVIDER_UUID, order.provider_uuid)
-                .withValue(Orders.INSTRUCTIONS, order.instructions)
-                .withValue(Orders.START_MILLIS, Utils.toNullableMillis(order.start_time))
-                .withValue(Orders.STOP_MILLIS, Utils.toNullableMillis(order.stop_time))
-                .build();
+    @Override protected void writeItem(TableWriter writer, JsonOrder order) {
+        if (order.voided) {
+            writer.delete(order.uuid);
+        } else {
+            writer.upsert(toContentValues(order));
+        }
     }
 
-    private static ContentProviderOperation deleteOrderWithUuid(String uuid) {
-        Uri uri = Orders.URI.buildUpon().appendPath(uuid).build();
-        return ContentProviderOperation.newDelete(uri).build();
+    private static ContentValues toContentValues(JsonOrder order) {
+        ContentValues cv = new ContentValues();
+        cv.put(Orders.UUID, order.uuid);
+        cv.put(Orders.PATIENT_UUID, order.patient_uuid);
+        cv.put(Orders.PROVIDER_UUID, order.provider_uuid);
+        cv.put(Orders.INSTRUCTIONS, order.instructions);
+        cv.put(Orders.START_MILLIS, Utils.toNullableMillis(order.start_time));
+        cv.put(Orders.STOP_MILLIS, Utils.toNullableMillis(order.stop_time));
+        return cv;
     }
 
     @Override public void finalize(
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+/**
+ * Chooses how many items to ask for in each page of an incremental sync, from
+ * the measured latency and size of the pages received so far.  Full pages that
+ * arrive well within the target latency let the size grow (at most doubling per
+ * page); slow pages shrink it in proportion to how slow they were; and a
+ * timeout halves it.  The size is also capped so that a page's payload stays
+ * under a byte limit.
+ */
+class PageSizer {
+    static final int MIN_SIZE = 50;
+    static final int MAX_SIZE = 5000;
+    static final int DEFAULT_SIZE = 500;
+    static final long TARGET_LATENCY_MILLIS = 2000;
+    static final long MAX_PAGE_BYTES = 2 * 1024 * 1024;
+
+    private int size;
+
+    PageSizer(int initialSize) {
+        size = clamp(initialSize > 0 ? initialSize : DEFAULT_SIZE);
+    }
+
+    /** The number of items to request in the next page. */
+    synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Adjusts the size after a page of {@code count} items, requested with the
+     * given limit, arrived after {@code latencyMillis} with {@code bytes} bytes.
+     */
+    synchronized void onSuccess(int limit, int count, long bytes, long latencyMillis) {
+        double next = size;
+        if (latencyMillis > TARGET_LATENCY_MILLIS) {
+            next = limit * Math.max(0.5, (double) TARGET_LATENCY_MILLIS / latencyMillis);
+        } else if (count >= limit) {
+            // Only a full page says anything about how much more we could take;
+            // a short page's latency is mostly the round trip.
+            double headroom = (double) TARGET_LATENCY_MILLIS / Math.max(latencyMillis, 1);
+            next = Math.max(size, limit * Math.min(2, headroom));
+        }
+        if (count > 0 && bytes > 0) {
+            next = Math.min(next, MAX_PAGE_BYTES / ((double) bytes / count));
+        }
+        size = clamp((int) next);
+    }
+
+    /** Backs off after a request for a page of the given limit timed out. */
+    synchronized void onTimeout(int limit) {
+        size = clamp(Math.min(size, limit / 2));
+    }
+
+    private static int clamp(int size) {
+        return Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+}
@@ -14,18 +14,16 @@
 package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
-import android.net.Uri;
 
-import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonPatient;
 import org.projectbuendia.models.Patient;
-import org.projectbuendia.client.providers.Contracts;
-import org.projectbuendia.client.utils.Logger;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableWriter;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -34,56 +32,35 @@ import java.util.Set;
  * {@link IncrementalSyncWorker} for details.
  */
 public class PatientsSyncWorker extends IncrementalSyncWorker<JsonPatient> {
-    private static final Logger LOG = Logger.create();
     private Set<String> patientUuidsToUpdate = new HashSet<>();
 
     public PatientsSyncWorker() {
-        super("patients", Contracts.Table.PATIENTS, JsonPatient.class);
+        super("patients", Table.PATIENTS, JsonPatient.class);
     }
 
     @Override public void initialize(
         ContentResolver resolver, SyncResult result, ContentProviderClient client) {
+        super.initialize(resolver, result, client);
         patientUuidsToUpdate.clear();
     }
 
-    @Override protected ArrayList<ContentProviderOperation> getUpdateOps(
-        JsonPatient[] patients, SyncResult syncResult) {
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        int numInserts = 0;
-        int numDeletes = 0;
-        for (JsonPatient patient : patients) {
-            if (patient.voided) {
-                numDeletes++;
-                ops.add(makeDeleteOpForPatientUuid(patient.uuid));
-            } else {
-                numInserts++;
-                ops.add(makeInsertOpForPatient(patient));
-            }
-            patientUuidsToUpdate.add(patient.uuid);
-        }
-        LOG.d("Patients: %d inserts, %d deletes", numInserts, numDeletes);
-        syncResult.stats.numInserts += numInserts;
-        syncResult.stats.numDeletes += numDeletes;
-        return ops;
-    }
-
-    private static ContentProviderOperation makeInsertOpForPatient(JsonPatient patient) {
-        return ContentProviderOperation.newInsert(Contracts.Patients.URI)
-                .withValues(Patient.fromJson(patient).toContentValues()).build();
+    @Override protected TableWriter openTableWriter(BuendiaProvider provider) {
+        return provider.openTableWriter(Patients.URI, Table.PATIENTS, Patients.UUID);
     }
 
-    private static ContentProviderOperation makeDeleteOpForPatientUuid(String uuid) {
-        Uri uri = Contracts.Patients.URI.buildUpon().appendPath(uuid).build();
-        return ContentProviderOperation.newDelete(uri).build();
+    @Override protected void writeItem(TableWriter writer, JsonPatient patient) {
+        if (patient.voided) {
+            writer.delete(patient.uuid);
+        } else {
+            writer.upsert(Patient.fromJson(patient).toContentValues());
+        }
+        patientUuidsToUpdate.add(patient.uuid);
     }
 
-    @Override public void finalize(
-        ContentResolver resolver, SyncResult result, ContentProviderClient client) {
-        for (String uuid : patientUuidsToUpdate) {
-            App.getModel().denormalizeObservations(App.getCrudEventBus(), uuid);
-        }
-        if (result.stats.numInserts + result.stats.numDeletes > 0) {
-            resolver.notifyChange(Contracts.Patients.URI, null, false);
-        }
+    @Override protected void afterPageWritten(BuendiaProvider provider) {
+        // Replacing a patient's row clears its denormalized columns, so they
+        // are recomputed for every patient that was written.
+        provider.denormalizePatients(patientUuidsToUpdate);
+        patientUuidsToUpdate.clear();
     }
 }
@@ -4,27 +4,70 @@ import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.SyncResult;
 
+import org.projectbuendia.client.sync.SyncTelemetry;
+
 /**
  * A SyncWorker executes the work for a specific sync phase.  First, initialize()
- * is called; then sync() is called repeatedly until it returns true to indicate
- * completion; and finally finalize() is called.
+ * is called, followed by prefetch(); then sync() is called repeatedly until it
+ * returns true to indicate completion; and finally finalize() is called.  Other
+ * phases may run between prefetch() and the first call to sync().
  *
  * An exception thrown in any of the three methods aborts the entire sync,
- * skipping any remaining phases.
+ * skipping any remaining phases.  When a sync is cancelled, the thread running
+ * it is interrupted, so a worker waiting for the network gets an
+ * InterruptedException, which it should let propagate.
  */
 public interface SyncWorker {
     // TODO: Replace Throwable with something more specific.
 
+    /**
+     * The tag that workers must give to all their network requests, so that the
+     * engine can cancel them the moment a sync is cancelled.  It is an Object, not
+     * a string, so that nothing else can cancel these requests by accident.
+     */
+    Object REQUEST_TAG = new Object();
+
     /** Performs any initial tasks before sync() is called. */
     default void initialize(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable { }
 
+    /**
+     * Starts any network request needed by the first call to sync() without
+     * waiting for the response, so that it can proceed while other phases are
+     * running.  This may read from the database but must not write to it.
+     */
+    default void prefetch(
+        ContentResolver resolver, ContentProviderClient client
+    ) throws Throwable { }
+
+    /** Returns true if the first call to sync() would not need to wait for the network. */
+    default boolean isPrefetchDone() {
+        return true;
+    }
+
+    /**
+     * Waits for the response that the next call to sync() needs from the network.
+     * The engine calls this before it starts the transaction for each step, so
+     * that the database isn't held while the response is awaited; an exception
+     * thrown here fails the step just as one thrown by sync() would.
+     */
+    default void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client
+    ) throws Throwable { }
+
     /** Performs a transactional chunk of sync work, returning true if all done. */
     boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws Throwable;
 
+    /**
+     * Fills in whatever this worker measured about its last call to sync() beyond the
+     * wall time and row counts that the engine measures itself, such as network time
+     * and response size.  Called after every call to sync(), even one that failed.
+     */
+    default void reportStepMetrics(SyncTelemetry.Step step) { }
+
     /** Performs any final tasks after all calls to sync() are done. */
     default void finalize(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
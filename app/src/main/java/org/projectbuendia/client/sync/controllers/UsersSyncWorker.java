@@ -6,22 +6,68 @@ import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.os.RemoteException;
 
+import com.android.volley.toolbox.RequestFuture;
+
 import org.projectbuendia.client.App;
+import org.projectbuendia.client.json.JsonUser;
+import org.projectbuendia.client.net.ConditionalResponse;
+import org.projectbuendia.client.net.OpenMrsServer;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.BuendiaSyncEngine;
 import org.projectbuendia.client.user.UserManager;
+import org.projectbuendia.client.utils.Logger;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
  * Handles syncing users. This logic always fetches all users, which is okay because the set of
- * users is fairly small.
+ * users is fairly small.  The validator from each response is kept as the bookmark for the users
+ * table, so that when nothing has changed the server can reply "not modified" and this phase
+ * does nothing.
  */
 public class UsersSyncWorker implements SyncWorker {
+    private static final Logger LOG = Logger.create();
+    private RequestFuture<ConditionalResponse<List<JsonUser>>> prefetched = null;
+
+    @Override public void prefetch(
+        ContentResolver resolver, ContentProviderClient client) throws RemoteException {
+        prefetched = requestUsers(client);
+    }
+
+    @Override public boolean isPrefetchDone() {
+        return prefetched == null || prefetched.isDone();
+    }
+
+    @Override public void awaitResponse(
+        ContentResolver resolver, ContentProviderClient client) throws Throwable {
+        if (prefetched != null) prefetched.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
     @Override public boolean sync(
         ContentResolver resolver, SyncResult result, ContentProviderClient client
     ) throws InterruptedException, ExecutionException, TimeoutException,
         UserManager.UserSyncException, RemoteException, OperationApplicationException {
-        App.getUserManager().syncKnownUsersSynchronously();
+        RequestFuture<ConditionalResponse<List<JsonUser>>> future =
+            prefetched != null ? prefetched : requestUsers(client);
+        prefetched = null;
+        ConditionalResponse<List<JsonUser>> response =
+            future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (response.isNotModified()) {
+            LOG.i("Users have not changed since the last sync");
+            return true;
+        }
+        App.getUserManager().syncKnownUsersSynchronously(response.value);
+        BuendiaSyncEngine.setBookmark(client, Table.USERS, response.validator);
         return true;
     }
+
+    /** Requests the users, unless they haven't changed since the stored validator. */
+    private static RequestFuture<ConditionalResponse<List<JsonUser>>> requestUsers(
+        ContentProviderClient client) throws RemoteException {
+        return App.getUserManager().requestUsersFromServer(
+            BuendiaSyncEngine.getBookmark(client, Table.USERS), REQUEST_TAG);
+    }
 }
@@ -44,7 +44,9 @@ import org.projectbuendia.client.events.FetchXformFailedEvent;
 import org.projectbuendia.client.events.SubmitXformFailedEvent;
 import org.projectbuendia.client.events.SubmitXformSucceededEvent;
 import org.projectbuendia.client.exception.ValidationException;
+import org.projectbuendia.client.json.Datatype;
 import org.projectbuendia.client.json.JsonUser;
+import org.projectbuendia.models.Obs;
 import org.projectbuendia.models.tasks.DenormalizeObsTask;
 import org.projectbuendia.client.net.OdkDatabase;
 import org.projectbuendia.client.net.OdkXformSyncTask;
@@ -102,6 +104,14 @@ public class OdkActivityLauncher {
         );
     }
 
+    /** Returns true if every form in the local forms table has a cache file. */
+    public static boolean areAllXformsCached() {
+        for (OpenMrsXformIndexEntry entry : getLocalFormEntries()) {
+            if (!entry.getPathForForm().exists()) return false;
+        }
+        return true;
+    }
+
     /**
      * Fetches the xform specified by the form uuid.
      *
@@ -556,8 +566,10 @@ public class OdkActivityLauncher {
             if (conceptUuid == null) {
                 i.remove();
             } else {
-                values.put(Observations.TYPE, concepts.getType(conceptUuid).name());
+                Datatype type = concepts.getType(conceptUuid);
+                values.put(Observations.TYPE, type.name());
                 mapIdToUuid(xformIdToUuid, values, Observations.VALUE);
+                Obs.putTypedValues(values, type, values.getAsString(Observations.VALUE));
             }
         }
 
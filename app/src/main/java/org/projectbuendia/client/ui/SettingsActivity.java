@@ -13,6 +13,7 @@ package org.projectbuendia.client.ui;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.Context;
@@ -33,7 +34,9 @@ import android.view.MenuItem;
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.R;
+import org.projectbuendia.client.sync.DatabaseMaintenance;
 import org.projectbuendia.client.sync.SyncManager;
+import org.projectbuendia.client.sync.SyncTelemetry;
 import org.projectbuendia.client.ui.login.LoginActivity;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
@@ -80,10 +83,17 @@ public class SettingsActivity extends PreferenceActivity {
         "periodic_sync_disabled",
         "form_instances_retained",
         "non_wifi_allowed",
-        "server_responses_fabricated"
+        "server_responses_fabricated",
+        "sync_telemetry"
     };
     static boolean updatingPrefValues = false;
 
+    /** The number of recent syncs to show in the sync performance report. */
+    static final int SYNC_TELEMETRY_SYNCS = 20;
+
+    /** The number of recent database maintenance runs to show in the same report. */
+    static final int MAINTENANCE_RUNS_SHOWN = 14;
+
     static final Map<String, EditTextPreference> textPrefs = new HashMap<>();
 
     static Dialog sSyncPendingDialog = null;
@@ -224,6 +234,12 @@ public class SettingsActivity extends PreferenceActivity {
         if (pref instanceof EditTextPreference) {
             textPrefs.put(pref.getKey(), (EditTextPreference) pref);
         }
+        if (eq(pref.getKey(), "sync_telemetry")) {
+            pref.setOnPreferenceClickListener(clickedPref -> {
+                showSyncTelemetry(activity);
+                return true;
+            });
+        }
         if (eq(pref.getKey(), "locale")) {
             ListPreference localePref = (ListPreference) pref;
             localePref.setEntryValues(AppSettings.getLocaleOptionValues());
@@ -235,6 +251,29 @@ public class SettingsActivity extends PreferenceActivity {
         }
     }
 
+    /** Shows the measurements of recent syncs, with an option to share them as text. */
+    private static void showSyncTelemetry(Activity activity) {
+        SyncManager syncManager = App.getSyncManager();
+        long nextMillis = syncManager.getMillisUntilNextSync();
+        String report = String.format(Locale.US, "Syncs waiting: %d; next sync %s\n\n",
+            syncManager.getSyncQueueDepth(),
+            nextMillis < 0 ? "not scheduled" : "in " + (nextMillis + 999) / 1000 + " s")
+            + SyncTelemetry.getReport(activity.getContentResolver(), SYNC_TELEMETRY_SYNCS)
+            + "\n" + DatabaseMaintenance.getReport(activity.getContentResolver(), MAINTENANCE_RUNS_SHOWN);
+        new AlertDialog.Builder(activity)
+            .setTitle(R.string.pref_title_sync_telemetry)
+            .setMessage(report)
+            .setPositiveButton(android.R.string.ok, null)
+            .setNeutralButton(R.string.sync_telemetry_share, (dialog, which) ->
+                activity.startActivity(Intent.createChooser(
+                    new Intent(Intent.ACTION_SEND)
+                        .setType("text/plain")
+                        .putExtra(Intent.EXTRA_SUBJECT, activity.getString(R.string.pref_title_sync_telemetry))
+                        .putExtra(Intent.EXTRA_TEXT, report),
+                    activity.getString(R.string.sync_telemetry_share))))
+            .show();
+    }
+
     static void updatePrefSummary(Preference pref, Object value) {
         String str = Utils.toNonnullString(value);
         if (pref.getKey() != null) switch (pref.getKey()) {
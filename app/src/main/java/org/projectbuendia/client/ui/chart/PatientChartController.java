@@ -39,6 +39,7 @@ import org.projectbuendia.client.events.data.EncounterAddFailedEvent;
 import org.projectbuendia.client.events.data.ItemDeletedEvent;
 import org.projectbuendia.client.events.data.ItemLoadedEvent;
 import org.projectbuendia.client.events.data.PatientUpdateFailedEvent;
+import org.projectbuendia.client.events.sync.PatientSyncSucceededEvent;
 import org.projectbuendia.client.events.sync.SyncSucceededEvent;
 import org.projectbuendia.client.json.Datatype;
 import org.projectbuendia.client.json.JsonUser;
@@ -204,6 +205,7 @@ public final class PatientChartController implements ChartRenderer.JsInterface {
         // Load a new patient, which will trigger UI updates.
         currentPatientUuid = mPatientUuid = uuid;
         mModel.loadSinglePatient(mCrudEventBus, mPatientUuid);
+        App.getSyncManager().syncPatient(mPatientUuid);
     }
 
     /** Sets async operations going to collect data required by the UI. */
@@ -211,6 +213,9 @@ public final class PatientChartController implements ChartRenderer.JsInterface {
         mDefaultEventBus.register(mEventBusSubscriber);
         mCrudEventBus.register(mEventBusSubscriber);
         mModel.loadSinglePatient(mCrudEventBus, mPatientUuid);
+        // Show what's on the server for this patient now, rather than waiting
+        // for the next sync of all patients.
+        App.getSyncManager().syncPatient(mPatientUuid);
     }
 
     /** Releases any resources used by the controller. */
@@ -506,6 +511,13 @@ public final class PatientChartController implements ChartRenderer.JsInterface {
             mModel.loadSinglePatient(mCrudEventBus, mPatientUuid); // if the sync touched this patient
         }
 
+        public void onEventMainThread(PatientSyncSucceededEvent event) {
+            if (eq(event.patientUuid, mPatientUuid)) {
+                updatePatientObsUi();
+                mModel.loadSinglePatient(mCrudEventBus, mPatientUuid);
+            }
+        }
+
         public void onEventMainThread(EncounterAddFailedEvent event) {
             LOG.e(event.exception, "Encounter add failed.");
             mUi.hideWaitDialog();
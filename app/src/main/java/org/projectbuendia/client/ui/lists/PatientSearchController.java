@@ -21,11 +21,6 @@ import org.projectbuendia.client.filter.db.SimpleSelectionFilter;
 import org.projectbuendia.client.filter.db.SimpleSelectionFilterGroup;
 import org.projectbuendia.client.filter.db.patient.LocationUuidFilter;
 import org.projectbuendia.client.filter.db.patient.PatientDbFilters;
-import org.projectbuendia.client.filter.matchers.FilteredCursor;
-import org.projectbuendia.client.filter.matchers.MatchingFilter;
-import org.projectbuendia.client.filter.matchers.MatchingFilterGroup;
-import org.projectbuendia.client.filter.matchers.patient.IdFilter;
-import org.projectbuendia.client.filter.matchers.patient.NameFilter;
 import org.projectbuendia.models.AppModel;
 import org.projectbuendia.models.LocationForest;
 import org.projectbuendia.models.Patient;
@@ -39,8 +34,6 @@ import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
-import static org.projectbuendia.client.filter.matchers.MatchingFilterGroup.FilterType.OR;
-
 /** Controller for {@link PatientListActivity}. */
 public class PatientSearchController {
 
@@ -58,8 +51,8 @@ public class PatientSearchController {
     private String mFilterQueryTerm = "";
     private FilterSubscriber mFilterSubscriber;
     private final Object mFilterSubscriberLock = new Object();
-    private final MatchingFilter<Patient> mSearchFilter =
-        new MatchingFilterGroup<>(OR, new IdFilter(), new NameFilter());
+    // Each load is numbered, and only the result of the newest one is shown.
+    private int mLoadSequence = 0;
     private TypedCursor<Patient> mPatientsCursor;
     private final SyncSubscriber mSyncSubscriber;
     private final CreationSubscriber mCreationSubscriber;
@@ -133,7 +126,7 @@ public class PatientSearchController {
     /** Updates the list of patients in the UI. */
     private void updatePatients() {
         if (mPatientsCursor != null) {
-            mUi.setPatients(getFilteredCursor());
+            mUi.setPatients(mPatientsCursor);
         }
         for (FragmentUi fragmentUi : mFragmentUis) {
             updateFragmentUi(fragmentUi);
@@ -148,7 +141,7 @@ public class PatientSearchController {
 
     private void updateFragmentUi(FragmentUi fragmentUi) {
         if (mPatientsCursor != null) {
-            fragmentUi.setPatients(getFilteredCursor(), mForest, mRootLocationUuid);
+            fragmentUi.setPatients(mPatientsCursor, mForest, mRootLocationUuid);
             fragmentUi.showSpinner(false);
         }
     }
@@ -158,11 +151,6 @@ public class PatientSearchController {
         mFragmentUis.remove(fragmentUi);
     }
 
-    /** Gets a cursor that returns the filtered list of patients. */
-    private TypedCursor<Patient> getFilteredCursor() {
-        return new FilteredCursor<>(mPatientsCursor, mSearchFilter, mFilterQueryTerm);
-    }
-
     public void onPatientSelected(Patient patient) {
         EventBus.getDefault().post(new PatientChartRequestedEvent(patient.uuid));
     }
@@ -172,11 +160,9 @@ public class PatientSearchController {
 
         mFilterQueryTerm = constraint;
 
-        if (mPatientsCursor == null) {
-            loadSearchResults();
-            return;
-        }
-        updatePatients();
+        // The search runs in the database, so each change to the query reloads the
+        // results.  Once there are results to show, a spinner would only flicker.
+        loadSearchResults(mPatientsCursor == null);
     }
 
     public void loadSearchResults() {
@@ -203,7 +189,8 @@ public class PatientSearchController {
             }
         }
         mCrudEventBus.register(mFilterSubscriber);
-        mModel.loadPatients(mCrudEventBus, getLocationSubfilter(), mFilterQueryTerm);
+        mLoadSequence++;
+        mModel.loadPatients(mCrudEventBus, getLocationSubfilter(), mFilterQueryTerm, mLoadSequence);
     }
 
     private SimpleSelectionFilter getLocationSubfilter() {
@@ -256,6 +243,11 @@ public class PatientSearchController {
 
     private final class FilterSubscriber {
         public void onEventMainThread(AppPatientsLoadedEvent event) {
+            // A newer search is on its way, so these results are already stale.
+            if (event.sequence != mLoadSequence) {
+                event.cursor.close();
+                return;
+            }
             mCrudEventBus.unregister(this);
 
             // If a patient cursor was already open, close it.
@@ -18,6 +18,7 @@ import android.view.View;
 import android.widget.TextView;
 
 import com.android.volley.VolleyError;
+import com.android.volley.toolbox.RequestFuture;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
@@ -31,6 +32,7 @@ import org.projectbuendia.client.events.user.UserAddFailedEvent;
 import org.projectbuendia.client.events.user.UserAddedEvent;
 import org.projectbuendia.client.json.JsonNewUser;
 import org.projectbuendia.client.json.JsonUser;
+import org.projectbuendia.client.net.ConditionalResponse;
 import org.projectbuendia.client.utils.AsyncTaskRunner;
 import org.projectbuendia.client.utils.Colorizer;
 import org.projectbuendia.client.utils.EventBusInterface;
@@ -38,6 +40,7 @@ import org.projectbuendia.client.utils.Logger;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -145,6 +148,25 @@ public class UserManager {
         onUsersSynced(mUserStore.syncKnownUsers());
     }
 
+    /**
+     * Sync users synchronously, using the users returned by a user list request that was
+     * already sent with {@link #requestUsersFromServer}.
+     */
+    public void syncKnownUsersSynchronously(List<JsonUser> users)
+        throws RemoteException, OperationApplicationException, UserSyncException {
+        onUsersSynced(mUserStore.syncKnownUsers(users));
+    }
+
+    /**
+     * Starts fetching the list of users from the server, without waiting for the response.
+     * If a validator is given, the server can reply that the users have not changed.
+     * The request is given the tag, if any, so that the caller can cancel it.
+     */
+    public RequestFuture<ConditionalResponse<List<JsonUser>>> requestUsersFromServer(
+        @Nullable String validator, @Nullable Object tag) {
+        return mUserStore.requestUsersFromServer(validator, tag);
+    }
+
     /**
      * Called when users are retrieved from the server, in order to send events and update user
      * state as necessary.
@@ -12,13 +12,12 @@
 package org.projectbuendia.client.user;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
-import android.content.SyncResult;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.RemoteException;
+import android.support.annotation.Nullable;
 
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.RequestFuture;
@@ -27,15 +26,15 @@ import com.google.common.collect.ImmutableSet;
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonNewUser;
 import org.projectbuendia.client.json.JsonUser;
+import org.projectbuendia.client.net.ConditionalResponse;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
 import org.projectbuendia.client.net.OpenMrsServer;
 import org.projectbuendia.client.providers.BuendiaProvider;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.providers.Contracts.Users;
-import org.projectbuendia.client.providers.DatabaseTransaction;
+import org.projectbuendia.client.providers.TableWriter;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -48,7 +47,6 @@ import java.util.concurrent.TimeoutException;
 public class UserStore {
 
     private static final Logger LOG = Logger.create();
-    private static final String USER_SYNC_SAVEPOINT_NAME = "USER_SYNC_SAVEPOINT";
 
     /** Loads users from the local store, fetching them from the server if there are none. */
     public Set<JsonUser> loadKnownUsers()
@@ -72,6 +70,15 @@ public class UserStore {
         return users;
     }
 
+    /** Syncs known users with the server, using an already fetched list of users. */
+    public Set<JsonUser> syncKnownUsers(List<JsonUser> userList)
+        throws RemoteException, OperationApplicationException {
+        LOG.i("Got %d users from server", userList.size());
+        Set<JsonUser> users = new HashSet<>(userList);
+        updateDatabase(users);
+        return users;
+    }
+
     /** Adds a new user, both locally and on the server. */
     public JsonUser addUser(JsonNewUser user) throws VolleyError {
         JsonUser newUser = addUserOnServer(user);
@@ -131,18 +138,21 @@ public class UserStore {
         return  result.user;
     }
 
-    private void  updateDatabase(Set<JsonUser> users) throws RemoteException, OperationApplicationException {
+    private void updateDatabase(Set<JsonUser> users) {
         LOG.i("Updating local database with %d users", users.size());
         ContentProviderClient client = App.getResolver().acquireContentProviderClient(Users.URI);
         try {
             BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
-            try (DatabaseTransaction tx = provider.startTransaction(USER_SYNC_SAVEPOINT_NAME)) {
-                try {
-                    client.applyBatch(getUserUpdateOps(users, new SyncResult()));
-                } catch (RemoteException | OperationApplicationException e) {
-                    tx.rollback();
-                    throw e;
+            try (TableWriter writer = provider.openTableWriter(Users.URI, Table.USERS, Users.UUID)) {
+                // Replace the current set of users with the given set.
+                writer.deleteAll();
+                for (JsonUser user : users) {
+                    ContentValues values = new ContentValues();
+                    values.put(Users.UUID, user.getUuid());
+                    values.put(Users.FULL_NAME, user.getName());
+                    writer.upsert(values);
                 }
+                writer.markSuccessful();
             }
         } finally {
             // NOTE: We aren't using try-with-resources here because
@@ -160,6 +170,23 @@ public class UserStore {
         throws ExecutionException, InterruptedException, TimeoutException {
         RequestFuture<List<JsonUser>> future = RequestFuture.newFuture();
         App.getServer().listUsers(connection, future, future);
+        return awaitUsers(future);
+    }
+
+    /**
+     * Starts fetching the list of users from the server, without waiting for the response.
+     * If a validator is given, the server can reply that the users have not changed.
+     * The request is given the tag, if any, so that the caller can cancel it.
+     */
+    public RequestFuture<ConditionalResponse<List<JsonUser>>> requestUsersFromServer(
+        @Nullable String validator, @Nullable Object tag) {
+        RequestFuture<ConditionalResponse<List<JsonUser>>> future = RequestFuture.newFuture();
+        App.getServer().listUsers(null, validator, tag, future, future);
+        return future;
+    }
+
+    private Set<JsonUser> awaitUsers(RequestFuture<List<JsonUser>> future)
+        throws ExecutionException, InterruptedException, TimeoutException {
         List<JsonUser> users = future.get(OpenMrsServer.TIMEOUT_SECONDS, TimeUnit.SECONDS);
         LOG.i("Got %d users from server", users.size());
         return new HashSet<>(users);
@@ -209,21 +236,4 @@ public class UserStore {
             }
         }
     }
-
-    /** Given a set of users, replaces the current set of users with users from that set. */
-    private static ArrayList<ContentProviderOperation> getUserUpdateOps(
-            Set<JsonUser> response, SyncResult syncResult) {
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        // Delete all users before inserting.
-        ops.add(ContentProviderOperation.newDelete(Contracts.Users.URI).build());
-        // TODO: Update syncResult delete counts.
-        for (JsonUser user : response) {
-            ops.add(ContentProviderOperation.newInsert(Contracts.Users.URI)
-                    .withValue(Contracts.Users.UUID, user.getUuid())
-                    .withValue(Contracts.Users.FULL_NAME, user.getName())
-                    .build());
-            syncResult.stats.numInserts++;
-        }
-        return ops;
-    }
 }
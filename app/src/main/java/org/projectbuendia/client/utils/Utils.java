@@ -683,6 +683,12 @@ public class Utils {
         return c.isNull(index) ? defaultValue : c.getLong(index);
     }
 
+    /** Gets a nullable double value from a cursor. */
+    public static Double getDouble(Cursor c, String columnName) {
+        int index = c.getColumnIndex(columnName);
+        return c.isNull(index) ? null : c.getDouble(index);
+    }
+
 
     // ==== Bundles ====
 
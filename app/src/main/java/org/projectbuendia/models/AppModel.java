@@ -25,6 +25,8 @@ import org.projectbuendia.client.events.data.ItemUpdatedEvent;
 import org.projectbuendia.client.events.data.TypedCursorLoadedEvent;
 import org.projectbuendia.client.events.data.TypedCursorLoadedEventFactory;
 import org.projectbuendia.client.filter.db.SimpleSelectionFilter;
+import org.projectbuendia.client.filter.db.SimpleSelectionFilterGroup;
+import org.projectbuendia.client.filter.db.patient.PatientSearchFilter;
 import org.projectbuendia.client.filter.db.patient.UuidFilter;
 import org.projectbuendia.client.json.Datatype;
 import org.projectbuendia.client.json.JsonPatient;
@@ -108,9 +110,17 @@ public class AppModel {
 
     /**
      * Asynchronously loads patients, posting a {@link TypedCursorLoadedEvent} with
-     * {@link Patient}s on the specified event bus when complete.
+     * {@link Patient}s on the specified event bus when complete.  If the constraint
+     * is a search query, only the patients that match it are loaded; see
+     * {@link PatientSearchFilter}.  The event carries the given sequence number,
+     * so that a caller that starts several loads can tell which one it answers.
      */
-    public void loadPatients(CrudEventBus bus, SimpleSelectionFilter filter, String constraint) {
+    public void loadPatients(
+        CrudEventBus bus, SimpleSelectionFilter filter, String constraint, int sequence) {
+        PatientSearchFilter search = new PatientSearchFilter(constraint);
+        if (!search.isEmpty()) {
+            filter = new SimpleSelectionFilterGroup(filter, search);
+        }
         // NOTE: We need to keep the object creation separate from calling #execute() here, because
         // the type inference breaks on Java 8 otherwise, which throws
         // `java.lang.ClassCastException: java.lang.Object[] cannot be cast to java.lang.Void[]`.
@@ -122,7 +132,7 @@ public class AppModel {
             // the columns used in Patient.Loader.fromCursor().
             null, //new String[] {"rowid as _id", Patients.UUID, Patients.ID, Patients.GIVEN_NAME,
                 //Patients.FAMILY_NAME, Patients.BIRTHDATE, Patients.SEX, Patients.LOCATION_UUID},
-            Patient.class, mContentResolver, filter, constraint, Patient::load, bus);
+            Patient.class, mContentResolver, filter, constraint, Patient::load, bus, sequence);
         task.execute();
     }
 
@@ -212,6 +222,7 @@ public class AppModel {
         private final String mConstraint;
         private final CursorLoader<T> mLoader;
         private final CrudEventBus mBus;
+        private final int mSequence;
 
         public LoadTypedCursorAsyncTask(
             Uri contentUri,
@@ -221,7 +232,8 @@ public class AppModel {
             SimpleSelectionFilter<T> filter,
             String constraint,
             CursorLoader<T> loader,
-            CrudEventBus bus) {
+            CrudEventBus bus,
+            int sequence) {
             mContentUri = contentUri;
             mProjection = projection;
             mClazz = clazz;
@@ -230,6 +242,7 @@ public class AppModel {
             mConstraint = constraint;
             mLoader = loader;
             mBus = bus;
+            mSequence = sequence;
         }
 
         @Override protected TypedCursor<T> doInBackground(Void... voids) {
@@ -253,7 +266,7 @@ public class AppModel {
         }
 
         @Override protected void onPostExecute(TypedCursor<T> result) {
-            mBus.post(TypedCursorLoadedEventFactory.createEvent(mClazz, result));
+            mBus.post(TypedCursorLoadedEventFactory.createEvent(mClazz, result, mSequence));
         }
     }
 }
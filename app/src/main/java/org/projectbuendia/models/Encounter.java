@@ -108,6 +108,7 @@ public class Encounter extends Model {
             cv.put(Observations.MILLIS, time.getMillis());
             cv.put(Observations.ORDER_UUID, obs.orderUuid);
             cv.put(Observations.VALUE, obs.value);
+            Obs.putTypedValues(cv, obs.type, obs.value);
             cvs[i++] = cv;
         }
         return cvs;
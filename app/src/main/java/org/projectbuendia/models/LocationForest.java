@@ -57,8 +57,6 @@ public class LocationForest {
         List<String> uuids = new ArrayList<>();
         Map<String, String> namesByUuid = new HashMap<>();
         Map<String, String> shortIdsByUuid = new HashMap<>();
-        int totalNumPatients = 0;
-
         for (Record record : records) {
             uuids.add(record.uuid);
             parentUuidsByUuid.put(record.uuid, record.parentUuid);
@@ -66,7 +64,6 @@ public class LocationForest {
             namesByUuid.put(record.uuid, record.name);
             numPatientsAtNode.put(record.uuid, record.numPatients);
             numPatientsInSubtree.put(record.uuid, 0);  // counts will be added below
-            totalNumPatients += record.numPatients;
         }
 
         // Sort into a global ordering consistent with the desired ordering for
@@ -105,6 +102,7 @@ public class LocationForest {
                 path = shortIdsByUuid.get(u) + "/" + path;
                 numPatientsInSubtree.put(u, numPatientsInSubtree.get(u) + count);
             }
+            totalNumPatients += count;
 
             locations[i] = new Location(uuid, intl.loc(locale));
             pathsByUuid.put(uuid, path);
@@ -135,27 +133,40 @@ public class LocationForest {
         ));
     }
 
+    /**
+     * Brings the patient counts up to date.  Only the locations whose counts
+     * changed are touched, each in time proportional to its depth, and the
+     * listener is called only if some count changed.
+     */
     public void updatePatientCounts(Map<String, Integer> patientCountsByLocationUuid) {
+        boolean changed = false;
         synchronized (patientCountLock) {
-            totalNumPatients = 0;
-            numPatientsAtNode.clear();
-            numPatientsInSubtree.clear();
-
             for (Location location : locations) {
                 int count = Utils.getOrDefault(patientCountsByLocationUuid, location.uuid, 0);
-                numPatientsAtNode.put(location.uuid, count);
-                for (String u = location.uuid; u != null; u = parentUuidsByUuid.get(u)) {
-                    numPatientsInSubtree.put(u,
-                        Utils.getOrDefault(numPatientsInSubtree, u, 0) + count);
+                int delta = count - numPatientsAtNode.get(location.uuid);
+                if (delta != 0) {
+                    addPatientsAt(location.uuid, delta);
+                    changed = true;
                 }
             }
-            LOG.i("Updated existing LocationForest; total patients: %d", totalNumPatients);
+            if (changed) {
+                LOG.i("Updated existing LocationForest; total patients: %d", totalNumPatients);
+            }
         }
-        if (onPatientCountsUpdatedListener != null) {
+        if (changed && onPatientCountsUpdatedListener != null) {
             onPatientCountsUpdatedListener.run();
         }
     }
 
+    /** Adds delta (which may be negative) to the counts of a node and all its ancestors. */
+    private void addPatientsAt(String uuid, int delta) {
+        numPatientsAtNode.put(uuid, numPatientsAtNode.get(uuid) + delta);
+        for (String u = uuid; u != null; u = parentUuidsByUuid.get(u)) {
+            numPatientsInSubtree.put(u, numPatientsInSubtree.get(u) + delta);
+        }
+        totalNumPatients += delta;
+    }
+
     public void setOnPatientCountsUpdatedListener(Runnable listener) {
         onPatientCountsUpdatedListener = listener;
     }
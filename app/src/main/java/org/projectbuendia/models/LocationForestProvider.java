@@ -1,12 +1,14 @@
 package org.projectbuendia.models;
 
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
 
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.TableChangeBus;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
@@ -25,33 +27,33 @@ public class LocationForestProvider {
     private Runnable onForestReplacedListener = null;
 
     private final ContentResolver resolver;
-    private final ContentObserver locationChangeObserver = new ContentObserver(new Handler()) {
-        public void onChange(boolean selfChange) {
+    private final TableChangeBus changeBus;
+    // Changes arrive in batches, so a sync causes only a few reads of the counts,
+    // each of one small row per location, not one per patient.
+    private final TableChangeBus.Listener tableChangeListener = tables -> {
+        if (tables.contains(Table.LOCATIONS)) {
             currentForest = null;
             if (onForestReplacedListener != null) {
                 onForestReplacedListener.run();
             }
-        }
-    };
-    private final ContentObserver patientChangeObserver = new ContentObserver(new Handler()) {
-        public void onChange(boolean selfChange) {
-            if (currentForest != null) {
-                currentForest.updatePatientCounts(getPatientCountsByLocationUuid());
-            }
+        } else if (tables.contains(Table.PATIENT_COUNTS) && currentForest != null) {
+            currentForest.updatePatientCounts(getPatientCountsByLocationUuid());
         }
     };
 
     public LocationForestProvider(ContentResolver resolver) {
         this.resolver = resolver;
-        resolver.registerContentObserver(
-            Contracts.Locations.URI, true, locationChangeObserver);
-        resolver.registerContentObserver(
-            Contracts.Patients.URI, true, patientChangeObserver);
+        ContentProviderClient client = resolver.acquireContentProviderClient(Contracts.BASE_CONTENT_URI);
+        try {
+            changeBus = ((BuendiaProvider) client.getLocalContentProvider()).getChangeBus();
+        } finally {
+            client.release();
+        }
+        changeBus.addListener(tableChangeListener);
     }
 
     public void dispose() {
-        resolver.unregisterContentObserver(locationChangeObserver);
-        resolver.unregisterContentObserver(patientChangeObserver);
+        changeBus.removeListener(tableChangeListener);
     }
 
     public @Nonnull LocationForest getForest(Locale locale) {
@@ -11,14 +11,18 @@
 
 package org.projectbuendia.models;
 
+import android.content.ContentValues;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.projectbuendia.client.json.Datatype;
+import org.projectbuendia.client.providers.Contracts.Observations;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
@@ -132,6 +136,39 @@ public final class Obs extends Model implements Comparable<Obs>, Parcelable, Ser
         return null;
     }
 
+    /**
+     * Puts the typed value columns for an observation with the given type and
+     * string value into a row for the observations table, so that SQLite can
+     * compare and aggregate values without parsing strings.  Columns that don't
+     * apply to the type are set to null.
+     */
+    public static void putTypedValues(ContentValues cv, @Nullable Datatype type, @Nullable String value) {
+        Double number = null;
+        Long millis = null;
+        String coded = null;
+        if (type != null && value != null) {
+            switch (type) {
+                case NUMERIC:
+                    number = Utils.toDoubleOrNull(value);
+                    break;
+                case CODED:
+                case BOOLEAN:
+                    coded = value;
+                    break;
+                case DATE:
+                    LocalDate date = Utils.toLocalDate(value);
+                    if (date != null) millis = date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+                    break;
+                case DATETIME:
+                    millis = Utils.toLongOrNull(value);
+                    break;
+            }
+        }
+        cv.put(Observations.VALUE_NUMERIC, number);
+        cv.put(Observations.VALUE_MILLIS, millis);
+        cv.put(Observations.VALUE_CODED, coded);
+    }
+
     @Override public String toString() {
         return "Obs(uuid=" + uuid
             + ", patientUuid=" + patientUuid